@@ -0,0 +1,101 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.owasp.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Deterministic html pages of a given size mixing markup the benchmark policy keeps, rewrites and removes.
+ */
+public final class BenchmarkPages {
+    public static final String SMALL = "small";
+    public static final String MEDIUM = "medium";
+    public static final String LARGE = "large";
+
+    private static final String POLICY_RESOURCE = "/antisamy-benchmark-policy.xml";
+    private static final String POLICY_PROPERTY = "antisamy.benchmark.policy";
+    private static final String BLOCK =
+            "<div id=\"section\"><p>Lorem ipsum <b>dolor</b> sit amet, <i>consectetur</i> adipiscing elit &amp; more.</p>\n" +
+            "<p onclick=\"steal()\">Sed do <a href=\"/page?id=1&amp;q=2\">eiusmod</a> tempor <a href=\"javascript:alert(1)\">incididunt</a>.</p>\n" +
+            "<ul><li>ut labore</li><li>et dolore <span style=\"color:red\">magna</span></li><li>aliqua</li></ul>\n" +
+            "<script type=\"text/javascript\">document.write('<img src=x onerror=alert(1)>');</script>\n" +
+            "<!-- a comment -->Ut enim ad minim veniam,<br>quis nostrud éxercitation <iframe src=\"http://evil\"></iframe>ullamco.</div>\n";
+
+    private BenchmarkPages() {
+    }
+
+    public static int size(String page) {
+        if (SMALL.equals(page)) {
+            return 2 * 1024;
+        } else if (MEDIUM.equals(page)) {
+            return 64 * 1024;
+        } else if (LARGE.equals(page)) {
+            return 4 * 1024 * 1024;
+        }
+        throw new IllegalArgumentException(page);
+    }
+
+    public static String html(String page) {
+        int size = size(page);
+        StringBuilder html = new StringBuilder(size + BLOCK.length() + 32);
+        html.append("<html><body>\n");
+        while (html.length() < size) {
+            html.append(BLOCK);
+        }
+        return html.append("</body></html>").toString();
+    }
+
+    /**
+     * @return a page of the given size without any markup, the kind of body the filter writes without a scan
+     */
+    public static String text(String page) {
+        int size = size(page);
+        StringBuilder text = new StringBuilder(size + 64);
+        while (text.length() < size) {
+            text.append("Lorem ipsum dolor sit amet, consectetur adipiscing elit.\n");
+        }
+        return text.toString();
+    }
+
+    /**
+     * @return the policy named by the antisamy.benchmark.policy system property, or a copy of the bundled policy
+     */
+    public static String policyFile() throws IOException {
+        String policyFile = System.getProperty(POLICY_PROPERTY);
+        if (policyFile != null) {
+            return policyFile;
+        }
+        File file = File.createTempFile("antisamy-benchmark-policy", ".xml");
+        file.deleteOnExit();
+        InputStream input = BenchmarkPages.class.getResourceAsStream(POLICY_RESOURCE);
+        OutputStream output = new FileOutputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+        } finally {
+            input.close();
+            output.close();
+        }
+        return file.getAbsolutePath();
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.owasp.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.owasp.HttpResponseInvocationHandlerFactory;
+import org.owasp.HttpResponseProxyFactory;
+import org.owasp.HttpServletResponseInvocationHandler;
+
+import javax.servlet.http.HttpServletResponse;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of capturing a response body compared to writing it straight to the response.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CaptureBenchmark {
+    private static final String CONTENT_TYPE = "text/html; charset=UTF-8";
+
+    @Param({BenchmarkPages.SMALL, BenchmarkPages.MEDIUM, BenchmarkPages.LARGE})
+    public String page;
+
+    private final HttpResponseInvocationHandlerFactory invocationHandlerFactory = new HttpResponseInvocationHandlerFactory();
+    private final HttpResponseProxyFactory proxyFactory = new HttpResponseProxyFactory();
+    private final InMemoryHttpServletResponse response = new InMemoryHttpServletResponse();
+    private String html;
+    private byte[] bytes;
+
+    @Setup
+    public void setUp() throws Exception {
+        html = BenchmarkPages.html(page);
+        bytes = html.getBytes("UTF-8");
+    }
+
+    @Benchmark
+    public long direct() throws Exception {
+        response.recycle();
+        response.setContentType(CONTENT_TYPE);
+        response.getOutputStream().write(bytes);
+        return response.getBytesWritten();
+    }
+
+    @Benchmark
+    public long outputStream() throws Exception {
+        response.recycle();
+        HttpServletResponseInvocationHandler invocationHandler = invocationHandlerFactory.build(response);
+        try {
+            HttpServletResponse proxiedResponse = proxyFactory.build(invocationHandler);
+            proxiedResponse.setContentType(CONTENT_TYPE);
+            proxiedResponse.getOutputStream().write(bytes);
+            invocationHandler.flush();
+            invocationHandler.writeTo(response.getOutputStream());
+        } finally {
+            invocationHandler.release();
+        }
+        return response.getBytesWritten();
+    }
+
+    @Benchmark
+    public long writer() throws Exception {
+        response.recycle();
+        HttpServletResponseInvocationHandler invocationHandler = invocationHandlerFactory.build(response);
+        try {
+            HttpServletResponse proxiedResponse = proxyFactory.build(invocationHandler);
+            proxiedResponse.setContentType(CONTENT_TYPE);
+            proxiedResponse.getWriter().write(html);
+            invocationHandler.flush();
+            invocationHandler.writeTo(response.getOutputStream());
+        } finally {
+            invocationHandler.release();
+        }
+        return response.getBytesWritten();
+    }
+
+    /**
+     * Capture plus the decoding into a string the dom scan mode needs before it can scan.
+     */
+    @Benchmark
+    public String contents() throws Exception {
+        response.recycle();
+        HttpServletResponseInvocationHandler invocationHandler = invocationHandlerFactory.build(response);
+        try {
+            HttpServletResponse proxiedResponse = proxyFactory.build(invocationHandler);
+            proxiedResponse.setContentType(CONTENT_TYPE);
+            proxiedResponse.getOutputStream().write(bytes);
+            invocationHandler.flush();
+            return invocationHandler.getContents();
+        } finally {
+            invocationHandler.release();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.owasp.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.owasp.AntiSamyFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.http.HttpServletRequest;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The whole filter pipeline: capture, policy lookup, scan and write of one response per operation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FilterBenchmark {
+    @Param({BenchmarkPages.SMALL, BenchmarkPages.MEDIUM, BenchmarkPages.LARGE})
+    public String page;
+
+    @Param({"dom", "streaming"})
+    public String scanMode;
+
+    private AntiSamyFilter filter;
+    private HttpServletRequest request;
+    private FilterChain htmlChain;
+    private FilterChain binaryChain;
+    private FilterChain textChain;
+
+    @State(Scope.Thread)
+    public static class Exchange {
+        final InMemoryHttpServletResponse response = new InMemoryHttpServletResponse();
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        filter = new AntiSamyFilter();
+        filter.init(new InMemoryFilterConfig()
+                .setInitParameter("antisamy-policy-file", BenchmarkPages.policyFile())
+                .setInitParameter("antisamy-scan-mode", scanMode)
+                .setInitParameter("antisamy-jmx-enabled", "false"));
+        request = new InMemoryHttpServletRequest("/page.html").build();
+        byte[] html = BenchmarkPages.html(page).getBytes("UTF-8");
+        htmlChain = new PageWritingFilterChain(html, "text/html; charset=UTF-8");
+        binaryChain = new PageWritingFilterChain(html, "application/octet-stream");
+        textChain = new PageWritingFilterChain(BenchmarkPages.text(page).getBytes("UTF-8"), "text/html; charset=UTF-8");
+    }
+
+    @TearDown
+    public void tearDown() {
+        filter.destroy();
+    }
+
+    @Benchmark
+    public long sanitized(Exchange exchange) throws Exception {
+        exchange.response.recycle();
+        filter.doFilter(request, exchange.response, htmlChain);
+        return exchange.response.getBytesWritten();
+    }
+
+    @Benchmark
+    public long plainText(Exchange exchange) throws Exception {
+        exchange.response.recycle();
+        filter.doFilter(request, exchange.response, textChain);
+        return exchange.response.getBytesWritten();
+    }
+
+    @Benchmark
+    public long passedThrough(Exchange exchange) throws Exception {
+        exchange.response.recycle();
+        filter.doFilter(request, exchange.response, binaryChain);
+        return exchange.response.getBytesWritten();
+    }
+}
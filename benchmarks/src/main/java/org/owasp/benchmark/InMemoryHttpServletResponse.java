@@ -0,0 +1,199 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.owasp.benchmark;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Locale;
+
+/**
+ * Response that discards the body, it can be recycled between invocations the way a container would.
+ */
+public class InMemoryHttpServletResponse implements HttpServletResponse {
+    private final CountingServletOutputStream output = new CountingServletOutputStream();
+    private String contentType;
+    private String characterEncoding;
+    private int contentLength = -1;
+    private int status = SC_OK;
+    private PrintWriter writer;
+
+    public void recycle() {
+        output.reset();
+        contentType = null;
+        characterEncoding = null;
+        contentLength = -1;
+        status = SC_OK;
+        writer = null;
+    }
+
+    public long getBytesWritten() {
+        return output.getCount();
+    }
+
+    public int getContentLength() {
+        return contentLength;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public String getCharacterEncoding() {
+        return characterEncoding == null ? "ISO-8859-1" : characterEncoding;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public ServletOutputStream getOutputStream() {
+        return output;
+    }
+
+    public PrintWriter getWriter() throws UnsupportedEncodingException {
+        if (writer == null) {
+            writer = new PrintWriter(new OutputStreamWriter(output, getCharacterEncoding()));
+        }
+        return writer;
+    }
+
+    public void setCharacterEncoding(String characterEncoding) {
+        this.characterEncoding = characterEncoding;
+    }
+
+    public void setContentLength(int contentLength) {
+        this.contentLength = contentLength;
+    }
+
+    public void setContentType(String contentType) {
+        this.contentType = contentType;
+        int charset = contentType == null ? -1 : contentType.toLowerCase().indexOf("charset=");
+        if (charset >= 0) {
+            characterEncoding = contentType.substring(charset + "charset=".length()).trim();
+        }
+    }
+
+    public void setBufferSize(int size) {
+    }
+
+    public int getBufferSize() {
+        return 0;
+    }
+
+    public void flushBuffer() {
+        if (writer != null) {
+            writer.flush();
+        }
+    }
+
+    public void resetBuffer() {
+        output.reset();
+    }
+
+    public boolean isCommitted() {
+        return false;
+    }
+
+    public void reset() {
+        recycle();
+    }
+
+    public void setLocale(Locale locale) {
+    }
+
+    public Locale getLocale() {
+        return Locale.getDefault();
+    }
+
+    public void addCookie(Cookie cookie) {
+    }
+
+    public boolean containsHeader(String name) {
+        return false;
+    }
+
+    public String encodeURL(String url) {
+        return url;
+    }
+
+    public String encodeRedirectURL(String url) {
+        return url;
+    }
+
+    public String encodeUrl(String url) {
+        return url;
+    }
+
+    public String encodeRedirectUrl(String url) {
+        return url;
+    }
+
+    public void sendError(int status, String message) {
+        this.status = status;
+    }
+
+    public void sendError(int status) {
+        this.status = status;
+    }
+
+    public void sendRedirect(String location) {
+        this.status = SC_FOUND;
+    }
+
+    public String getHeader(String name) {
+        return null;
+    }
+
+    public Collection<String> getHeaders(String name) {
+        return Collections.emptyList();
+    }
+
+    public Collection<String> getHeaderNames() {
+        return Collections.emptyList();
+    }
+
+    public void setDateHeader(String name, long date) {
+    }
+
+    public void addDateHeader(String name, long date) {
+    }
+
+    public void setHeader(String name, String value) {
+    }
+
+    public void addHeader(String name, String value) {
+    }
+
+    public void setIntHeader(String name, int value) {
+    }
+
+    public void addIntHeader(String name, int value) {
+    }
+
+    public void setStatus(int status) {
+        this.status = status;
+    }
+
+    public void setStatus(int status, String message) {
+        this.status = status;
+    }
+}
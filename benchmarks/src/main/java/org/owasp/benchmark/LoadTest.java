@@ -0,0 +1,321 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+
+package org.owasp.benchmark;
+
+import org.owasp.AntiSamyFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.http.HttpServletRequest;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a corpus of pages through the filter from a fixed number of threads, either as fast as they go or at a
+ * fixed arrival rate, and reports throughput, latency percentiles, the heap high-water mark and the time spent in GC.
+ * <p/>
+ * At a fixed rate every request has a start time on the schedule and its latency is counted from there, so a filter
+ * that falls behind shows up in the percentiles instead of quietly lowering the rate.
+ * <p/>
+ * System properties: loadtest.concurrency (default 16), loadtest.rate in requests per second (default 0, as fast as
+ * the threads go), loadtest.warmup and loadtest.duration in seconds (default 10 and 30), loadtest.corpus a file or a
+ * directory of html pages (default loadtest.pages of {@link BenchmarkPages}, default small,medium).
+ * Every system property starting with antisamy- is passed to the filter as an init parameter.
+ */
+public class LoadTest {
+    private static final String INIT_PARAMETER_PREFIX = "antisamy-";
+    private static final String CONTENT_TYPE = "text/html; charset=UTF-8";
+
+    private final AntiSamyFilter filter;
+    private final HttpServletRequest request;
+    private final FilterChain[] corpus;
+    private final int concurrency;
+    private final long rate;
+
+    public LoadTest(AntiSamyFilter filter, FilterChain[] corpus, int concurrency, long rate) {
+        this.filter = filter;
+        this.request = new InMemoryHttpServletRequest("/page.html").build();
+        this.corpus = corpus;
+        this.concurrency = concurrency;
+        this.rate = rate;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> initParameters = new TreeMap<String, String>();
+        initParameters.put("antisamy-policy-file", BenchmarkPages.policyFile());
+        initParameters.put("antisamy-jmx-enabled", "false");
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith(INIT_PARAMETER_PREFIX)) {
+                initParameters.put(name, System.getProperty(name));
+            }
+        }
+        InMemoryFilterConfig filterConfig = new InMemoryFilterConfig();
+        for (Map.Entry<String, String> initParameter : initParameters.entrySet()) {
+            filterConfig.setInitParameter(initParameter.getKey(), initParameter.getValue());
+        }
+
+        AntiSamyFilter filter = new AntiSamyFilter();
+        filter.init(filterConfig);
+        try {
+            LoadTest loadTest = new LoadTest(filter, corpus(property("loadtest.corpus", null), property("loadtest.pages", BenchmarkPages.SMALL + "," + BenchmarkPages.MEDIUM)),
+                    Integer.parseInt(property("loadtest.concurrency", "16")), Long.parseLong(property("loadtest.rate", "0")));
+            System.out.println("Filter: " + initParameters);
+            System.out.println("Load: " + loadTest.concurrency + " threads, " + (loadTest.rate > 0 ? loadTest.rate + " requests/s" : "closed loop") + ", " + loadTest.corpus.length + " pages");
+            loadTest.run(TimeUnit.SECONDS.toNanos(Long.parseLong(property("loadtest.warmup", "10"))));
+            Result result = loadTest.run(TimeUnit.SECONDS.toNanos(Long.parseLong(property("loadtest.duration", "30"))));
+            result.print();
+        } finally {
+            filter.destroy();
+        }
+    }
+
+    /**
+     * Runs the load for the given time, resetting the heap peaks first so the high-water mark is this run's.
+     */
+    public Result run(long durationNanos) throws InterruptedException {
+        List<MemoryPoolMXBean> heapPools = heapPools();
+        for (MemoryPoolMXBean pool : heapPools) {
+            pool.resetPeakUsage();
+        }
+        long gcCount = gcCount();
+        long gcMillis = gcMillis();
+
+        long begin = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(10);
+        long end = begin + durationNanos;
+        AtomicLong sequence = new AtomicLong();
+        Worker[] workers = new Worker[concurrency];
+        Thread[] threads = new Thread[concurrency];
+        for (int i = 0; i < concurrency; i++) {
+            workers[i] = new Worker(sequence, begin, end);
+            threads[i] = new Thread(workers[i], "loadtest-" + i);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+
+        long heapPeak = 0;
+        for (MemoryPoolMXBean pool : heapPools) {
+            heapPeak += pool.getPeakUsage().getUsed();
+        }
+        return new Result(workers, elapsed, heapPeak, gcCount() - gcCount, gcMillis() - gcMillis);
+    }
+
+    private class Worker implements Runnable {
+        private final InMemoryHttpServletResponse response = new InMemoryHttpServletResponse();
+        private final AtomicLong sequence;
+        private final long begin;
+        private final long end;
+        private long[] latencies = new long[1024];
+        private int requests;
+        private int errors;
+        private long bytes;
+
+        private Worker(AtomicLong sequence, long begin, long end) {
+            this.sequence = sequence;
+            this.begin = begin;
+            this.end = end;
+        }
+
+        public void run() {
+            while (true) {
+                long next = sequence.getAndIncrement();
+                long start;
+                if (rate > 0) {
+                    start = begin + next * TimeUnit.SECONDS.toNanos(1) / rate;
+                    if (start >= end) {
+                        return;
+                    }
+                    long wait;
+                    while ((wait = start - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                } else {
+                    start = System.nanoTime();
+                    if (start >= end) {
+                        return;
+                    }
+                }
+                response.recycle();
+                try {
+                    filter.doFilter(request, response, corpus[(int) (next % corpus.length)]);
+                    if (response.getStatus() >= 500) {
+                        errors++;
+                    }
+                } catch (Exception e) {
+                    errors++;
+                }
+                record(System.nanoTime() - start);
+                bytes += response.getBytesWritten();
+            }
+        }
+
+        private void record(long latency) {
+            if (requests == latencies.length) {
+                latencies = Arrays.copyOf(latencies, requests * 2);
+            }
+            latencies[requests++] = latency;
+        }
+    }
+
+    public static class Result {
+        private final long[] latencies;
+        private final int errors;
+        private final long bytes;
+        private final long elapsedNanos;
+        private final long heapPeak;
+        private final long gcCount;
+        private final long gcMillis;
+
+        private Result(Worker[] workers, long elapsedNanos, long heapPeak, long gcCount, long gcMillis) {
+            int requests = 0;
+            int errors = 0;
+            long bytes = 0;
+            for (Worker worker : workers) {
+                requests += worker.requests;
+                errors += worker.errors;
+                bytes += worker.bytes;
+            }
+            latencies = new long[requests];
+            int offset = 0;
+            for (Worker worker : workers) {
+                System.arraycopy(worker.latencies, 0, latencies, offset, worker.requests);
+                offset += worker.requests;
+            }
+            Arrays.sort(latencies);
+            this.errors = errors;
+            this.bytes = bytes;
+            this.elapsedNanos = elapsedNanos;
+            this.heapPeak = heapPeak;
+            this.gcCount = gcCount;
+            this.gcMillis = gcMillis;
+        }
+
+        public double getThroughput() {
+            return latencies.length * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+        }
+
+        /**
+         * @return the latency in nanoseconds that the given fraction of the requests stayed under
+         */
+        public long percentile(double quantile) {
+            if (latencies.length == 0) {
+                return 0;
+            }
+            return latencies[Math.max(0, (int) Math.ceil(latencies.length * quantile) - 1)];
+        }
+
+        public void print() {
+            double seconds = elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1);
+            System.out.println(String.format("Requests: %d in %.1f s, %d errors", latencies.length, seconds, errors));
+            System.out.println(String.format("Throughput: %.1f requests/s, %.1f MB/s written", getThroughput(), bytes / seconds / (1024 * 1024)));
+            System.out.println(String.format("Latency (ms): p50 %.3f, p90 %.3f, p99 %.3f, p99.9 %.3f, max %.3f",
+                    millis(percentile(0.5)), millis(percentile(0.9)), millis(percentile(0.99)), millis(percentile(0.999)), millis(percentile(1))));
+            System.out.println(String.format("Heap high-water mark: %.1f MB", heapPeak / (1024.0 * 1024)));
+            System.out.println(String.format("GC: %d collections, %d ms (%.2f%% of the run)", gcCount, gcMillis, gcMillis * 100 / (seconds * 1000)));
+        }
+
+        private static double millis(long nanos) {
+            return nanos / 1000000.0;
+        }
+    }
+
+    private static FilterChain[] corpus(String corpus, String pages) throws IOException {
+        List<FilterChain> chains = new ArrayList<FilterChain>();
+        if (corpus == null) {
+            for (String page : pages.split(",")) {
+                chains.add(new PageWritingFilterChain(BenchmarkPages.html(page.trim()).getBytes("UTF-8"), CONTENT_TYPE));
+            }
+        } else {
+            File file = new File(corpus);
+            File[] files = file.isDirectory() ? file.listFiles() : new File[]{file};
+            if (files == null) {
+                throw new IOException("Unable to read the corpus (" + corpus + ")");
+            }
+            Arrays.sort(files);
+            for (File page : files) {
+                if (page.isFile()) {
+                    chains.add(new PageWritingFilterChain(read(page), CONTENT_TYPE));
+                }
+            }
+        }
+        if (chains.isEmpty()) {
+            throw new IOException("The corpus (" + corpus + ") holds no pages");
+        }
+        return chains.toArray(new FilterChain[chains.size()]);
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        InputStream input = new FileInputStream(file);
+        try {
+            int offset = 0;
+            int read;
+            while (offset < bytes.length && (read = input.read(bytes, offset, bytes.length - offset)) != -1) {
+                offset += read;
+            }
+            return offset == bytes.length ? bytes : Arrays.copyOf(bytes, offset);
+        } finally {
+            input.close();
+        }
+    }
+
+    private static String property(String name, String defaultValue) {
+        String value = System.getProperty(name);
+        return value == null || value.trim().length() == 0 ? defaultValue : value.trim();
+    }
+
+    private static List<MemoryPoolMXBean> heapPools() {
+        List<MemoryPoolMXBean> heapPools = new ArrayList<MemoryPoolMXBean>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                heapPools.add(pool);
+            }
+        }
+        return heapPools;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, collector.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, collector.getCollectionTime());
+        }
+        return millis;
+    }
+}
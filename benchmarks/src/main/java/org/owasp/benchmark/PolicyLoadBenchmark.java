@@ -0,0 +1,56 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.owasp.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.owasp.PolicyFileLoader;
+import org.owasp.validator.html.Policy;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per request policy lookup, the periodic change check and, for comparison, parsing the policy.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PolicyLoadBenchmark {
+    private final PolicyFileLoader policyFileLoader = new PolicyFileLoader();
+    private String policyFile;
+
+    @Setup
+    public void setUp() throws Exception {
+        policyFile = BenchmarkPages.policyFile();
+        policyFileLoader.load(policyFile);
+    }
+
+    @Benchmark
+    public Policy cached() {
+        return policyFileLoader.load(policyFile);
+    }
+
+    @Benchmark
+    public void checkForChanges() {
+        policyFileLoader.checkForChanges();
+    }
+
+    @Benchmark
+    public Policy parse() throws Exception {
+        return Policy.getInstance(policyFile);
+    }
+}
@@ -19,42 +19,219 @@ import org.apache.commons.logging.LogFactory;
 import org.owasp.validator.html.*;
 import org.owasp.validator.html.scan.AntiSamyDOMScanner;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.servlet.*;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
 import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 public class AntiSamyFilter implements Filter {
+    /**
+     * Request attribute holding the nonce that marks the untrusted regions of the page in fragments scan mode.
+     */
+    public static final String FRAGMENT_NONCE_ATTRIBUTE = "org.owasp.antisamy.fragmentNonce";
+
     private static final String NO_POLICY_FILE = "A policy file is required. Please set the init parameter ({0}) in your web.xml or call the setter";
     private static final String GENERIC_ERROR = "A problem occured while sanitizing the HTTP Response";
     private static final String POLICY_FILE_PARAM = "antisamy-policy-file";
+    private static final String POLICY_ROUTES_PARAM = "antisamy-policy-routes";
+    private static final String SANITIZE_REQUEST_PARAM = "antisamy-sanitize-request";
+    private static final String SANITIZED_HEADERS_PARAM = "antisamy-sanitized-headers";
+    private static final String SANITIZED_VALUES_PARAM = "antisamy-sanitized-values";
+    private static final String POLICY_NOT_LOADED = "Unable to load the policy file ({0})";
+    private static final String WARM_UP_ITERATIONS_PARAM = "antisamy-warm-up-iterations";
+    private static final String WARM_UP_CORPUS_PARAM = "antisamy-warm-up-corpus";
+    private static final String WARM_UP_FAILED = "Unable to warm up the scanners";
+    private static final String WARMED_UP = "Warmed up the scanners with {0} scans in {1} ms";
     private static final String OUTPUT_ENCODING_PARAM = "antisamy-output-encoding";
 
     private static final String INPUT_ENCODING_PARAM = "antisamy-input-encoding";
+    private static final String POLICY_CHECK_INTERVAL_PARAM = "antisamy-policy-check-interval";
+    private static final String SCANNER_POOL_SIZE_PARAM = "antisamy-scanner-pool-size";
+    private static final String BUFFER_POOL_SIZE_PARAM = "antisamy-buffer-pool-size";
+    private static final String BUFFER_SEGMENT_SIZE_PARAM = "antisamy-buffer-segment-size";
+    private static final String BUFFER_DIRECT_PARAM = "antisamy-buffer-direct";
+    private static final String SCAN_MODE_PARAM = "antisamy-scan-mode";
+    private static final String STREAMING_CHUNK_SIZE_PARAM = "antisamy-streaming-chunk-size";
+    private static final String STREAMING_MAX_PENDING_PARAM = "antisamy-streaming-max-pending";
+    private static final String CACHE_SIZE_PARAM = "antisamy-cache-size";
+    private static final String CONTENT_TYPES_PARAM = "antisamy-content-types";
+    private static final String EXCLUDED_CONTENT_TYPES_PARAM = "antisamy-excluded-content-types";
+    private static final String FRAGMENT_BEGIN_PARAM = "antisamy-fragment-begin";
+    private static final String FRAGMENT_END_PARAM = "antisamy-fragment-end";
+    private static final String CAPTURE_BUDGET_PARAM = "antisamy-capture-budget";
+    private static final String CAPTURE_RESPONSE_LIMIT_PARAM = "antisamy-capture-response-limit";
+    private static final String CAPTURE_OVERFLOW_PARAM = "antisamy-capture-overflow";
+    private static final String CAPTURE_WAIT_TIMEOUT_PARAM = "antisamy-capture-wait-timeout";
+    private static final String CAPTURE_OVERFLOW_STATUS_PARAM = "antisamy-capture-overflow-status";
+    private static final String SPILL_DIRECTORY_PARAM = "antisamy-spill-directory";
+    private static final String SPILL_THRESHOLD_PARAM = "antisamy-spill-threshold";
+    private static final String OVER_BUDGET = "Rejected a response that went over the capture budget";
+    private static final long DEFAULT_CAPTURE_WAIT_TIMEOUT = 10000;
+    private static final String SCAN_TIMEOUT_PARAM = "antisamy-scan-timeout";
+    private static final String SCAN_TIMEOUT_THREADS_PARAM = "antisamy-scan-timeout-threads";
+    private static final String SCAN_FALLBACK_PARAM = "antisamy-scan-fallback";
+    private static final String SCAN_FALLBACK_STATUS_PARAM = "antisamy-scan-fallback-status";
+    private static final String CIRCUIT_P99_PARAM = "antisamy-circuit-p99";
+    private static final String CIRCUIT_WINDOW_PARAM = "antisamy-circuit-window";
+    private static final String CIRCUIT_OPEN_TIME_PARAM = "antisamy-circuit-open-time";
+    private static final String ERROR_FALLBACK = "error";
+    private static final String ESCAPE_FALLBACK = "escape";
+    private static final String CACHED_FALLBACK = "cached";
+    private static final String UNKNOWN_SCAN_FALLBACK = "Unknown scan fallback ({0}), expected one of: " + ERROR_FALLBACK + ", " + ESCAPE_FALLBACK + ", " + CACHED_FALLBACK;
+    private static final String NO_CACHE_FOR_FALLBACK = "The " + CACHED_FALLBACK + " scan fallback needs a cache, please set the init parameter (" + CACHE_SIZE_PARAM + ")";
+    private static final String SCAN_FALLBACK = "Serving the {0} fallback: {1}";
+    private static final String CIRCUIT_OPEN = "The scan circuit of {0} is open";
+    private static final int DEFAULT_CIRCUIT_WINDOW = 100;
+    private static final long DEFAULT_CIRCUIT_OPEN_TIME = 30000;
+    private static final String ASYNC_PARAM = "antisamy-async";
+    private static final String ASYNC_THREADS_PARAM = "antisamy-async-threads";
+    private static final String ASYNC_QUEUE_SIZE_PARAM = "antisamy-async-queue-size";
+    private static final String ASYNC_SATURATION_PARAM = "antisamy-async-saturation";
+    private static final String ASYNC_VIRTUAL_THREADS_PARAM = "antisamy-async-virtual-threads";
+    private static final String ASYNC_TIMEOUT_PARAM = "antisamy-async-timeout";
+    private static final String ASYNC_NOT_AVAILABLE = "Async scanning needs a servlet 3 container, scanning on the request threads instead";
+    private static final String TRUNCATED_BODY = "The encoded response body was cut short, dropping the rest of it";
+    private static final String ASYNC_ENDED = "The async request timed out or failed before its scan was written, dropping the body";
+    private static final int DEFAULT_ASYNC_QUEUE_SIZE = 100;
+    private static final String PARALLEL_THRESHOLD_PARAM = "antisamy-parallel-threshold";
+    private static final String PARALLEL_THREADS_PARAM = "antisamy-parallel-threads";
+    private static final String PARALLEL_CHUNK_SIZE_PARAM = "antisamy-parallel-chunk-size";
+    private static final String GZIP_PARAM = "antisamy-gzip";
+    private static final String GZIP_LEVEL_PARAM = "antisamy-gzip-level";
+    private static final String GZIP_MIN_SIZE_PARAM = "antisamy-gzip-min-size";
+    private static final String ETAGS_PARAM = "antisamy-etags";
+    private static final String ETAG = "ETag";
+    private static final String IF_NONE_MATCH = "If-None-Match";
+    private static final String SERVER_TIMING_PARAM = "antisamy-server-timing";
+    private static final String SERVER_TIMING = "Server-Timing";
+    private static final String PHASE_LISTENERS_PARAM = "antisamy-phase-listeners";
+    private static final String PHASE_LISTENER_NOT_CREATED = "Unable to create the phase listener ({0})";
+    private static final String PLAIN_TEXT_BYPASS_PARAM = "antisamy-plain-text-bypass";
+    private static final String LOG_SAMPLE_RATE_PARAM = "antisamy-log-sample-rate";
+    private static final String JMX_ENABLED_PARAM = "antisamy-jmx-enabled";
+    private static final String METRICS_OBJECT_NAME = "org.owasp:type=AntiSamyFilter,name={0}";
+    private static final String DEFAULT_FILTER_NAME = "AntiSamyFilter";
+    private static final String METRICS_NOT_REGISTERED = "Unable to (un)register the AntiSamy filter metrics MBean";
+    private static final String DOM_SCAN_MODE = "dom";
+    private static final String STREAMING_SCAN_MODE = "streaming";
+    private static final String FRAGMENTS_SCAN_MODE = "fragments";
+    private static final String UNKNOWN_SANITIZED_VALUES = "Unknown sanitized values ({0}), expected one of: " + SanitizingHttpServletRequest.HTML_VALUES + ", " + SanitizingHttpServletRequest.TEXT_VALUES;
+    private static final String UNKNOWN_SCAN_MODE = "Unknown scan mode ({0}), expected one of: " + DOM_SCAN_MODE + ", " + STREAMING_SCAN_MODE + ", " + FRAGMENTS_SCAN_MODE;
     private Log log = LogFactory.getLog(AntiSamyFilter.class);
     private HttpResponseProxyFactory httpResponseProxyFactory;
     private HttpResponseInvocationHandlerFactory httpResponseInvocationHandlerFactory;
-    private AntiSamy antiSamy;
+    private AntiSamyPoolFactory antiSamyPoolFactory;
+    private AntiSamyPool antiSamyPool;
+    private SanitizedOutputCache sanitizedOutputCache;
+    private ContentTypeMatcher contentTypeMatcher;
+    private CleanHtmlEncoder cleanHtmlEncoder;
+    private AntiSamyFilterMetrics metrics = new AntiSamyFilterMetrics();
+    private PlainTextDetector plainTextDetector = new PlainTextDetector();
+    private AsyncScanner asyncScanner;
+    private ResponseCompressor responseCompressor;
+    private ParallelSanitizer parallelSanitizer;
+    private int parallelThreshold;
+    private boolean etags;
+    private boolean serverTiming;
+    private volatile PhaseListener[] phaseListeners = new PhaseListener[0];
+    private ScanTimeLimiter scanTimeLimiter;
+    private final ConcurrentHashMap<String, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<String, CircuitBreaker>();
+    private long circuitP99;
+    private int circuitWindow = DEFAULT_CIRCUIT_WINDOW;
+    private long circuitOpenTime = DEFAULT_CIRCUIT_OPEN_TIME;
+    private String scanFallback = ERROR_FALLBACK;
+    private int scanFallbackStatus = HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+    private int captureOverflowStatus = HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+    private ObjectName metricsName;
+    private final AtomicLong loggedRequests = new AtomicLong();
     private PolicyFileLoader policyFileLoader;
+    private PolicyRouter policyRouter;
+    private boolean sanitizeRequests;
+    private Set<String> sanitizedHeaders = Collections.emptySet();
+    private String sanitizedValues = SanitizingHttpServletRequest.HTML_VALUES;
     private String policyFile;
     private String inputEncoding = AntiSamyDOMScanner.DEFAULT_ENCODING_ALGORITHM;
     private String outputEncoding = AntiSamyDOMScanner.DEFAULT_ENCODING_ALGORITHM;
+    private long policyCheckInterval;
+    private int scannerPoolSize = Runtime.getRuntime().availableProcessors();
+    private String scanMode = DOM_SCAN_MODE;
+    private int streamingChunkSize = 64 * 1024;
+    private int streamingMaxPending;
+    private int logSampleRate;
+    private String fragmentBegin = "<!--antisamy:" + FragmentSanitizer.NONCE_PLACEHOLDER + "-->";
+    private String fragmentEnd = "<!--/antisamy:" + FragmentSanitizer.NONCE_PLACEHOLDER + "-->";
 
     public AntiSamyFilter() {
         httpResponseProxyFactory = new HttpResponseProxyFactory();
         httpResponseInvocationHandlerFactory = new HttpResponseInvocationHandlerFactory();
-        antiSamy = new AntiSamy();
+        antiSamyPoolFactory = new AntiSamyPoolFactory();
         policyFileLoader = new PolicyFileLoader();
+        contentTypeMatcher = new ContentTypeMatcher();
+        cleanHtmlEncoder = new CleanHtmlEncoder(outputEncoding);
     }
 
+    /**
+     * A filter that fails to initialize is never destroyed by the container, so whatever was started before
+     * the failure, scan threads and the MBean, is torn down here.
+     */
     public void init(FilterConfig filterConfig) throws ServletException {
+        try {
+            configure(filterConfig);
+        } catch (ServletException e) {
+            destroy();
+            throw e;
+        } catch (RuntimeException e) {
+            destroy();
+            throw e;
+        }
+    }
+
+    private void configure(FilterConfig filterConfig) throws ServletException {
         policyFile = filterConfig.getInitParameter(POLICY_FILE_PARAM);
         if (isBlank(policyFile)) {
             throw new IllegalStateException(MessageFormat.format(NO_POLICY_FILE, POLICY_FILE_PARAM));
         }
 
+        String routes = filterConfig.getInitParameter(POLICY_ROUTES_PARAM);
+        if (!isBlank(routes)) {
+            policyRouter = new PolicyRouter(routes, policyFile);
+        }
+
+        String sanitizeRequest = filterConfig.getInitParameter(SANITIZE_REQUEST_PARAM);
+        if (!isBlank(sanitizeRequest)) {
+            sanitizeRequests = Boolean.valueOf(sanitizeRequest.trim()).booleanValue();
+        }
+        String headers = filterConfig.getInitParameter(SANITIZED_HEADERS_PARAM);
+        if (!isBlank(headers)) {
+            setSanitizedHeaders(headers);
+        }
+        String values = filterConfig.getInitParameter(SANITIZED_VALUES_PARAM);
+        if (!isBlank(values)) {
+            values = values.trim().toLowerCase();
+            if (!SanitizingHttpServletRequest.HTML_VALUES.equals(values) && !SanitizingHttpServletRequest.TEXT_VALUES.equals(values)) {
+                throw new IllegalStateException(MessageFormat.format(UNKNOWN_SANITIZED_VALUES, values));
+            }
+            sanitizedValues = values;
+        }
+
         String output = filterConfig.getInitParameter(OUTPUT_ENCODING_PARAM);
         if (!isBlank(output)) {
             outputEncoding = output;
@@ -64,36 +241,338 @@ public class AntiSamyFilter implements Filter {
         if (!isBlank(input)) {
             inputEncoding = input;
         }
+
+        String checkInterval = filterConfig.getInitParameter(POLICY_CHECK_INTERVAL_PARAM);
+        if (!isBlank(checkInterval)) {
+            policyCheckInterval = Long.parseLong(checkInterval.trim());
+        }
+
+        String poolSize = filterConfig.getInitParameter(SCANNER_POOL_SIZE_PARAM);
+        if (!isBlank(poolSize)) {
+            scannerPoolSize = Integer.parseInt(poolSize.trim());
+        }
+        antiSamyPool = antiSamyPoolFactory.build(scannerPoolSize, inputEncoding, outputEncoding);
+        cleanHtmlEncoder = new CleanHtmlEncoder(outputEncoding);
+
+        String contentTypes = filterConfig.getInitParameter(CONTENT_TYPES_PARAM);
+        String excludedContentTypes = filterConfig.getInitParameter(EXCLUDED_CONTENT_TYPES_PARAM);
+        if (!isBlank(contentTypes) || !isBlank(excludedContentTypes)) {
+            contentTypeMatcher = new ContentTypeMatcher(isBlank(contentTypes) ? ContentTypeMatcher.DEFAULT_CONTENT_TYPES : contentTypes, excludedContentTypes);
+            httpResponseInvocationHandlerFactory.setContentTypeMatcher(contentTypeMatcher);
+        }
+
+        String bufferPoolSize = filterConfig.getInitParameter(BUFFER_POOL_SIZE_PARAM);
+        String bufferSegmentSize = filterConfig.getInitParameter(BUFFER_SEGMENT_SIZE_PARAM);
+        String bufferDirect = filterConfig.getInitParameter(BUFFER_DIRECT_PARAM);
+        if (!isBlank(bufferPoolSize) || !isBlank(bufferSegmentSize) || !isBlank(bufferDirect)) {
+            httpResponseInvocationHandlerFactory.setSegmentPool(new SegmentPool(
+                    isBlank(bufferPoolSize) ? SegmentPool.DEFAULT_POOL_SIZE : Integer.parseInt(bufferPoolSize.trim()),
+                    isBlank(bufferSegmentSize) ? SegmentPool.DEFAULT_SEGMENT_SIZE : Integer.parseInt(bufferSegmentSize.trim()),
+                    Boolean.valueOf(bufferDirect).booleanValue()
+            ));
+        }
+
+        String mode = filterConfig.getInitParameter(SCAN_MODE_PARAM);
+        if (!isBlank(mode)) {
+            mode = mode.trim().toLowerCase();
+            if (!DOM_SCAN_MODE.equals(mode) && !STREAMING_SCAN_MODE.equals(mode) && !FRAGMENTS_SCAN_MODE.equals(mode)) {
+                throw new IllegalStateException(MessageFormat.format(UNKNOWN_SCAN_MODE, mode));
+            }
+            scanMode = mode;
+        }
+
+        String chunkSize = filterConfig.getInitParameter(STREAMING_CHUNK_SIZE_PARAM);
+        if (!isBlank(chunkSize)) {
+            streamingChunkSize = Integer.parseInt(chunkSize.trim());
+        }
+        String maxPending = filterConfig.getInitParameter(STREAMING_MAX_PENDING_PARAM);
+        if (!isBlank(maxPending)) {
+            streamingMaxPending = Integer.parseInt(maxPending.trim());
+        }
+
+        CaptureBudget budget = httpResponseInvocationHandlerFactory.getCaptureBudget();
+        String captureBudget = filterConfig.getInitParameter(CAPTURE_BUDGET_PARAM);
+        String captureResponseLimit = filterConfig.getInitParameter(CAPTURE_RESPONSE_LIMIT_PARAM);
+        String spillDirectory = filterConfig.getInitParameter(SPILL_DIRECTORY_PARAM);
+        if (!isBlank(captureBudget) || !isBlank(captureResponseLimit)) {
+            String overflow = filterConfig.getInitParameter(CAPTURE_OVERFLOW_PARAM);
+            String waitTimeout = filterConfig.getInitParameter(CAPTURE_WAIT_TIMEOUT_PARAM);
+            budget = new CaptureBudget(
+                    isBlank(captureBudget) ? Long.MAX_VALUE : Long.parseLong(captureBudget.trim()),
+                    isBlank(captureResponseLimit) ? Long.MAX_VALUE : Long.parseLong(captureResponseLimit.trim()),
+                    isBlank(overflow) ? CaptureBudget.WAIT : overflow.trim().toLowerCase(),
+                    isBlank(waitTimeout) ? DEFAULT_CAPTURE_WAIT_TIMEOUT : Long.parseLong(waitTimeout.trim()),
+                    isBlank(spillDirectory) ? null : new File(spillDirectory.trim())
+            );
+            httpResponseInvocationHandlerFactory.setCaptureBudget(budget);
+        }
+        String spillThreshold = filterConfig.getInitParameter(SPILL_THRESHOLD_PARAM);
+        if (!isBlank(spillThreshold)) {
+            budget.setSpillThreshold(Long.parseLong(spillThreshold.trim()));
+            if (!isBlank(spillDirectory)) {
+                budget.setSpillDirectory(new File(spillDirectory.trim()));
+            }
+        }
+        String overflowStatus = filterConfig.getInitParameter(CAPTURE_OVERFLOW_STATUS_PARAM);
+        if (!isBlank(overflowStatus)) {
+            captureOverflowStatus = Integer.parseInt(overflowStatus.trim());
+        }
+        metrics.setCaptureBudget(budget);
+
+        String begin = filterConfig.getInitParameter(FRAGMENT_BEGIN_PARAM);
+        if (!isBlank(begin)) {
+            fragmentBegin = begin.trim();
+        }
+        String end = filterConfig.getInitParameter(FRAGMENT_END_PARAM);
+        if (!isBlank(end)) {
+            fragmentEnd = end.trim();
+        }
+
+        String cacheSize = filterConfig.getInitParameter(CACHE_SIZE_PARAM);
+        if (!isBlank(cacheSize) && Long.parseLong(cacheSize.trim()) > 0) {
+            sanitizedOutputCache = new SanitizedOutputCache(Long.parseLong(cacheSize.trim()));
+        }
+
+        String scanTimeout = filterConfig.getInitParameter(SCAN_TIMEOUT_PARAM);
+        if (!isBlank(scanTimeout) && Long.parseLong(scanTimeout.trim()) > 0) {
+            String threads = filterConfig.getInitParameter(SCAN_TIMEOUT_THREADS_PARAM);
+            scanTimeLimiter = new ScanTimeLimiter(new ScanExecutor(
+                    isBlank(threads) ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(threads.trim()),
+                    DEFAULT_ASYNC_QUEUE_SIZE, ScanExecutor.REJECT, true
+            ), Long.parseLong(scanTimeout.trim()));
+        }
+
+        String fallback = filterConfig.getInitParameter(SCAN_FALLBACK_PARAM);
+        if (!isBlank(fallback)) {
+            fallback = fallback.trim().toLowerCase();
+            if (!ERROR_FALLBACK.equals(fallback) && !ESCAPE_FALLBACK.equals(fallback) && !CACHED_FALLBACK.equals(fallback)) {
+                throw new IllegalStateException(MessageFormat.format(UNKNOWN_SCAN_FALLBACK, fallback));
+            }
+            if (CACHED_FALLBACK.equals(fallback) && sanitizedOutputCache == null) {
+                throw new IllegalStateException(NO_CACHE_FOR_FALLBACK);
+            }
+            scanFallback = fallback;
+        }
+        String fallbackStatus = filterConfig.getInitParameter(SCAN_FALLBACK_STATUS_PARAM);
+        if (!isBlank(fallbackStatus)) {
+            scanFallbackStatus = Integer.parseInt(fallbackStatus.trim());
+        }
+
+        String p99 = filterConfig.getInitParameter(CIRCUIT_P99_PARAM);
+        if (!isBlank(p99)) {
+            circuitP99 = Long.parseLong(p99.trim());
+        }
+        String window = filterConfig.getInitParameter(CIRCUIT_WINDOW_PARAM);
+        if (!isBlank(window)) {
+            circuitWindow = Integer.parseInt(window.trim());
+        }
+        String openTime = filterConfig.getInitParameter(CIRCUIT_OPEN_TIME_PARAM);
+        if (!isBlank(openTime)) {
+            circuitOpenTime = Long.parseLong(openTime.trim());
+        }
+
+        String async = filterConfig.getInitParameter(ASYNC_PARAM);
+        if (!isBlank(async) && Boolean.valueOf(async.trim()).booleanValue()) {
+            if (AsyncScanner.isAvailable()) {
+                String threads = filterConfig.getInitParameter(ASYNC_THREADS_PARAM);
+                String queueSize = filterConfig.getInitParameter(ASYNC_QUEUE_SIZE_PARAM);
+                String saturation = filterConfig.getInitParameter(ASYNC_SATURATION_PARAM);
+                String virtualThreads = filterConfig.getInitParameter(ASYNC_VIRTUAL_THREADS_PARAM);
+                String timeout = filterConfig.getInitParameter(ASYNC_TIMEOUT_PARAM);
+                asyncScanner = new AsyncScanner(new ScanExecutor(
+                        isBlank(threads) ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(threads.trim()),
+                        isBlank(queueSize) ? DEFAULT_ASYNC_QUEUE_SIZE : Integer.parseInt(queueSize.trim()),
+                        isBlank(saturation) ? ScanExecutor.INLINE : saturation.trim().toLowerCase(),
+                        isBlank(virtualThreads) || Boolean.valueOf(virtualThreads.trim()).booleanValue()
+                ), isBlank(timeout) ? 0 : Long.parseLong(timeout.trim()));
+            } else {
+                log.warn(ASYNC_NOT_AVAILABLE);
+            }
+        }
+
+        String parallel = filterConfig.getInitParameter(PARALLEL_THRESHOLD_PARAM);
+        if (!isBlank(parallel) && Integer.parseInt(parallel.trim()) > 0) {
+            String threads = filterConfig.getInitParameter(PARALLEL_THREADS_PARAM);
+            String parallelChunkSize = filterConfig.getInitParameter(PARALLEL_CHUNK_SIZE_PARAM);
+            setParallelSanitizer(new ParallelSanitizer(antiSamyPool,
+                    isBlank(threads) ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(threads.trim()),
+                    isBlank(parallelChunkSize) ? ParallelSanitizer.DEFAULT_CHUNK_SIZE : Integer.parseInt(parallelChunkSize.trim())
+            ), Integer.parseInt(parallel.trim()));
+        }
+
+        String gzip = filterConfig.getInitParameter(GZIP_PARAM);
+        if (!isBlank(gzip) && Boolean.valueOf(gzip.trim()).booleanValue()) {
+            String level = filterConfig.getInitParameter(GZIP_LEVEL_PARAM);
+            String minSize = filterConfig.getInitParameter(GZIP_MIN_SIZE_PARAM);
+            responseCompressor = new ResponseCompressor(
+                    isBlank(level) ? ResponseCompressor.DEFAULT_LEVEL : Integer.parseInt(level.trim()),
+                    isBlank(minSize) ? ResponseCompressor.DEFAULT_MIN_SIZE : Integer.parseInt(minSize.trim()));
+        }
+
+        String etagsEnabled = filterConfig.getInitParameter(ETAGS_PARAM);
+        if (!isBlank(etagsEnabled)) {
+            etags = Boolean.valueOf(etagsEnabled.trim()).booleanValue();
+        }
+
+        String serverTimingEnabled = filterConfig.getInitParameter(SERVER_TIMING_PARAM);
+        if (!isBlank(serverTimingEnabled)) {
+            serverTiming = Boolean.valueOf(serverTimingEnabled.trim()).booleanValue();
+        }
+
+        String listeners = filterConfig.getInitParameter(PHASE_LISTENERS_PARAM);
+        if (!isBlank(listeners)) {
+            for (String listener : listeners.split(",")) {
+                if (listener.trim().length() > 0) {
+                    addPhaseListener(createPhaseListener(listener.trim()));
+                }
+            }
+        }
+
+        String plainTextBypass = filterConfig.getInitParameter(PLAIN_TEXT_BYPASS_PARAM);
+        if (!isBlank(plainTextBypass) && !Boolean.valueOf(plainTextBypass.trim()).booleanValue()) {
+            plainTextDetector = null;
+        }
+
+        String sampleRate = filterConfig.getInitParameter(LOG_SAMPLE_RATE_PARAM);
+        if (!isBlank(sampleRate)) {
+            logSampleRate = Integer.parseInt(sampleRate.trim());
+        }
+
+        List<Policy> policies = new ArrayList<Policy>();
+        for (String file : policyRouter == null ? Collections.singleton(policyFile) : policyRouter.getPolicyFiles()) {
+            try {
+                policies.add(policyFileLoader.load(file));
+            } catch (RuntimeException e) {
+                throw new ServletException(MessageFormat.format(POLICY_NOT_LOADED, file), e);
+            }
+        }
+
+        String warmUpIterations = filterConfig.getInitParameter(WARM_UP_ITERATIONS_PARAM);
+        if (!isBlank(warmUpIterations) && Integer.parseInt(warmUpIterations.trim()) > 0) {
+            warmUp(Integer.parseInt(warmUpIterations.trim()), filterConfig.getInitParameter(WARM_UP_CORPUS_PARAM), policies);
+        }
+
+        String jmxEnabled = filterConfig.getInitParameter(JMX_ENABLED_PARAM);
+        if (isBlank(jmxEnabled) || Boolean.valueOf(jmxEnabled.trim()).booleanValue()) {
+            registerMetrics(filterConfig.getFilterName());
+        }
+
+        if (policyCheckInterval > 0) {
+            policyFileLoader.startReloading(policyCheckInterval);
+        }
     }
 
     public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
-        if (response instanceof HttpServletResponse) {
+        long start = System.nanoTime();
+        try {
+            filter(request, response, chain);
+        } finally {
+            metrics.recordRequest(System.nanoTime() - start);
+        }
+    }
+
+    private void filter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+        PolicyRouter.Route route = route(request);
+        String policyFile = route == null ? this.policyFile : route.getPolicyFile();
+        String circuit = route == null ? PolicyRouter.DEFAULT_PATTERN : route.getPattern();
+        boolean inputOnly = route != null && route.isInputOnly();
+        if (policyFile != null && (sanitizeRequests || inputOnly) && request instanceof HttpServletRequest) {
+            request = new SanitizingHttpServletRequest((HttpServletRequest) request, antiSamyPool, policyFileLoader.load(policyFile), plainTextDetector, sanitizedHeaders, sanitizedValues);
+        }
+        if (policyFile == null) {
+            metrics.recordSkipped();
+            chain.doFilter(request, response);
+        } else if (inputOnly) {
+            metrics.recordInputOnly();
+            chain.doFilter(request, response);
+        } else if (response instanceof HttpServletResponse) {
             HttpServletResponseInvocationHandler invocationHandler = httpResponseInvocationHandlerFactory.build((HttpServletResponse) response);
             HttpServletResponse proxiedResponse = httpResponseProxyFactory.build(invocationHandler);
-            chain.doFilter(request, proxiedResponse);
-            if ("text/html".equals(proxiedResponse.getContentType())) {
+            PhaseListener[] listeners = phaseListeners;
+            if (serverTiming || listeners.length > 0) {
+                invocationHandler.setRequestTimings(new RequestTimings(request, listeners));
+            }
+            if (responseCompressor != null && request instanceof HttpServletRequest && responseCompressor.accepts((HttpServletRequest) request)) {
+                invocationHandler.setResponseCompressor(responseCompressor);
+            }
+            if (etags && request instanceof HttpServletRequest && isConditional((HttpServletRequest) request)) {
+                invocationHandler.setIfNoneMatch(((HttpServletRequest) request).getHeader(IF_NONE_MATCH));
+            }
+            StreamingSanitizer.Factory streamingSanitizerFactory = null;
+            if (STREAMING_SCAN_MODE.equals(scanMode)) {
+                streamingSanitizerFactory = new StreamingSanitizerFactory(invocationHandler, response, policyFile);
+                invocationHandler.setStreamingSanitizerFactory(streamingSanitizerFactory);
+            }
+            String fragmentNonce = null;
+            if (FRAGMENTS_SCAN_MODE.equals(scanMode)) {
+                fragmentNonce = FragmentSanitizer.newNonce();
+                request.setAttribute(FRAGMENT_NONCE_ATTRIBUTE, fragmentNonce);
+            }
+            boolean async = false;
+            try {
+                long start = System.nanoTime();
                 try {
-                    Policy policy = policyFileLoader.load(policyFile);
-                    antiSamy.setInputEncoding(inputEncoding);
-                    antiSamy.setOutputEncoding(outputEncoding);
-                    CleanResults cleanResults = antiSamy.scan(invocationHandler.getContents(), policy);
-                    log.info("Number of Errors: " + cleanResults.getNumberOfErrors());
-                    if (log.isDebugEnabled()) {
-                        log.debug("Errors found: ");
-                        List errors = cleanResults.getErrorMessages();
-                        for (int i = 0; i < errors.size(); i++) {
-                            log.debug("\t" + (i + 1) + ". " + errors.get(i));
-                        }
+                    chain.doFilter(request, proxiedResponse);
+                    invocationHandler.flush();
+                } catch (IOException e) {
+                    if (!invocationHandler.isOverBudget()) {
+                        throw e;
+                    }
+                } catch (ServletException e) {
+                    if (!invocationHandler.isOverBudget()) {
+                        throw e;
                     }
-                    log.info("Scan time (in seconds): " + cleanResults.getScanTime());
-                    response.getOutputStream().write(cleanResults.getCleanHTML().getBytes());
-                } catch (ScanException e) {
-                    log.error(GENERIC_ERROR, e);
-                } catch (PolicyException e) {
-                    log.error(GENERIC_ERROR, e);
                 }
-            } else {
-                response.getOutputStream().write(invocationHandler.getBytes());
+                long nanos = System.nanoTime() - start;
+                metrics.recordChain(nanos);
+                RequestTimings timings = invocationHandler.getRequestTimings();
+                if (timings != null) {
+                    StreamingSanitizer streamingSanitizer = invocationHandler.getStreamingSanitizer();
+                    long streamed = streamingSanitizer == null ? 0 : streamingSanitizer.getScanNanos() + streamingSanitizer.getWriteNanos();
+                    timings.record(RequestTimings.CHAIN, nanos - invocationHandler.getCaptureNanos() - streamed);
+                    timings.record(RequestTimings.CAPTURE, invocationHandler.getCaptureNanos());
+                }
+                if (invocationHandler.isSpilled()) {
+                    metrics.recordSpilled();
+                }
+                if (invocationHandler.isOverBudget()) {
+                    rejectOverBudget((HttpServletResponse) response);
+                } else if (invocationHandler.isPassThrough()) {
+                    metrics.recordPassedThrough(invocationHandler.getPassThroughSize());
+                } else if (invocationHandler.isTruncated()) {
+                    if (invocationHandler.isStreaming()) {
+                        invocationHandler.getStreamingSanitizer().abort();
+                    }
+                    metrics.recordFailed();
+                    log.error(TRUNCATED_BODY);
+                } else if (invocationHandler.isStreaming()) {
+                    finish(invocationHandler, invocationHandler.getStreamingSanitizer());
+                } else if (contentTypeMatcher.matches(proxiedResponse.getContentType())) {
+                    if (streamingSanitizerFactory != null) {
+                        StreamingSanitizer streamingSanitizer = streamingSanitizerFactory.build();
+                        invocationHandler.writeTo(streamingSanitizer);
+                        finish(invocationHandler, streamingSanitizer);
+                    } else if (asyncScanner != null && asyncScanner.dispatch(request, response, new ScanTask(invocationHandler, response, policyFile, circuit, fragmentNonce), invocationHandler.getAsyncEnded())) {
+                        async = true;
+                    } else if (fragmentNonce != null) {
+                        sanitizeFragments(invocationHandler, response, policyFile, fragmentNonce);
+                    } else {
+                        sanitize(invocationHandler, response, policyFile, circuit);
+                    }
+                } else {
+                    start = System.nanoTime();
+                    serverTiming(invocationHandler, response);
+                    response.setContentLength(invocationHandler.getSize());
+                    invocationHandler.writeTo(response.getOutputStream());
+                    nanos = System.nanoTime() - start;
+                    metrics.recordWrite(nanos);
+                    time(invocationHandler, RequestTimings.WRITE, nanos);
+                    metrics.recordPassedThrough(invocationHandler.getSize());
+                }
+            } finally {
+                if (!async) {
+                    invocationHandler.release();
+                }
             }
         } else {
             chain.doFilter(request, response);
@@ -101,7 +580,563 @@ public class AntiSamyFilter implements Filter {
     }
 
     public void destroy() {
+        policyFileLoader.stopReloading();
+        if (asyncScanner != null) {
+            asyncScanner.shutdown();
+        }
+        if (scanTimeLimiter != null) {
+            scanTimeLimiter.shutdown();
+        }
+        if (parallelSanitizer != null) {
+            parallelSanitizer.shutdown();
+        }
+        unregisterMetrics();
+    }
+
+    private void warmUp(int iterations, String corpus, List<Policy> policies) throws ServletException {
+        ScannerWarmUp scannerWarmUp = new ScannerWarmUp(antiSamyPool, iterations);
+        try {
+            long nanos = scannerWarmUp.run(ScannerWarmUp.readCorpus(corpus, inputEncoding), policies);
+            metrics.recordWarmUp(nanos, scannerWarmUp.getScans());
+            log.info(MessageFormat.format(WARMED_UP, scannerWarmUp.getScans(), TimeUnit.NANOSECONDS.toMillis(nanos)));
+        } catch (IOException e) {
+            throw new ServletException(WARM_UP_FAILED, e);
+        } catch (PolicyException e) {
+            throw new ServletException(WARM_UP_FAILED, e);
+        }
+    }
+
+    /**
+     * @return the route of the request, or null when every request uses the policy file
+     */
+    private PolicyRouter.Route route(ServletRequest request) {
+        if (policyRouter == null || !(request instanceof HttpServletRequest)) {
+            return null;
+        }
+        return policyRouter.match((HttpServletRequest) request);
+    }
+
+    /**
+     * @param circuit pattern of the route the request took, its scans share a circuit breaker
+     */
+    private void sanitize(HttpServletResponseInvocationHandler invocationHandler, ServletResponse response, String policyFile, String circuit) throws IOException {
+        long start = System.nanoTime();
+        PolicyFileLoader.VersionedPolicy versioned = policyFileLoader.loadVersioned(policyFile);
+        Policy policy = versioned.getPolicy();
+        long policyVersion = versioned.getVersion();
+        long nanos = System.nanoTime() - start;
+        metrics.recordPolicyLoad(nanos);
+        time(invocationHandler, RequestTimings.POLICY, nanos);
 
+        if (plainTextDetector != null && plainTextDetector.isPlainText(invocationHandler, policy)) {
+            start = System.nanoTime();
+            ContentHash etagHash = null;
+            if (etags) {
+                ContentHash.Hasher hasher = ContentHash.hasher();
+                invocationHandler.writeTo(hasher);
+                etagHash = hasher.toContentHash();
+            }
+            OutputStream body = openBody(invocationHandler, response, invocationHandler.getSize(), etagHash);
+            if (body != null) {
+                try {
+                    invocationHandler.writeTo(body);
+                    finishBody(invocationHandler, body);
+                } finally {
+                    endBody(invocationHandler, body);
+                }
+            }
+            nanos = System.nanoTime() - start;
+            metrics.recordWrite(nanos);
+            time(invocationHandler, RequestTimings.WRITE, nanos);
+            metrics.recordBypassed(invocationHandler.getSize());
+            return;
+        }
+
+        try {
+            CleanResults cleanResults = scan(invocationHandler, policyFile, circuit, policyVersion, policy);
+            log(cleanResults);
+            write(cleanResults.getCleanHTML(), invocationHandler, response);
+            metrics.recordSanitized(invocationHandler.getSize());
+        } catch (ScanBudgetExceededException e) {
+            fallback(invocationHandler, (HttpServletResponse) response, policyFile, policyVersion, e);
+        } catch (ScanException e) {
+            metrics.recordFailed();
+            log.error(GENERIC_ERROR, e);
+        } catch (PolicyException e) {
+            metrics.recordFailed();
+            log.error(GENERIC_ERROR, e);
+        }
+    }
+
+    private void write(String cleanHtml, HttpServletResponseInvocationHandler invocationHandler, ServletResponse response) throws IOException {
+        long start = System.nanoTime();
+        if (invocationHandler.isSpilled()) {
+            writeLarge(cleanHtml, invocationHandler, response);
+        } else {
+            byte[] bytes = cleanHtmlEncoder.encode(cleanHtml, invocationHandler.getCharacterEncoding());
+            ContentHash etagHash = null;
+            if (etags) {
+                ContentHash.Hasher hasher = ContentHash.hasher();
+                hasher.write(bytes, 0, bytes.length);
+                etagHash = hasher.toContentHash();
+            }
+            OutputStream body = openBody(invocationHandler, response, bytes.length, etagHash);
+            if (body != null) {
+                try {
+                    body.write(bytes);
+                    finishBody(invocationHandler, body);
+                } finally {
+                    endBody(invocationHandler, body);
+                }
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        metrics.recordWrite(nanos);
+        time(invocationHandler, RequestTimings.WRITE, nanos);
+    }
+
+    /**
+     * Sets the length, or the encoding when the body is compressed, and returns the stream to write the body to.
+     * With an ETag hash the tag is set too, and a client that already holds the body gets a 304 instead.
+     *
+     * @return null when the response was answered without a body, or the async request already ended
+     */
+    private OutputStream openBody(HttpServletResponseInvocationHandler invocationHandler, ServletResponse response, long length, ContentHash etagHash) throws IOException {
+        if (invocationHandler.isAsyncEnded()) {
+            metrics.recordFailed();
+            log.warn(ASYNC_ENDED);
+            return null;
+        }
+        serverTiming(invocationHandler, response);
+        if (responseCompressor != null && responseCompressor.compresses(length) && response instanceof HttpServletResponse) {
+            responseCompressor.vary((HttpServletResponse) response);
+        }
+        ResponseCompressor compressor = invocationHandler.getResponseCompressor();
+        if (etagHash != null && response instanceof HttpServletResponse) {
+            String etag = etag(etagHash, compressor != null && compressor.compresses(length));
+            HttpServletResponse httpResponse = (HttpServletResponse) response;
+            httpResponse.setHeader(ETAG, etag);
+            if (invocationHandler.getStatus() == HttpServletResponse.SC_OK && matches(invocationHandler.getIfNoneMatch(), etag)) {
+                httpResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                metrics.recordNotModified();
+                return null;
+            }
+        }
+        if (compressor == null) {
+            if (length >= 0 && length <= Integer.MAX_VALUE) {
+                response.setContentLength((int) length);
+            }
+            return response.getOutputStream();
+        }
+        if (compressor.compresses(length)) {
+            metrics.recordCompressed();
+        }
+        return compressor.open(response, length);
+    }
+
+    /**
+     * Sends the phases timed so far, the body is about to be written so the write phase is never part of it.
+     */
+    private void serverTiming(HttpServletResponseInvocationHandler invocationHandler, ServletResponse response) {
+        RequestTimings timings = invocationHandler.getRequestTimings();
+        if (serverTiming && timings != null && response instanceof HttpServletResponse) {
+            String header = timings.toServerTiming();
+            if (header != null) {
+                ((HttpServletResponse) response).setHeader(SERVER_TIMING, header);
+            }
+        }
+    }
+
+    private static void time(HttpServletResponseInvocationHandler invocationHandler, String phase, long nanos) {
+        RequestTimings timings = invocationHandler.getRequestTimings();
+        if (timings != null) {
+            timings.record(phase, nanos);
+        }
+    }
+
+    /**
+     * A strong tag of the sanitized bytes, the compressed representation gets its own tag.
+     */
+    private static String etag(ContentHash etagHash, boolean compressed) {
+        return "\"" + etagHash + (compressed ? "-gzip\"" : "\"");
+    }
+
+    /**
+     * Compares the way If-None-Match does, a weak tag matches its strong counterpart.
+     */
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isConditional(HttpServletRequest request) {
+        return "GET".equals(request.getMethod()) || "HEAD".equals(request.getMethod());
+    }
+
+    private void finishBody(HttpServletResponseInvocationHandler invocationHandler, OutputStream body) throws IOException {
+        if (invocationHandler.getResponseCompressor() != null) {
+            invocationHandler.getResponseCompressor().finish(body);
+        }
+    }
+
+    /**
+     * Frees a compressed body's zlib memory even when writing it failed half way.
+     */
+    private void endBody(HttpServletResponseInvocationHandler invocationHandler, OutputStream body) {
+        if (invocationHandler.getResponseCompressor() != null) {
+            invocationHandler.getResponseCompressor().end(body);
+        }
+    }
+
+    /**
+     * Serves the configured fallback for a body that could not be scanned within its latency budget. Cached
+     * copies are looked up by the body's content hash, so a page is never answered with another page's copy.
+     */
+    private void fallback(HttpServletResponseInvocationHandler invocationHandler, HttpServletResponse response, String policyFile, long policyVersion, ScanBudgetExceededException e) throws IOException {
+        metrics.recordFallback();
+        log.warn(MessageFormat.format(SCAN_FALLBACK, scanFallback, e.getMessage()));
+        if (ESCAPE_FALLBACK.equals(scanFallback)) {
+            write(escape(invocationHandler.getContents()), invocationHandler, response);
+            return;
+        }
+        if (CACHED_FALLBACK.equals(scanFallback)) {
+            CleanResults cached = sanitizedOutputCache.get(invocationHandler.getContentHash(), invocationHandler.getCharacterEncoding(), policyFile, policyVersion);
+            if (cached != null) {
+                write(cached.getCleanHTML(), invocationHandler, response);
+                return;
+            }
+        }
+        if (!invocationHandler.isAsyncEnded() && !response.isCommitted()) {
+            response.sendError(scanFallbackStatus);
+        }
+    }
+
+    private static String escape(String html) {
+        StringBuilder escaped = new StringBuilder(html.length() + html.length() / 8);
+        for (int i = 0; i < html.length(); i++) {
+            char c = html.charAt(i);
+            switch (c) {
+                case '<':
+                    escaped.append("&lt;");
+                    break;
+                case '>':
+                    escaped.append("&gt;");
+                    break;
+                case '&':
+                    escaped.append("&amp;");
+                    break;
+                case '"':
+                    escaped.append("&quot;");
+                    break;
+                case '\'':
+                    escaped.append("&#39;");
+                    break;
+                default:
+                    escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * Encodes clean html for a spilled capture straight into the response, measuring it first instead of
+     * holding a second copy of the page on the heap. A compressed body has no length, so it is only measured
+     * when the ETag needs the same pass anyway.
+     */
+    private void writeLarge(String cleanHtml, HttpServletResponseInvocationHandler invocationHandler, ServletResponse response) throws IOException {
+        String characterEncoding = invocationHandler.getCharacterEncoding();
+        long length = -1;
+        ContentHash etagHash = null;
+        if (etags) {
+            ContentHash.Hasher hasher = ContentHash.hasher();
+            cleanHtmlEncoder.encode(cleanHtml, characterEncoding, hasher);
+            length = hasher.getLength();
+            etagHash = hasher.toContentHash();
+        } else if (invocationHandler.getResponseCompressor() == null) {
+            length = cleanHtmlEncoder.encodedLength(cleanHtml, characterEncoding);
+        }
+        OutputStream body = openBody(invocationHandler, response, length, etagHash);
+        if (body != null) {
+            try {
+                cleanHtmlEncoder.encode(cleanHtml, characterEncoding, body);
+                finishBody(invocationHandler, body);
+            } finally {
+                endBody(invocationHandler, body);
+            }
+        }
+    }
+
+    private void rejectOverBudget(HttpServletResponse response) throws IOException {
+        metrics.recordRejected();
+        log.warn(OVER_BUDGET);
+        if (!response.isCommitted()) {
+            response.sendError(captureOverflowStatus);
+        }
+    }
+
+    private void sanitizeFragments(HttpServletResponseInvocationHandler invocationHandler, ServletResponse response, String policyFile, String fragmentNonce) throws IOException {
+        long start = System.nanoTime();
+        Policy policy = policyFileLoader.load(policyFile);
+        long nanos = System.nanoTime() - start;
+        metrics.recordPolicyLoad(nanos);
+        time(invocationHandler, RequestTimings.POLICY, nanos);
+        try {
+            start = System.nanoTime();
+            FragmentSanitizer fragmentSanitizer = new FragmentSanitizer(antiSamyPool, policy, cleanHtmlEncoder, fragmentBegin, fragmentEnd, fragmentNonce, invocationHandler.getCharacterEncoding());
+            CleanResults cleanResults = fragmentSanitizer.sanitize(invocationHandler.getOutput());
+            nanos = System.nanoTime() - start;
+            metrics.recordScan(nanos);
+            time(invocationHandler, RequestTimings.SCAN, nanos);
+            log(cleanResults);
+            start = System.nanoTime();
+            ContentHash etagHash = null;
+            if (etags) {
+                ContentHash.Hasher hasher = ContentHash.hasher();
+                fragmentSanitizer.writeTo(invocationHandler.getOutput(), hasher);
+                etagHash = hasher.toContentHash();
+            }
+            OutputStream body = openBody(invocationHandler, response, fragmentSanitizer.getContentLength(), etagHash);
+            if (body != null) {
+                try {
+                    fragmentSanitizer.writeTo(invocationHandler.getOutput(), body);
+                    finishBody(invocationHandler, body);
+                } finally {
+                    endBody(invocationHandler, body);
+                }
+            }
+            nanos = System.nanoTime() - start;
+            metrics.recordWrite(nanos);
+            time(invocationHandler, RequestTimings.WRITE, nanos);
+            metrics.recordSanitized(fragmentSanitizer.getScannedBytes());
+        } catch (ScanException e) {
+            metrics.recordFailed();
+            log.error(GENERIC_ERROR, e);
+        } catch (PolicyException e) {
+            metrics.recordFailed();
+            log.error(GENERIC_ERROR, e);
+        }
+    }
+
+    private CleanResults scan(HttpServletResponseInvocationHandler invocationHandler, String policyFile, String circuit, long policyVersion, Policy policy) throws ScanException, PolicyException {
+        long start = System.nanoTime();
+        ContentHash contentHash = null;
+        CleanResults cleanResults = null;
+        if (sanitizedOutputCache != null) {
+            contentHash = invocationHandler.getContentHash();
+            cleanResults = sanitizedOutputCache.get(contentHash, invocationHandler.getCharacterEncoding(), policyFile, policyVersion);
+        }
+        if (cleanResults == null) {
+            CircuitBreaker circuitBreaker = circuitBreaker(circuit);
+            if (circuitBreaker != null && !circuitBreaker.allowScan()) {
+                throw new ScanBudgetExceededException(MessageFormat.format(CIRCUIT_OPEN, circuit));
+            }
+            CachingScan scan = new CachingScan(invocationHandler.getContents(), policy, contentHash, invocationHandler.getCharacterEncoding(), policyFile, policyVersion);
+            long scanStart = System.nanoTime();
+            try {
+                cleanResults = scanTimeLimiter == null ? scan.call() : scanTimeLimiter.scan(scan);
+            } finally {
+                if (circuitBreaker != null) {
+                    circuitBreaker.record(System.nanoTime() - scanStart);
+                }
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        metrics.recordScan(nanos);
+        time(invocationHandler, RequestTimings.SCAN, nanos);
+        return cleanResults;
+    }
+
+    private CircuitBreaker circuitBreaker(String circuit) {
+        if (circuitP99 <= 0) {
+            return null;
+        }
+        CircuitBreaker circuitBreaker = circuitBreakers.get(circuit);
+        if (circuitBreaker == null) {
+            circuitBreaker = new CircuitBreaker(circuit, circuitP99, circuitWindow, circuitOpenTime);
+            CircuitBreaker existing = circuitBreakers.putIfAbsent(circuit, circuitBreaker);
+            if (existing != null) {
+                circuitBreaker = existing;
+            }
+        }
+        return circuitBreaker;
+    }
+
+    private void finish(HttpServletResponseInvocationHandler invocationHandler, StreamingSanitizer streamingSanitizer) throws IOException {
+        CleanResults cleanResults = streamingSanitizer.finish();
+        metrics.recordScan(streamingSanitizer.getScanNanos());
+        metrics.recordWrite(streamingSanitizer.getWriteNanos());
+        time(invocationHandler, RequestTimings.SCAN, streamingSanitizer.getScanNanos());
+        time(invocationHandler, RequestTimings.WRITE, streamingSanitizer.getWriteNanos());
+        if (streamingSanitizer.isBuffered()) {
+            metrics.recordBufferedStream();
+        }
+        if (streamingSanitizer.isOverBudget()) {
+            rejectOverBudget(invocationHandler.getDelegate());
+        } else if (streamingSanitizer.getFailure() != null) {
+            metrics.recordFailed();
+            log.error(GENERIC_ERROR, streamingSanitizer.getFailure());
+        } else {
+            metrics.recordSanitized(streamingSanitizer.getInputBytes());
+            log(cleanResults);
+        }
+    }
+
+    private void log(CleanResults cleanResults) {
+        if (logSampleRate <= 0 || loggedRequests.incrementAndGet() % logSampleRate != 0 || !log.isInfoEnabled()) {
+            return;
+        }
+        log.info("Number of Errors: " + cleanResults.getNumberOfErrors());
+        if (log.isDebugEnabled()) {
+            log.debug("Errors found: ");
+            List errors = cleanResults.getErrorMessages();
+            for (int i = 0; i < errors.size(); i++) {
+                log.debug("\t" + (i + 1) + ". " + errors.get(i));
+            }
+        }
+        log.info("Scan time (in seconds): " + cleanResults.getScanTime());
+    }
+
+    /**
+     * Scans a body that was already decoded, so a scan that outlives its time limit never reads a released
+     * capture. The result is cached even when nobody waits for it anymore.
+     */
+    private class CachingScan implements Callable<CleanResults> {
+        private final String html;
+        private final Policy policy;
+        private final ContentHash contentHash;
+        private final String characterEncoding;
+        private final String policyFile;
+        private final long policyVersion;
+
+        private CachingScan(String html, Policy policy, ContentHash contentHash, String characterEncoding, String policyFile, long policyVersion) {
+            this.html = html;
+            this.policy = policy;
+            this.contentHash = contentHash;
+            this.characterEncoding = characterEncoding;
+            this.policyFile = policyFile;
+            this.policyVersion = policyVersion;
+        }
+
+        public CleanResults call() throws ScanException, PolicyException {
+            CleanResults cleanResults;
+            if (parallelSanitizer != null && html.length() >= parallelThreshold) {
+                metrics.recordParallel();
+                cleanResults = parallelSanitizer.scan(html, policy);
+            } else {
+                cleanResults = antiSamyPool.scan(html, policy);
+            }
+            if (sanitizedOutputCache != null) {
+                sanitizedOutputCache.put(contentHash, characterEncoding, policyFile, policyVersion, cleanResults);
+            }
+            return cleanResults;
+        }
+    }
+
+    /**
+     * Loads the policy of a streamed response once its content type is known to be sanitized.
+     */
+    private class StreamingSanitizerFactory implements StreamingSanitizer.Factory {
+        private final HttpServletResponseInvocationHandler invocationHandler;
+        private final ServletResponse response;
+        private final String policyFile;
+
+        private StreamingSanitizerFactory(HttpServletResponseInvocationHandler invocationHandler, ServletResponse response, String policyFile) {
+            this.invocationHandler = invocationHandler;
+            this.response = response;
+            this.policyFile = policyFile;
+        }
+
+        public StreamingSanitizer build() {
+            long start = System.nanoTime();
+            Policy policy = policyFileLoader.load(policyFile);
+            long nanos = System.nanoTime() - start;
+            metrics.recordPolicyLoad(nanos);
+            time(invocationHandler, RequestTimings.POLICY, nanos);
+            StreamingSanitizer streamingSanitizer = new StreamingSanitizer(antiSamyPool, policy, response, cleanHtmlEncoder, streamingChunkSize,
+                    streamingMaxPending > 0 ? streamingMaxPending : streamingChunkSize * StreamingSanitizer.DEFAULT_MAX_PENDING_CHUNKS);
+            streamingSanitizer.setCaptureBudget(httpResponseInvocationHandlerFactory.getCaptureBudget());
+            return streamingSanitizer;
+        }
+    }
+
+    /**
+     * Scans a captured body on a {@link ScanExecutor} thread, the handler's buffer is released once it is written.
+     */
+    private class ScanTask implements Runnable {
+        private final HttpServletResponseInvocationHandler invocationHandler;
+        private final ServletResponse response;
+        private final String policyFile;
+        private final String circuit;
+        private final String fragmentNonce;
+
+        private ScanTask(HttpServletResponseInvocationHandler invocationHandler, ServletResponse response, String policyFile, String circuit, String fragmentNonce) {
+            this.invocationHandler = invocationHandler;
+            this.response = response;
+            this.policyFile = policyFile;
+            this.circuit = circuit;
+            this.fragmentNonce = fragmentNonce;
+        }
+
+        public void run() {
+            try {
+                if (invocationHandler.isAsyncEnded()) {
+                    metrics.recordFailed();
+                    log.warn(ASYNC_ENDED);
+                } else if (fragmentNonce != null) {
+                    sanitizeFragments(invocationHandler, response, policyFile, fragmentNonce);
+                } else {
+                    sanitize(invocationHandler, response, policyFile, circuit);
+                }
+            } catch (IOException e) {
+                metrics.recordFailed();
+                log.error(GENERIC_ERROR, e);
+            } catch (RuntimeException e) {
+                metrics.recordFailed();
+                log.error(GENERIC_ERROR, e);
+            } finally {
+                invocationHandler.release();
+            }
+        }
+    }
+
+    private void registerMetrics(String filterName) {
+        try {
+            ObjectName name = new ObjectName(MessageFormat.format(METRICS_OBJECT_NAME, ObjectName.quote(isBlank(filterName) ? DEFAULT_FILTER_NAME : filterName)));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+            metricsName = name;
+        } catch (JMException e) {
+            log.warn(METRICS_NOT_REGISTERED, e);
+        }
+    }
+
+    private PhaseListener createPhaseListener(String className) throws ServletException {
+        try {
+            return (PhaseListener) Class.forName(className).newInstance();
+        } catch (Exception e) {
+            throw new ServletException(MessageFormat.format(PHASE_LISTENER_NOT_CREATED, className), e);
+        }
+    }
+
+    private void unregisterMetrics() {
+        if (metricsName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+            } catch (JMException e) {
+                log.warn(METRICS_NOT_REGISTERED, e);
+            }
+            metricsName = null;
+        }
     }
 
     private boolean isBlank(String value) {
@@ -116,8 +1151,12 @@ public class AntiSamyFilter implements Filter {
         this.httpResponseInvocationHandlerFactory = httpResponseInvocationHandlerFactory;
     }
 
-    protected void setAntiSamy(AntiSamy antiSamy) {
-        this.antiSamy = antiSamy;
+    protected void setAntiSamyPoolFactory(AntiSamyPoolFactory antiSamyPoolFactory) {
+        this.antiSamyPoolFactory = antiSamyPoolFactory;
+    }
+
+    protected void setAntiSamyPool(AntiSamyPool antiSamyPool) {
+        this.antiSamyPool = antiSamyPool;
     }
 
     protected void setLog(Log log) {
@@ -128,6 +1167,113 @@ public class AntiSamyFilter implements Filter {
         this.policyFileLoader = policyFileLoader;
     }
 
+    public void setPolicyRouter(PolicyRouter policyRouter) {
+        this.policyRouter = policyRouter;
+    }
+
+    public PolicyRouter getPolicyRouter() {
+        return policyRouter;
+    }
+
+    /**
+     * @param responseCompressor compresses sanitized bodies for clients that accept gzip, null to never compress
+     */
+    public void setResponseCompressor(ResponseCompressor responseCompressor) {
+        this.responseCompressor = responseCompressor;
+    }
+
+    public ResponseCompressor getResponseCompressor() {
+        return responseCompressor;
+    }
+
+    /**
+     * @param parallelSanitizer scans bodies of at least the threshold's number of characters on several cores, null to scan every body on one
+     */
+    protected void setParallelSanitizer(ParallelSanitizer parallelSanitizer, int parallelThreshold) {
+        this.parallelSanitizer = parallelSanitizer;
+        this.parallelThreshold = parallelThreshold;
+    }
+
+    public ParallelSanitizer getParallelSanitizer() {
+        return parallelSanitizer;
+    }
+
+    public int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    public void setETags(boolean etags) {
+        this.etags = etags;
+    }
+
+    public boolean isETags() {
+        return etags;
+    }
+
+    /**
+     * @param serverTiming sends the phase timings of sanitized responses in a Server-Timing header
+     */
+    public void setServerTiming(boolean serverTiming) {
+        this.serverTiming = serverTiming;
+    }
+
+    public boolean isServerTiming() {
+        return serverTiming;
+    }
+
+    /**
+     * Requests are only timed while server timing is on or a listener is registered.
+     */
+    public synchronized void addPhaseListener(PhaseListener phaseListener) {
+        PhaseListener[] listeners = new PhaseListener[phaseListeners.length + 1];
+        System.arraycopy(phaseListeners, 0, listeners, 0, phaseListeners.length);
+        listeners[phaseListeners.length] = phaseListener;
+        phaseListeners = listeners;
+    }
+
+    public synchronized void removePhaseListener(PhaseListener phaseListener) {
+        List<PhaseListener> listeners = new ArrayList<PhaseListener>(Arrays.asList(phaseListeners));
+        if (listeners.remove(phaseListener)) {
+            phaseListeners = listeners.toArray(new PhaseListener[listeners.size()]);
+        }
+    }
+
+    public void setSanitizeRequests(boolean sanitizeRequests) {
+        this.sanitizeRequests = sanitizeRequests;
+    }
+
+    public boolean isSanitizeRequests() {
+        return sanitizeRequests;
+    }
+
+    /**
+     * @param sanitizedHeaders comma separated names of the request headers that are sanitized along with the parameters
+     */
+    public void setSanitizedHeaders(String sanitizedHeaders) {
+        Set<String> names = new HashSet<String>();
+        for (String name : sanitizedHeaders.split(",")) {
+            if (name.trim().length() > 0) {
+                names.add(name.trim().toLowerCase());
+            }
+        }
+        this.sanitizedHeaders = names;
+    }
+
+    public Set<String> getSanitizedHeaders() {
+        return sanitizedHeaders;
+    }
+
+    /**
+     * @param sanitizedValues html to read sanitized request values as clean html, text to read them as its text
+     */
+    public void setSanitizedValues(String sanitizedValues) {
+        this.sanitizedValues = sanitizedValues;
+    }
+
+    public String getSanitizedValues() {
+        return sanitizedValues;
+    }
+
     public void setPolicyFile(String policyFile) {
         this.policyFile = policyFile;
     }
@@ -151,4 +1297,137 @@ public class AntiSamyFilter implements Filter {
     public String getPolicyFile() {
         return policyFile;
     }
+
+    public void setPolicyCheckInterval(long policyCheckInterval) {
+        this.policyCheckInterval = policyCheckInterval;
+    }
+
+    public long getPolicyCheckInterval() {
+        return policyCheckInterval;
+    }
+
+    public void setScanMode(String scanMode) {
+        this.scanMode = scanMode;
+    }
+
+    public String getScanMode() {
+        return scanMode;
+    }
+
+    public void setStreamingChunkSize(int streamingChunkSize) {
+        this.streamingChunkSize = streamingChunkSize;
+    }
+
+    public int getStreamingChunkSize() {
+        return streamingChunkSize;
+    }
+
+    /**
+     * @param streamingMaxPending characters collected without a boundary before a streamed body is buffered, 0 for 16 chunks
+     */
+    public void setStreamingMaxPending(int streamingMaxPending) {
+        this.streamingMaxPending = streamingMaxPending;
+    }
+
+    public int getStreamingMaxPending() {
+        return streamingMaxPending;
+    }
+
+    public void setFragmentDelimiters(String fragmentBegin, String fragmentEnd) {
+        this.fragmentBegin = fragmentBegin;
+        this.fragmentEnd = fragmentEnd;
+    }
+
+    public String getFragmentBegin() {
+        return fragmentBegin;
+    }
+
+    public String getFragmentEnd() {
+        return fragmentEnd;
+    }
+
+    public void setLogSampleRate(int logSampleRate) {
+        this.logSampleRate = logSampleRate;
+    }
+
+    public int getLogSampleRate() {
+        return logSampleRate;
+    }
+
+    /**
+     * @param plainTextDetector null scans every body, even when it is proven to hold no markup
+     */
+    protected void setPlainTextDetector(PlainTextDetector plainTextDetector) {
+        this.plainTextDetector = plainTextDetector;
+    }
+
+    protected void setAsyncScanner(AsyncScanner asyncScanner) {
+        this.asyncScanner = asyncScanner;
+    }
+
+    public AsyncScanner getAsyncScanner() {
+        return asyncScanner;
+    }
+
+    protected void setScanTimeLimiter(ScanTimeLimiter scanTimeLimiter) {
+        this.scanTimeLimiter = scanTimeLimiter;
+    }
+
+    public ScanTimeLimiter getScanTimeLimiter() {
+        return scanTimeLimiter;
+    }
+
+    /**
+     * @param p99Millis p99 scan latency over which a route's circuit opens, 0 for no circuit breakers
+     */
+    public void setCircuitBreaker(long p99Millis, int window, long openTimeMillis) {
+        this.circuitP99 = p99Millis;
+        this.circuitWindow = window;
+        this.circuitOpenTime = openTimeMillis;
+        circuitBreakers.clear();
+    }
+
+    /**
+     * @return the circuit breaker of every route that was scanned so far, by route pattern
+     */
+    public Map<String, CircuitBreaker> getCircuitBreakers() {
+        return circuitBreakers;
+    }
+
+    public void setScanFallback(String scanFallback, int scanFallbackStatus) {
+        this.scanFallback = scanFallback;
+        this.scanFallbackStatus = scanFallbackStatus;
+    }
+
+    public String getScanFallback() {
+        return scanFallback;
+    }
+
+    public AntiSamyFilterMetrics getMetrics() {
+        return metrics;
+    }
+
+    protected void setMetrics(AntiSamyFilterMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public SanitizedOutputCache getSanitizedOutputCache() {
+        return sanitizedOutputCache;
+    }
+
+    protected void setSanitizedOutputCache(SanitizedOutputCache sanitizedOutputCache) {
+        this.sanitizedOutputCache = sanitizedOutputCache;
+    }
+
+    public SegmentPool getSegmentPool() {
+        return httpResponseInvocationHandlerFactory.getSegmentPool();
+    }
+
+    public void setScannerPoolSize(int scannerPoolSize) {
+        this.scannerPoolSize = scannerPoolSize;
+    }
+
+    public int getScannerPoolSize() {
+        return scannerPoolSize;
+    }
 }
@@ -0,0 +1,260 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.owasp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class AntiSamyFilterMetrics implements AntiSamyFilterMetricsMXBean {
+    private final AtomicLong sanitizedRequests = new AtomicLong();
+    private final AtomicLong passedThroughRequests = new AtomicLong();
+    private final AtomicLong failedRequests = new AtomicLong();
+    private final AtomicLong bypassedRequests = new AtomicLong();
+    private final AtomicLong bypassedBytes = new AtomicLong();
+    private final AtomicLong rejectedRequests = new AtomicLong();
+    private final AtomicLong spilledRequests = new AtomicLong();
+    private final AtomicLong skippedRequests = new AtomicLong();
+    private final AtomicLong fallbackRequests = new AtomicLong();
+    private final AtomicLong inputOnlyRequests = new AtomicLong();
+    private final AtomicLong compressedResponses = new AtomicLong();
+    private final AtomicLong notModifiedResponses = new AtomicLong();
+    private final AtomicLong parallelScans = new AtomicLong();
+    private final AtomicLong bufferedStreams = new AtomicLong();
+    private final AtomicLong scannedBytes = new AtomicLong();
+    private final AtomicLong passedThroughBytes = new AtomicLong();
+    private final LatencyHistogram chain = new LatencyHistogram();
+    private final LatencyHistogram policyLoad = new LatencyHistogram();
+    private final LatencyHistogram scan = new LatencyHistogram();
+    private final LatencyHistogram write = new LatencyHistogram();
+    private final AtomicLong firstRequestNanos = new AtomicLong(-1);
+    private volatile long warmUpNanos;
+    private volatile long warmUpScans;
+    private volatile CaptureBudget captureBudget;
+
+    public void setCaptureBudget(CaptureBudget captureBudget) {
+        this.captureBudget = captureBudget;
+    }
+
+    public void recordSanitized(long bytes) {
+        sanitizedRequests.incrementAndGet();
+        scannedBytes.addAndGet(bytes);
+    }
+
+    public void recordPassedThrough(long bytes) {
+        passedThroughRequests.incrementAndGet();
+        passedThroughBytes.addAndGet(bytes);
+    }
+
+    public void recordBypassed(long bytes) {
+        bypassedRequests.incrementAndGet();
+        bypassedBytes.addAndGet(bytes);
+    }
+
+    public void recordRejected() {
+        rejectedRequests.incrementAndGet();
+    }
+
+    public void recordSpilled() {
+        spilledRequests.incrementAndGet();
+    }
+
+    public void recordSkipped() {
+        skippedRequests.incrementAndGet();
+    }
+
+    public void recordFallback() {
+        fallbackRequests.incrementAndGet();
+    }
+
+    public void recordInputOnly() {
+        inputOnlyRequests.incrementAndGet();
+    }
+
+    public void recordCompressed() {
+        compressedResponses.incrementAndGet();
+    }
+
+    public void recordNotModified() {
+        notModifiedResponses.incrementAndGet();
+    }
+
+    public void recordParallel() {
+        parallelScans.incrementAndGet();
+    }
+
+    public void recordBufferedStream() {
+        bufferedStreams.incrementAndGet();
+    }
+
+    public void recordFailed() {
+        failedRequests.incrementAndGet();
+    }
+
+    public void recordWarmUp(long nanos, long scans) {
+        warmUpNanos = nanos;
+        warmUpScans = scans;
+    }
+
+    /**
+     * Keeps the duration of the first request only, later calls cost a single read.
+     */
+    public void recordRequest(long nanos) {
+        if (firstRequestNanos.get() < 0) {
+            firstRequestNanos.compareAndSet(-1, nanos);
+        }
+    }
+
+    public void recordChain(long nanos) {
+        chain.record(nanos);
+    }
+
+    public void recordPolicyLoad(long nanos) {
+        policyLoad.record(nanos);
+    }
+
+    public void recordScan(long nanos) {
+        scan.record(nanos);
+    }
+
+    public void recordWrite(long nanos) {
+        write.record(nanos);
+    }
+
+    public long getSanitizedRequests() {
+        return sanitizedRequests.get();
+    }
+
+    public long getPassedThroughRequests() {
+        return passedThroughRequests.get();
+    }
+
+    public long getFailedRequests() {
+        return failedRequests.get();
+    }
+
+    public long getBypassedRequests() {
+        return bypassedRequests.get();
+    }
+
+    public long getBypassedBytes() {
+        return bypassedBytes.get();
+    }
+
+    public long getRejectedRequests() {
+        return rejectedRequests.get();
+    }
+
+    public long getSpilledRequests() {
+        return spilledRequests.get();
+    }
+
+    public long getSkippedRequests() {
+        return skippedRequests.get();
+    }
+
+    public long getFallbackRequests() {
+        return fallbackRequests.get();
+    }
+
+    public long getInputOnlyRequests() {
+        return inputOnlyRequests.get();
+    }
+
+    public long getCompressedResponses() {
+        return compressedResponses.get();
+    }
+
+    public long getNotModifiedResponses() {
+        return notModifiedResponses.get();
+    }
+
+    public long getParallelScans() {
+        return parallelScans.get();
+    }
+
+    public long getBufferedStreams() {
+        return bufferedStreams.get();
+    }
+
+    public long getCapturedBytes() {
+        CaptureBudget budget = captureBudget;
+        return budget == null ? 0 : budget.getUsedBytes();
+    }
+
+    public long getSpilledBytes() {
+        CaptureBudget budget = captureBudget;
+        return budget == null ? 0 : budget.getSpilledBytes();
+    }
+
+    public long getWarmUpMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(warmUpNanos);
+    }
+
+    public long getWarmUpScans() {
+        return warmUpScans;
+    }
+
+    public long getFirstRequestMillis() {
+        long nanos = firstRequestNanos.get();
+        return nanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    public long getScannedBytes() {
+        return scannedBytes.get();
+    }
+
+    public long getPassedThroughBytes() {
+        return passedThroughBytes.get();
+    }
+
+    public LatencySnapshot getChainLatency() {
+        return chain.snapshot();
+    }
+
+    public LatencySnapshot getPolicyLoadLatency() {
+        return policyLoad.snapshot();
+    }
+
+    public LatencySnapshot getScanLatency() {
+        return scan.snapshot();
+    }
+
+    public LatencySnapshot getWriteLatency() {
+        return write.snapshot();
+    }
+
+    public void reset() {
+        sanitizedRequests.set(0);
+        passedThroughRequests.set(0);
+        failedRequests.set(0);
+        bypassedRequests.set(0);
+        bypassedBytes.set(0);
+        rejectedRequests.set(0);
+        spilledRequests.set(0);
+        skippedRequests.set(0);
+        fallbackRequests.set(0);
+        inputOnlyRequests.set(0);
+        compressedResponses.set(0);
+        notModifiedResponses.set(0);
+        parallelScans.set(0);
+        bufferedStreams.set(0);
+        scannedBytes.set(0);
+        passedThroughBytes.set(0);
+        chain.reset();
+        policyLoad.reset();
+        scan.reset();
+        write.reset();
+    }
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.owasp;
+
+/**
+ * Management interface of the filter's metrics, registered as
+ * <code>org.owasp:type=AntiSamyFilter,name=&lt;filter-name&gt;</code>. Latencies are in microseconds.
+ */
+public interface AntiSamyFilterMetricsMXBean {
+    long getSanitizedRequests();
+
+    long getPassedThroughRequests();
+
+    long getFailedRequests();
+
+    /**
+     * @return the number of bodies written without a scan because they held no markup
+     */
+    long getBypassedRequests();
+
+    long getBypassedBytes();
+
+    /**
+     * @return the number of responses rejected because they went over the capture budget
+     */
+    long getRejectedRequests();
+
+    /**
+     * @return the number of responses whose capture was spilled to a temp file
+     */
+    long getSpilledRequests();
+
+    /**
+     * @return the number of requests routed around the filter by a skip route
+     */
+    long getSkippedRequests();
+
+    /**
+     * @return the number of responses answered with the scan fallback, because their scan timed out or their
+     *         route's circuit was open
+     */
+    long getFallbackRequests();
+
+    /**
+     * @return the number of requests on input only routes, whose parameters were sanitized instead of the response
+     */
+    long getInputOnlyRequests();
+
+    /**
+     * @return the number of sanitized responses sent gzip compressed
+     */
+    long getCompressedResponses();
+
+    /**
+     * @return the number of sanitized responses answered with a 304 because the client's copy was current
+     */
+    long getNotModifiedResponses();
+
+    /**
+     * @return the number of bodies large enough to be split and scanned on several cores
+     */
+    long getParallelScans();
+
+    /**
+     * @return the number of streamed bodies without a boundary within the maximum pending characters, the rest of them was buffered
+     */
+    long getBufferedStreams();
+
+    /**
+     * @return bytes currently held in capture segments by in-flight responses
+     */
+    long getCapturedBytes();
+
+    /**
+     * @return bytes currently spilled to temp files by in-flight responses
+     */
+    long getSpilledBytes();
+
+    /**
+     * @return how long the warm up scans at init took in milliseconds, 0 without a warm up
+     */
+    long getWarmUpMillis();
+
+    long getWarmUpScans();
+
+    /**
+     * @return how long the first request through the filter took in milliseconds, -1 until it has finished
+     */
+    long getFirstRequestMillis();
+
+    long getScannedBytes();
+
+    long getPassedThroughBytes();
+
+    /**
+     * @return in microseconds, how long the rest of the filter chain took to produce a response, which includes
+     *         the application itself, capturing what it wrote and scanning streamed chunks along the way
+     */
+    LatencySnapshot getChainLatency();
+
+    /**
+     * @return in microseconds, how long getting the policy of a response took
+     */
+    LatencySnapshot getPolicyLoadLatency();
+
+    /**
+     * @return in microseconds, how long scanning a buffered response took, cache lookups included
+     */
+    LatencySnapshot getScanLatency();
+
+    /**
+     * @return in microseconds, how long writing a clean response to the client took
+     */
+    LatencySnapshot getWriteLatency();
+
+    void reset();
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.owasp;
+
+import org.owasp.validator.html.AntiSamy;
+import org.owasp.validator.html.CleanResults;
+import org.owasp.validator.html.Policy;
+import org.owasp.validator.html.PolicyException;
+import org.owasp.validator.html.ScanException;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Hands out AntiSamy instances that are configured with the encodings once, when they are created,
+ * so nothing is mutated while scanning. When every pooled instance is busy a new one is created
+ * instead of waiting, and it is only kept if there is room for it in the pool.
+ */
+public class AntiSamyPool {
+    private final BlockingQueue<AntiSamy> idle;
+    private final String inputEncoding;
+    private final String outputEncoding;
+
+    public AntiSamyPool(int size, String inputEncoding, String outputEncoding) {
+        if (size < 1) {
+            throw new IllegalArgumentException("The pool size must be at least 1");
+        }
+        this.idle = new ArrayBlockingQueue<AntiSamy>(size);
+        this.inputEncoding = inputEncoding;
+        this.outputEncoding = outputEncoding;
+        for (int i = 0; i < size; i++) {
+            idle.offer(create());
+        }
+    }
+
+    public CleanResults scan(String html, Policy policy) throws ScanException, PolicyException {
+        AntiSamy antiSamy = idle.poll();
+        if (antiSamy == null) {
+            antiSamy = create();
+        }
+        try {
+            return antiSamy.scan(html, policy);
+        } finally {
+            idle.offer(antiSamy);
+        }
+    }
+
+    public String getInputEncoding() {
+        return inputEncoding;
+    }
+
+    public String getOutputEncoding() {
+        return outputEncoding;
+    }
+
+    protected AntiSamy create() {
+        AntiSamy antiSamy = new AntiSamy();
+        antiSamy.setInputEncoding(inputEncoding);
+        antiSamy.setOutputEncoding(outputEncoding);
+        return antiSamy;
+    }
+}
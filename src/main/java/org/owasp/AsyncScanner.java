@@ -0,0 +1,117 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.owasp;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import java.io.IOException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Hands a scan to the {@link ScanExecutor} and completes the response through the servlet 3 async support
+ * once the scan is done. This is the only class touching the servlet 3 API, the filter only loads it after
+ * {@link #isAvailable()} found that API, so the filter keeps working on servlet 2.5 containers.
+ */
+public class AsyncScanner {
+    private static final String ASYNC_CONTEXT_CLASS = "javax.servlet.AsyncContext";
+
+    private final ScanExecutor scanExecutor;
+    private final long timeout;
+
+    public AsyncScanner(ScanExecutor scanExecutor, long timeout) {
+        this.scanExecutor = scanExecutor;
+        this.timeout = timeout;
+    }
+
+    public static boolean isAvailable() {
+        try {
+            Class.forName(ASYNC_CONTEXT_CLASS, false, ServletRequest.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * The timeout is always set, 0 turns the container's default off rather than leaving a slow scan to it.
+     * Once the container times the request out, fails it or completes it, ended is set; the scan must check
+     * it before writing, and the request is only completed here while it is still unset.
+     *
+     * @return false when the request can't go async, the caller should then run the scan itself
+     */
+    public boolean dispatch(ServletRequest request, ServletResponse response, final Runnable scan, final AtomicBoolean ended) {
+        if (!request.isAsyncSupported() || request.isAsyncStarted()) {
+            return false;
+        }
+        final AsyncContext asyncContext = request.startAsync(request, response);
+        asyncContext.addListener(new EndListener(ended));
+        asyncContext.setTimeout(timeout);
+        Runnable completingScan = new Runnable() {
+            public void run() {
+                try {
+                    scan.run();
+                } finally {
+                    if (ended.compareAndSet(false, true)) {
+                        asyncContext.complete();
+                    }
+                }
+            }
+        };
+        try {
+            scanExecutor.execute(completingScan);
+        } catch (RejectedExecutionException e) {
+            completingScan.run();
+        }
+        return true;
+    }
+
+    public void shutdown() {
+        scanExecutor.shutdown();
+    }
+
+    public ScanExecutor getScanExecutor() {
+        return scanExecutor;
+    }
+
+    private static class EndListener implements AsyncListener {
+        private final AtomicBoolean ended;
+
+        private EndListener(AtomicBoolean ended) {
+            this.ended = ended;
+        }
+
+        public void onComplete(AsyncEvent event) throws IOException {
+            ended.set(true);
+        }
+
+        public void onTimeout(AsyncEvent event) throws IOException {
+            ended.set(true);
+        }
+
+        public void onError(AsyncEvent event) throws IOException {
+            ended.set(true);
+        }
+
+        public void onStartAsync(AsyncEvent event) throws IOException {
+        }
+    }
+}
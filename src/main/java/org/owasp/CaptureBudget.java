@@ -0,0 +1,176 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.owasp;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Filter wide limit on the bytes held in capture segments by all in-flight responses, plus a limit per
+ * response. Segments are accounted for as they are taken from the pool, so the limit holds at segment
+ * granularity. Without limits it only keeps count, for the gauge in the metrics.
+ */
+public class CaptureBudget {
+    public static final String WAIT = "wait";
+    public static final String SPILL = "spill";
+    public static final String FAIL = "fail";
+
+    private final long maxBytes;
+    private final long maxResponseBytes;
+    private final String overflowAction;
+    private final long waitNanos;
+    private File spillDirectory;
+    private long spillThreshold = Long.MAX_VALUE;
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final AtomicLong spilledBytes = new AtomicLong();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final Object lock = new Object();
+
+    public CaptureBudget() {
+        this(Long.MAX_VALUE, Long.MAX_VALUE, FAIL, 0, null);
+    }
+
+    /**
+     * @param overflowAction what a response that would go over a limit does: wait for other responses to
+     *                       release their segments (only for the filter wide limit, for at most waitMillis),
+     *                       spill to a temp file in spillDirectory or fail
+     */
+    public CaptureBudget(long maxBytes, long maxResponseBytes, String overflowAction, long waitMillis, File spillDirectory) {
+        if (!WAIT.equals(overflowAction) && !SPILL.equals(overflowAction) && !FAIL.equals(overflowAction)) {
+            throw new IllegalArgumentException("Unknown overflow action (" + overflowAction + "), expected one of: " + WAIT + ", " + SPILL + ", " + FAIL);
+        }
+        this.maxBytes = maxBytes;
+        this.maxResponseBytes = maxResponseBytes;
+        this.overflowAction = overflowAction;
+        this.waitNanos = TimeUnit.MILLISECONDS.toNanos(waitMillis);
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * @param responseBytes bytes the response already holds, including the ones it spilled
+     * @return false when the segment can't be held in memory, the caller then spills or fails depending on
+     *         {@link #isSpilling()}
+     */
+    public boolean acquire(long responseBytes, int bytes) {
+        if (responseBytes + bytes > maxResponseBytes) {
+            return false;
+        }
+        if (tryAcquire(bytes)) {
+            return true;
+        }
+        return WAIT.equals(overflowAction) && await(bytes);
+    }
+
+    public void release(long bytes) {
+        if (bytes == 0) {
+            return;
+        }
+        usedBytes.addAndGet(-bytes);
+        if (waiting.get() > 0) {
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    public void spilled(long bytes) {
+        spilledBytes.addAndGet(bytes);
+    }
+
+    public void releaseSpilled(long bytes) {
+        spilledBytes.addAndGet(-bytes);
+    }
+
+    /**
+     * @param spillThreshold bytes a response holds in memory before the rest of it is spilled, whatever the
+     *                       overflow action
+     */
+    public void setSpillThreshold(long spillThreshold) {
+        this.spillThreshold = spillThreshold;
+    }
+
+    public long getSpillThreshold() {
+        return spillThreshold;
+    }
+
+    public void setSpillDirectory(File spillDirectory) {
+        this.spillDirectory = spillDirectory;
+    }
+
+    public boolean isSpilling() {
+        return SPILL.equals(overflowAction);
+    }
+
+    public File getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    public long getSpilledBytes() {
+        return spilledBytes.get();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getMaxResponseBytes() {
+        return maxResponseBytes;
+    }
+
+    public String getOverflowAction() {
+        return overflowAction;
+    }
+
+    private boolean tryAcquire(int bytes) {
+        while (true) {
+            long used = usedBytes.get();
+            if (used + bytes > maxBytes) {
+                return false;
+            }
+            if (usedBytes.compareAndSet(used, used + bytes)) {
+                return true;
+            }
+        }
+    }
+
+    private boolean await(int bytes) {
+        long deadline = System.nanoTime() + waitNanos;
+        synchronized (lock) {
+            waiting.incrementAndGet();
+            try {
+                while (!tryAcquire(bytes)) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    lock.wait(TimeUnit.NANOSECONDS.toMillis(remaining) + 1);
+                }
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                waiting.decrementAndGet();
+            }
+        }
+    }
+}
@@ -12,26 +12,18 @@
  * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
 
-package org.owasp;
-
-import java.io.OutputStream;
-import java.io.PrintWriter;
 
+package org.owasp;
 
-public class EagerFlushingPrintWriter extends PrintWriter {
-    public EagerFlushingPrintWriter(OutputStream out) {
-        super(out);
-    }
+import java.io.IOException;
 
-    @Override
-    public void write(String s, int off, int len) {
-        super.write(s, off, len);
-        flush();
-    }
+/**
+ * Thrown at the servlet writing a response that went over the {@link CaptureBudget}.
+ */
+public class CaptureBudgetExceededException extends IOException {
+    private static final long serialVersionUID = 1L;
 
-    @Override
-    public void write(char cbuf[], int off, int len) {
-        super.write(cbuf, off, len);
-        flush();
+    public CaptureBudgetExceededException(String message) {
+        super(message);
     }
 }
@@ -0,0 +1,165 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.owasp;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Captures everything written to the response body, every other call goes straight to the wrapped response.
+ * The content type and length are also handed to the capture, which uses them to decide whether the
+ * body has to be buffered at all, and a gzip or deflate content encoding to inflate the body while it is captured.
+ * Once the body goes straight to the wrapped response its content type no longer changes.
+ */
+public class CapturingHttpServletResponse extends HttpServletResponseWrapper {
+    private static final String CONTENT_TYPE = "Content-Type";
+    private static final String CONTENT_LENGTH = "Content-Length";
+    private static final String CONTENT_ENCODING = "Content-Encoding";
+
+    private final HttpServletResponseInvocationHandler capture;
+
+    public CapturingHttpServletResponse(HttpServletResponseInvocationHandler capture) {
+        super(capture.getDelegate());
+        this.capture = capture;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        return capture.getWriter();
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+        return capture.getOutputStream();
+    }
+
+    @Override
+    public void setContentType(String type) {
+        if (capture.setContentType(type)) {
+            super.setContentType(type);
+        }
+    }
+
+    @Override
+    public void setContentLength(int len) {
+        capture.setContentLength(len);
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+        if (CONTENT_LENGTH.equalsIgnoreCase(name)) {
+            setContentLengthHeader(value);
+        } else if (!CONTENT_ENCODING.equalsIgnoreCase(name) || !capture.setContentEncoding(value)) {
+            if (!CONTENT_TYPE.equalsIgnoreCase(name) || capture.setContentType(value)) {
+                super.setHeader(name, value);
+            }
+        }
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+        if (CONTENT_LENGTH.equalsIgnoreCase(name)) {
+            setContentLengthHeader(value);
+        } else if (!CONTENT_ENCODING.equalsIgnoreCase(name) || !capture.setContentEncoding(value)) {
+            if (!CONTENT_TYPE.equalsIgnoreCase(name) || capture.setContentType(value)) {
+                super.addHeader(name, value);
+            }
+        }
+    }
+
+    @Override
+    public void setIntHeader(String name, int value) {
+        if (CONTENT_LENGTH.equalsIgnoreCase(name)) {
+            capture.setContentLength(value);
+        } else {
+            super.setIntHeader(name, value);
+        }
+    }
+
+    @Override
+    public void addIntHeader(String name, int value) {
+        if (CONTENT_LENGTH.equalsIgnoreCase(name)) {
+            capture.setContentLength(value);
+        } else {
+            super.addIntHeader(name, value);
+        }
+    }
+
+    @Override
+    public void setStatus(int sc) {
+        super.setStatus(sc);
+        capture.setStatus(sc);
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public void setStatus(int sc, String sm) {
+        super.setStatus(sc, sm);
+        capture.setStatus(sc);
+    }
+
+    @Override
+    public void sendError(int sc) throws IOException {
+        super.sendError(sc);
+        capture.setStatus(sc);
+    }
+
+    @Override
+    public void sendError(int sc, String msg) throws IOException {
+        super.sendError(sc, msg);
+        capture.setStatus(sc);
+    }
+
+    @Override
+    public void sendRedirect(String location) throws IOException {
+        super.sendRedirect(location);
+        capture.setStatus(SC_FOUND);
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+        capture.flush();
+        if (capture.isPassThrough()) {
+            super.flushBuffer();
+        }
+    }
+
+    @Override
+    public void resetBuffer() {
+        super.resetBuffer();
+        capture.reset();
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        capture.setContentEncoding(null);
+        capture.setStatus(SC_OK);
+        capture.reset();
+    }
+
+    /**
+     * A length that isn't a number is dropped, the body is sent without one.
+     */
+    private void setContentLengthHeader(String value) {
+        try {
+            capture.setContentLengthLong(value == null ? -1 : Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            capture.setContentLengthLong(-1);
+        }
+    }
+}
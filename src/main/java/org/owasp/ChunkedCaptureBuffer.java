@@ -0,0 +1,340 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.owasp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects a response body in segments borrowed from a {@link SegmentPool}. Growing never copies what
+ * has already been written, and the contents can be read back as a stream or decoded straight out of
+ * the segments. {@link #release()} hands the segments back to the pool.
+ */
+public class ChunkedCaptureBuffer extends OutputStream {
+    private static final String OVER_BUDGET = "The captured response went over the capture budget";
+    private static final String TOO_LARGE = "The captured response is bigger than " + Integer.MAX_VALUE + " bytes";
+
+    private final SegmentPool pool;
+    private final CaptureBudget budget;
+    private final List<ByteBuffer> segments = new ArrayList<ByteBuffer>();
+    private ByteBuffer current;
+    private int size;
+    private int pooledSegments;
+    private SpillFile spillFile;
+    private boolean overBudget;
+
+    public ChunkedCaptureBuffer(SegmentPool pool) {
+        this(pool, null);
+    }
+
+    /**
+     * @param budget accounts for the segments taken from the pool, null for no accounting
+     */
+    public ChunkedCaptureBuffer(SegmentPool pool, CaptureBudget budget) {
+        this.pool = pool;
+        this.budget = budget;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (current == null || !current.hasRemaining()) {
+            nextSegment();
+        }
+        current.put((byte) b);
+        size++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (current == null || !current.hasRemaining()) {
+                nextSegment();
+            }
+            int count = Math.min(len, current.remaining());
+            current.put(b, off, count);
+            off += count;
+            len -= count;
+            size += count;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        writeTo(out, 0, size);
+    }
+
+    /**
+     * Writes the bytes in [from, to) without copying them out of the segments first.
+     */
+    public void writeTo(OutputStream out, int from, int to) throws IOException {
+        int segmentSize = pool.getSegmentSize();
+        byte[] transfer = null;
+        while (from < to) {
+            ByteBuffer segment = segments.get(from / segmentSize);
+            int offset = from % segmentSize;
+            int length = Math.min(segment.position(), offset + to - from) - offset;
+            if (segment.hasArray()) {
+                out.write(segment.array(), segment.arrayOffset() + offset, length);
+            } else {
+                if (transfer == null) {
+                    transfer = new byte[Math.min(to - from, 8192)];
+                }
+                ByteBuffer view = segment.duplicate();
+                ((Buffer) view).limit(offset + length).position(offset);
+                while (view.hasRemaining()) {
+                    int count = Math.min(view.remaining(), transfer.length);
+                    view.get(transfer, 0, count);
+                    out.write(transfer, 0, count);
+                }
+            }
+            from += length;
+        }
+    }
+
+    /**
+     * @return the index of the first occurrence of the pattern at or after from, or -1
+     */
+    public int indexOf(byte[] pattern, int from) {
+        int segmentSize = pool.getSegmentSize();
+        int last = size - pattern.length;
+        int i = Math.max(from, 0);
+        while (i <= last) {
+            ByteBuffer segment = segments.get(i / segmentSize);
+            int offset = i % segmentSize;
+            int limit = Math.min(segment.position(), offset + last - i + 1);
+            for (; offset < limit; offset++, i++) {
+                if (segment.get(offset) == pattern[0] && matches(pattern, i, segmentSize)) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    public InputStream getInputStream() {
+        return new SegmentInputStream();
+    }
+
+    public Reader getReader(String charsetName) throws UnsupportedEncodingException {
+        return new InputStreamReader(getInputStream(), charsetName);
+    }
+
+    /**
+     * Decodes the contents directly from the segments, without first collecting them into a single array.
+     */
+    public String toString(String charsetName) {
+        CharsetDecoder decoder = Charset.forName(charsetName).newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        CharBuffer chars = CharBuffer.allocate((int) (size * (double) decoder.maxCharsPerByte()) + 1);
+        ByteBuffer carry = null;
+        for (int i = 0; i < segments.size(); i++) {
+            ByteBuffer bytes = segments.get(i).duplicate();
+            // through Buffer, ByteBuffer only overrides flip() and friends from Java 9 on
+            ((Buffer) bytes).flip();
+            if (carry != null) {
+                ByteBuffer joined = ByteBuffer.allocate(carry.remaining() + bytes.remaining());
+                ((Buffer) joined.put(carry).put(bytes)).flip();
+                bytes = joined;
+            }
+            decoder.decode(bytes, chars, i == segments.size() - 1);
+            carry = bytes.hasRemaining() ? bytes : null;
+        }
+        if (segments.isEmpty()) {
+            decoder.decode(ByteBuffer.allocate(0), chars, true);
+        }
+        decoder.flush(chars);
+        ((Buffer) chars).flip();
+        return chars.toString();
+    }
+
+    /**
+     * Decodes the bytes in [from, to).
+     */
+    public String toString(String charsetName, int from, int to) throws UnsupportedEncodingException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(to - from);
+        try {
+            writeTo(bytes, from, to);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return new String(bytes.toByteArray(), charsetName);
+    }
+
+    public ContentHash contentHash() {
+        return ContentHash.of(segments, size);
+    }
+
+    public boolean isPlainText() {
+        return PlainTextDetector.isPlainText(segments);
+    }
+
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[size];
+        int offset = 0;
+        for (ByteBuffer segment : segments) {
+            ByteBuffer view = segment.duplicate();
+            ((Buffer) view).flip();
+            int length = view.remaining();
+            view.get(bytes, offset, length);
+            offset += length;
+        }
+        return bytes;
+    }
+
+    public void reset() {
+        release();
+    }
+
+    /**
+     * Fails the capture up front when the body is declared longer than it may become, every write fails then.
+     *
+     * @param length the declared length of the body
+     */
+    public void expect(long length) {
+        if (length > Integer.MAX_VALUE || (budget != null && !budget.isSpilling() && length > budget.getMaxResponseBytes())) {
+            overBudget = true;
+        }
+    }
+
+    /**
+     * @return true once a write went over the capture budget, every later write fails as well
+     */
+    public boolean isOverBudget() {
+        return overBudget;
+    }
+
+    public boolean isSpilled() {
+        return spillFile != null;
+    }
+
+    public void release() {
+        for (int i = 0; i < pooledSegments; i++) {
+            pool.release(segments.get(i));
+        }
+        if (budget != null) {
+            budget.release((long) pooledSegments * pool.getSegmentSize());
+        }
+        if (spillFile != null) {
+            if (budget != null) {
+                budget.releaseSpilled(spillFile.getMappedBytes());
+            }
+            spillFile.delete();
+            spillFile = null;
+        }
+        segments.clear();
+        pooledSegments = 0;
+        current = null;
+        size = 0;
+        overBudget = false;
+    }
+
+    private boolean matches(byte[] pattern, int at, int segmentSize) {
+        for (int k = 1; k < pattern.length; k++) {
+            int index = at + k;
+            if (segments.get(index / segmentSize).get(index % segmentSize) != pattern[k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void nextSegment() throws IOException {
+        if (overBudget) {
+            throw new CaptureBudgetExceededException(OVER_BUDGET);
+        }
+        long held = (long) segments.size() * pool.getSegmentSize();
+        if (held + pool.getSegmentSize() > Integer.MAX_VALUE) {
+            overBudget = true;
+            throw new CaptureBudgetExceededException(TOO_LARGE);
+        }
+        if (spillFile == null && (budget == null || (held < budget.getSpillThreshold() && budget.acquire(held, pool.getSegmentSize())))) {
+            current = pool.acquire();
+            pooledSegments++;
+        } else if (spillFile != null || held >= budget.getSpillThreshold() || budget.isSpilling()) {
+            if (spillFile == null) {
+                spillFile = new SpillFile(budget.getSpillDirectory(), pool.getSegmentSize());
+            }
+            long mapped = spillFile.getMappedBytes();
+            current = spillFile.nextSegment();
+            budget.spilled(spillFile.getMappedBytes() - mapped);
+        } else {
+            overBudget = true;
+            throw new CaptureBudgetExceededException(OVER_BUDGET);
+        }
+        segments.add(current);
+    }
+
+    private class SegmentInputStream extends InputStream {
+        private int segment;
+        private int position;
+
+        @Override
+        public int read() {
+            if (!advance()) {
+                return -1;
+            }
+            return segments.get(segment).get(position++) & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!advance()) {
+                return -1;
+            }
+            ByteBuffer view = segments.get(segment).duplicate();
+            int count = Math.min(len, view.position() - position);
+            ((Buffer) view).position(position);
+            view.get(b, off, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            if (segment >= segments.size()) {
+                return 0;
+            }
+            return segments.get(segment).position() - position;
+        }
+
+        private boolean advance() {
+            while (segment < segments.size() && position >= segments.get(segment).position()) {
+                segment++;
+                position = 0;
+            }
+            return segment < segments.size();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.owasp;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.text.MessageFormat;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stops scanning for a route while its scans are too slow. Scan latencies are collected in windows of a
+ * fixed number of scans, when the p99 of a window is over the threshold the circuit opens and scans are
+ * refused for the open time. After that a single probe scan is let through: the circuit closes again when
+ * the probe is fast enough and stays open for another period otherwise.
+ */
+public class CircuitBreaker {
+    public static final String CLOSED = "closed";
+    public static final String OPEN = "open";
+    public static final String HALF_OPEN = "half-open";
+
+    private static final int CLOSED_STATE = 0;
+    private static final int OPEN_STATE = 1;
+    private static final int HALF_OPEN_STATE = 2;
+    private static final String OPENED = "Opened the scan circuit of {0}, p99 scan latency of {1} ms is over {2} ms";
+    private static final String CLOSED_AGAIN = "Closed the scan circuit of {0}";
+
+    private final String name;
+    private final long thresholdNanos;
+    private final int windowSize;
+    private final long openNanos;
+    private final LatencyHistogram window = new LatencyHistogram();
+    private final AtomicInteger state = new AtomicInteger(CLOSED_STATE);
+    private final AtomicLong openings = new AtomicLong();
+    private volatile long openUntil;
+    private Log log = LogFactory.getLog(CircuitBreaker.class);
+
+    /**
+     * @param name identifies the circuit in the log
+     */
+    public CircuitBreaker(String name, long p99ThresholdMillis, int windowSize, long openMillis) {
+        this.name = name;
+        this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(p99ThresholdMillis);
+        this.windowSize = windowSize;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+    }
+
+    /**
+     * @return true when a scan may run, while the circuit is open only the probe scan may
+     */
+    public boolean allowScan() {
+        int current = state.get();
+        if (current == CLOSED_STATE) {
+            return true;
+        }
+        return current == OPEN_STATE && System.nanoTime() - openUntil >= 0 && state.compareAndSet(OPEN_STATE, HALF_OPEN_STATE);
+    }
+
+    /**
+     * @param nanos how long an allowed scan took, or how long it ran before it timed out
+     */
+    public void record(long nanos) {
+        int current = state.get();
+        if (current == HALF_OPEN_STATE) {
+            if (nanos <= thresholdNanos) {
+                if (state.compareAndSet(HALF_OPEN_STATE, CLOSED_STATE)) {
+                    log.info(MessageFormat.format(CLOSED_AGAIN, name));
+                }
+            } else {
+                open(HALF_OPEN_STATE);
+            }
+        } else if (current == CLOSED_STATE) {
+            window.record(nanos);
+            if (window.getCount() >= windowSize) {
+                evaluate();
+            }
+        }
+    }
+
+    public String getState() {
+        switch (state.get()) {
+            case OPEN_STATE:
+                return OPEN;
+            case HALF_OPEN_STATE:
+                return HALF_OPEN;
+            default:
+                return CLOSED;
+        }
+    }
+
+    /**
+     * @return how many times the circuit opened
+     */
+    public long getOpenings() {
+        return openings.get();
+    }
+
+    protected void setLog(Log log) {
+        this.log = log;
+    }
+
+    private synchronized void evaluate() {
+        if (window.getCount() < windowSize) {
+            return;
+        }
+        long p99Micros = window.snapshot().getP99();
+        window.reset();
+        if (TimeUnit.MICROSECONDS.toNanos(p99Micros) > thresholdNanos && open(CLOSED_STATE)) {
+            log.warn(MessageFormat.format(OPENED, name, TimeUnit.MICROSECONDS.toMillis(p99Micros), TimeUnit.NANOSECONDS.toMillis(thresholdNanos)));
+        }
+    }
+
+    private boolean open(int from) {
+        openUntil = System.nanoTime() + openNanos;
+        if (state.compareAndSet(from, OPEN_STATE)) {
+            openings.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+}
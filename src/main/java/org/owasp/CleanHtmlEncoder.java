@@ -0,0 +1,111 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.owasp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+
+/**
+ * Encodes clean html with the character encoding of the response. When that is the encoding AntiSamy
+ * serialized for, every character is known to be representable and the html is encoded directly.
+ * Otherwise characters the response encoding cannot represent are written as numeric character
+ * references instead of being replaced by a question mark.
+ */
+public class CleanHtmlEncoder {
+    private final String antiSamyOutputEncoding;
+
+    public CleanHtmlEncoder(String antiSamyOutputEncoding) {
+        this.antiSamyOutputEncoding = antiSamyOutputEncoding;
+    }
+
+    public byte[] encode(String html, String characterEncoding) throws UnsupportedEncodingException {
+        if (characterEncoding.equalsIgnoreCase(antiSamyOutputEncoding)) {
+            return html.getBytes(characterEncoding);
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream(html.length() + 16);
+        try {
+            encode(html, characterEncoding, output);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * Encodes through a small buffer straight into the stream, for html too large to hold encoded on the heap
+     * as well.
+     *
+     * @return the number of bytes written
+     */
+    public long encode(String html, String characterEncoding, OutputStream out) throws IOException {
+        CharsetEncoder encoder = Charset.forName(characterEncoding).newEncoder();
+        CharBuffer input = CharBuffer.wrap(html);
+        ByteBuffer bytes = ByteBuffer.allocate(Math.max(16, Math.min(8192, html.length() * 4)));
+        long written = 0;
+        while (true) {
+            CoderResult result = encoder.encode(input, bytes, true);
+            if (result.isUnmappable() || result.isMalformed()) {
+                written += drain(bytes, out);
+                for (int i = 0; i < result.length(); ) {
+                    int codePoint = Character.codePointAt(input, i);
+                    byte[] reference = ("&#" + codePoint + ";").getBytes(characterEncoding);
+                    out.write(reference, 0, reference.length);
+                    written += reference.length;
+                    i += Character.charCount(codePoint);
+                }
+                ((Buffer) input).position(input.position() + result.length());
+            } else if (result.isOverflow()) {
+                written += drain(bytes, out);
+            } else {
+                break;
+            }
+        }
+        encoder.flush(bytes);
+        written += drain(bytes, out);
+        return written;
+    }
+
+    /**
+     * @return the number of bytes {@link #encode(String, String, OutputStream)} writes, without keeping them
+     */
+    public long encodedLength(String html, String characterEncoding) throws IOException {
+        return encode(html, characterEncoding, new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        });
+    }
+
+    private int drain(ByteBuffer bytes, OutputStream out) throws IOException {
+        // Buffer's own flip() and clear(), the ByteBuffer overrides don't exist before Java 9
+        ((Buffer) bytes).flip();
+        int length = bytes.limit();
+        out.write(bytes.array(), bytes.arrayOffset(), length);
+        ((Buffer) bytes).clear();
+        return length;
+    }
+}
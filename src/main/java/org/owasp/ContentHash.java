@@ -0,0 +1,141 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.owasp;
+
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.List;
+
+/**
+ * A 128 bit fingerprint of a body, the first half of its SHA-256 digest, plus the length.
+ * <p/>
+ * The fingerprint of a captured body is the key of cached clean html, so it must not be possible to make one page
+ * collide with another. It is keyed with a random secret drawn once per JVM, nobody outside can compute it, let alone
+ * search for a collision. The fingerprint of written html is an ETag, which has to be the same on every node of a
+ * cluster, so it is not keyed and relies on the digest alone.
+ */
+public final class ContentHash {
+    private static final String ALGORITHM = "SHA-256";
+    private static final byte[] KEY = new byte[32];
+
+    static {
+        new SecureRandom().nextBytes(KEY);
+    }
+
+    private final long first;
+    private final long second;
+    private final int length;
+
+    public ContentHash(long first, long second, int length) {
+        this.first = first;
+        this.second = second;
+        this.length = length;
+    }
+
+    static ContentHash of(List<ByteBuffer> segments, int length) {
+        MessageDigest digest = digest();
+        digest.update(KEY);
+        for (ByteBuffer segment : segments) {
+            ByteBuffer bytes = segment.duplicate();
+            ((Buffer) bytes).flip();
+            digest.update(bytes);
+        }
+        return of(digest, length);
+    }
+
+    /**
+     * @return a stream that fingerprints whatever is written to it, for bodies that are not held in capture segments
+     */
+    public static Hasher hasher() {
+        return new Hasher();
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ContentHash)) {
+            return false;
+        }
+        ContentHash other = (ContentHash) o;
+        return first == other.first && second == other.second && length == other.length;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (first ^ (first >>> 32));
+    }
+
+    /**
+     * @return the fingerprint as fixed width hex followed by the length, so no two fingerprints print the same
+     */
+    @Override
+    public String toString() {
+        return String.format("%016x%016x-%x", first, second, length);
+    }
+
+    private static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static ContentHash of(MessageDigest digest, long length) {
+        ByteBuffer hash = ByteBuffer.wrap(digest.digest());
+        return new ContentHash(hash.getLong(0), hash.getLong(8), (int) Math.min(length, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Fingerprints a body as it is written. It is not keyed, so the hashes differ from {@link #of} for the same bytes.
+     */
+    public static final class Hasher extends OutputStream {
+        private final MessageDigest digest = digest();
+        private long length;
+
+        private Hasher() {
+        }
+
+        @Override
+        public void write(int b) {
+            digest.update((byte) b);
+            length++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            digest.update(b, off, len);
+            length += len;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public ContentHash toContentHash() {
+            return of(digest, length);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.owasp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decides whether a response is sanitized by looking at the mime type of its content type, parameters
+ * like the charset are ignored. Both lists accept exact mime types as well as wildcards like
+ * <code>text/*</code>, a content type is matched when it is included and not excluded.
+ */
+public class ContentTypeMatcher {
+    public static final String DEFAULT_CONTENT_TYPES = "text/html";
+
+    private final String[] includes;
+    private final String[] excludes;
+
+    public ContentTypeMatcher() {
+        this(DEFAULT_CONTENT_TYPES, null);
+    }
+
+    /**
+     * @param includes comma separated mime types that are sanitized
+     * @param excludes comma separated mime types that are never sanitized, may be null
+     */
+    public ContentTypeMatcher(String includes, String excludes) {
+        this.includes = parse(includes);
+        this.excludes = parse(excludes);
+    }
+
+    public boolean matches(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        int end = contentType.indexOf(';');
+        if (end < 0) {
+            end = contentType.length();
+        }
+        int start = 0;
+        while (start < end && Character.isWhitespace(contentType.charAt(start))) {
+            start++;
+        }
+        while (end > start && Character.isWhitespace(contentType.charAt(end - 1))) {
+            end--;
+        }
+        return matchesAny(includes, contentType, start, end) && !matchesAny(excludes, contentType, start, end);
+    }
+
+    private boolean matchesAny(String[] mimeTypes, String contentType, int start, int end) {
+        int length = end - start;
+        for (String mimeType : mimeTypes) {
+            if (mimeType.equals("*/*")) {
+                return true;
+            }
+            if (mimeType.endsWith("/*")) {
+                int prefix = mimeType.length() - 1;
+                if (length > prefix && contentType.regionMatches(true, start, mimeType, 0, prefix)) {
+                    return true;
+                }
+            } else if (length == mimeType.length() && contentType.regionMatches(true, start, mimeType, 0, length)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String[] parse(String mimeTypes) {
+        List<String> parsed = new ArrayList<String>();
+        if (mimeTypes != null) {
+            for (String mimeType : mimeTypes.split("[,\\s]+")) {
+                if (mimeType.length() > 0) {
+                    parsed.add(mimeType.toLowerCase());
+                }
+            }
+        }
+        return parsed.toArray(new String[parsed.size()]);
+    }
+}
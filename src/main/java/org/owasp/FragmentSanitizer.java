@@ -0,0 +1,132 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.owasp;
+
+import org.owasp.validator.html.CleanResults;
+import org.owasp.validator.html.Policy;
+import org.owasp.validator.html.PolicyException;
+import org.owasp.validator.html.ScanException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Sanitizes only the regions of a captured page between a begin and an end delimiter, everything else is
+ * trusted template markup and is written back byte for byte. The delimiters are dropped from the output.
+ * <p/>
+ * A {0} in a delimiter is replaced by a nonce that is new for every request. Without it the untrusted
+ * content could close its own region by containing the end delimiter. A region that is never closed runs
+ * to the end of the page.
+ */
+public class FragmentSanitizer {
+    public static final String NONCE_PLACEHOLDER = "{0}";
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final AntiSamyPool antiSamyPool;
+    private final Policy policy;
+    private final CleanHtmlEncoder cleanHtmlEncoder;
+    private final byte[] begin;
+    private final byte[] end;
+    private final String characterEncoding;
+    private final List<int[]> regions = new ArrayList<int[]>();
+    private final List<byte[]> cleanRegions = new ArrayList<byte[]>();
+    private int contentLength;
+    private int scannedBytes;
+
+    public FragmentSanitizer(AntiSamyPool antiSamyPool, Policy policy, CleanHtmlEncoder cleanHtmlEncoder, String begin, String end, String nonce, String characterEncoding) throws UnsupportedEncodingException {
+        this.antiSamyPool = antiSamyPool;
+        this.policy = policy;
+        this.cleanHtmlEncoder = cleanHtmlEncoder;
+        this.begin = begin.replace(NONCE_PLACEHOLDER, nonce).getBytes(characterEncoding);
+        this.end = end.replace(NONCE_PLACEHOLDER, nonce).getBytes(characterEncoding);
+        this.characterEncoding = characterEncoding;
+    }
+
+    public static String newNonce() {
+        byte[] bytes = new byte[16];
+        RANDOM.nextBytes(bytes);
+        char[] nonce = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            nonce[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+            nonce[2 * i + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(nonce);
+    }
+
+    /**
+     * Finds and scans every region in a single pass over the page, nothing is written yet so a failure
+     * leaves the response untouched.
+     *
+     * @return the combined results of every region, the clean html is kept for {@link #writeTo}
+     */
+    public CleanResults sanitize(ChunkedCaptureBuffer page) throws ScanException, PolicyException, UnsupportedEncodingException {
+        Date startOfScan = new Date();
+        ArrayList<String> errorMessages = new ArrayList<String>();
+        contentLength = page.size();
+        int from = 0;
+        int regionStart;
+        while ((regionStart = page.indexOf(begin, from)) >= 0) {
+            int contentStart = regionStart + begin.length;
+            int contentEnd = page.indexOf(end, contentStart);
+            int regionEnd = contentEnd < 0 ? page.size() : contentEnd + end.length;
+            if (contentEnd < 0) {
+                contentEnd = page.size();
+            }
+            CleanResults results = antiSamyPool.scan(page.toString(characterEncoding, contentStart, contentEnd), policy);
+            // CleanResults predates generics, its error messages are strings
+            @SuppressWarnings("unchecked")
+            List<String> messages = results.getErrorMessages();
+            errorMessages.addAll(messages);
+            byte[] clean = cleanHtmlEncoder.encode(results.getCleanHTML(), characterEncoding);
+            regions.add(new int[]{regionStart, regionEnd});
+            cleanRegions.add(clean);
+            contentLength += clean.length - (regionEnd - regionStart);
+            scannedBytes += contentEnd - contentStart;
+            from = regionEnd;
+        }
+        return new CleanResults(startOfScan, new Date(), "", null, errorMessages);
+    }
+
+    public void writeTo(ChunkedCaptureBuffer page, OutputStream out) throws IOException {
+        int from = 0;
+        for (int i = 0; i < regions.size(); i++) {
+            int[] region = regions.get(i);
+            page.writeTo(out, from, region[0]);
+            out.write(cleanRegions.get(i));
+            from = region[1];
+        }
+        page.writeTo(out, from, page.size());
+    }
+
+    public int getContentLength() {
+        return contentLength;
+    }
+
+    public int getScannedBytes() {
+        return scannedBytes;
+    }
+
+    public int getRegionCount() {
+        return regions.size();
+    }
+}
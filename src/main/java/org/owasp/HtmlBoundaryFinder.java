@@ -0,0 +1,247 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.owasp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A small html tokenizer that finds the places where a document can be cut into pieces that are each
+ * sanitized on their own. A boundary is the start of a tag that is not nested inside any other element,
+ * so text, comments, scripts and elements are never split. The html, head and body elements don't count as
+ * nesting, AntiSamy drops their tags anyway, so the children of the body of a whole document are top level. Text is fed incrementally, the finder
+ * remembers where it stopped and continues from there when more text is available.
+ */
+public class HtmlBoundaryFinder {
+    private static final Set<String> VOID_ELEMENTS = new HashSet<String>(Arrays.asList(
+            "area", "base", "br", "col", "embed", "hr", "img", "input", "keygen", "link", "meta", "param", "source", "track", "wbr"
+    ));
+    private static final Set<String> RAW_TEXT_ELEMENTS = new HashSet<String>(Arrays.asList(
+            "script", "style", "textarea", "title", "xmp", "iframe", "noembed", "noframes"
+    ));
+    /**
+     * The elements NekoHTML, the parser behind AntiSamy, closes an open paragraph for. Lists, tables and the
+     * newer sectioning elements end up inside the paragraph, so they must not end it here either.
+     */
+    private static final Set<String> CLOSES_PARAGRAPH = new HashSet<String>(Arrays.asList(
+            "blockquote", "div", "form", "h1", "h2", "h3", "h4", "h5", "h6", "p"
+    ));
+    private static final Set<String> TRANSPARENT_ELEMENTS = new HashSet<String>(Arrays.asList(
+            "html", "head", "body"
+    ));
+    private static final Set<String> CLOSES_ITSELF = new HashSet<String>(Arrays.asList(
+            "li", "dt", "dd", "option", "tr", "td", "th"
+    ));
+
+    private static final int TEXT = 0;
+    private static final int TAG_OPEN = 1;
+    private static final int START_TAG_NAME = 2;
+    private static final int IN_TAG = 3;
+    private static final int ATTRIBUTE_VALUE = 4;
+    private static final int END_TAG_NAME = 5;
+    private static final int END_TAG = 6;
+    private static final int MARKUP_DECLARATION = 7;
+    private static final int COMMENT = 8;
+    private static final int DECLARATION = 9;
+    private static final int RAW_TEXT = 10;
+
+    private final List<String> openElements = new ArrayList<String>();
+    private final StringBuilder tagName = new StringBuilder();
+    private int state = TEXT;
+    private int position;
+    private char quote;
+    private boolean selfClosing;
+    private int dashes;
+    private String rawTextElement;
+
+    /**
+     * Continues tokenizing the text until a boundary at or after the given index is found.
+     *
+     * @return the index of the boundary, or -1 when all of the text was consumed without finding one
+     */
+    public int findBoundary(CharSequence text, int from) {
+        int length = text.length();
+        while (position < length) {
+            char c = text.charAt(position);
+            switch (state) {
+                case TEXT:
+                    if (c == '<') {
+                        state = TAG_OPEN;
+                        if (openElements.isEmpty() && position >= from) {
+                            return position++;
+                        }
+                    }
+                    break;
+                case TAG_OPEN:
+                    if (c == '/') {
+                        tagName.setLength(0);
+                        state = END_TAG_NAME;
+                    } else if (c == '!') {
+                        state = MARKUP_DECLARATION;
+                    } else if (c == '?') {
+                        state = DECLARATION;
+                    } else if (Character.isLetter(c)) {
+                        tagName.setLength(0);
+                        tagName.append(Character.toLowerCase(c));
+                        selfClosing = false;
+                        state = START_TAG_NAME;
+                    } else {
+                        state = TEXT;
+                        continue;
+                    }
+                    break;
+                case START_TAG_NAME:
+                    if (c == '>') {
+                        startTag();
+                    } else if (c == '/') {
+                        selfClosing = true;
+                        state = IN_TAG;
+                    } else if (Character.isWhitespace(c)) {
+                        state = IN_TAG;
+                    } else {
+                        tagName.append(Character.toLowerCase(c));
+                    }
+                    break;
+                case IN_TAG:
+                    if (c == '>') {
+                        startTag();
+                    } else if (c == '"' || c == '\'') {
+                        quote = c;
+                        selfClosing = false;
+                        state = ATTRIBUTE_VALUE;
+                    } else if (c == '/') {
+                        selfClosing = true;
+                    } else if (!Character.isWhitespace(c)) {
+                        selfClosing = false;
+                    }
+                    break;
+                case ATTRIBUTE_VALUE:
+                    if (c == quote) {
+                        state = IN_TAG;
+                    }
+                    break;
+                case END_TAG_NAME:
+                    if (c == '>') {
+                        endTag();
+                    } else if (Character.isWhitespace(c) || c == '/') {
+                        state = END_TAG;
+                    } else {
+                        tagName.append(Character.toLowerCase(c));
+                    }
+                    break;
+                case END_TAG:
+                    if (c == '>') {
+                        endTag();
+                    }
+                    break;
+                case MARKUP_DECLARATION:
+                    if (position + 1 >= length) {
+                        return -1;
+                    }
+                    if (c == '-' && text.charAt(position + 1) == '-') {
+                        dashes = 0;
+                        position += 2;
+                        state = COMMENT;
+                        continue;
+                    }
+                    state = DECLARATION;
+                    continue;
+                case COMMENT:
+                    if (c == '-') {
+                        dashes++;
+                    } else if (c == '>' && dashes >= 2) {
+                        state = TEXT;
+                    } else {
+                        dashes = 0;
+                    }
+                    break;
+                case DECLARATION:
+                    if (c == '>') {
+                        state = TEXT;
+                    }
+                    break;
+                case RAW_TEXT:
+                    if (c == '<') {
+                        int end = position + rawTextElement.length() + 2;
+                        if (end >= length) {
+                            return -1;
+                        }
+                        if (text.charAt(position + 1) == '/' && isRawTextEnd(text, position + 2)) {
+                            position = end;
+                            state = END_TAG;
+                            continue;
+                        }
+                    }
+                    break;
+            }
+            position++;
+        }
+        return -1;
+    }
+
+    /**
+     * Tells the finder that the given number of characters were removed from the start of the text.
+     */
+    public void shift(int count) {
+        position -= count;
+    }
+
+    public boolean isTopLevel() {
+        return state == TEXT && openElements.isEmpty();
+    }
+
+    private boolean isRawTextEnd(CharSequence text, int start) {
+        for (int i = 0; i < rawTextElement.length(); i++) {
+            if (Character.toLowerCase(text.charAt(start + i)) != rawTextElement.charAt(i)) {
+                return false;
+            }
+        }
+        char next = text.charAt(start + rawTextElement.length());
+        return next == '>' || next == '/' || Character.isWhitespace(next);
+    }
+
+    private void startTag() {
+        String name = tagName.toString();
+        state = TEXT;
+        if (VOID_ELEMENTS.contains(name) || TRANSPARENT_ELEMENTS.contains(name) || selfClosing) {
+            return;
+        }
+        if (RAW_TEXT_ELEMENTS.contains(name)) {
+            rawTextElement = name;
+            state = RAW_TEXT;
+            return;
+        }
+        String current = openElements.isEmpty() ? null : openElements.get(openElements.size() - 1);
+        if ("p".equals(current) && CLOSES_PARAGRAPH.contains(name)
+                || CLOSES_ITSELF.contains(name) && name.equals(current)) {
+            openElements.remove(openElements.size() - 1);
+        }
+        openElements.add(name);
+    }
+
+    private void endTag() {
+        state = TEXT;
+        if (TRANSPARENT_ELEMENTS.contains(tagName.toString())) {
+            return;
+        }
+        int index = openElements.lastIndexOf(tagName.toString());
+        if (index >= 0) {
+            openElements.subList(index, openElements.size()).clear();
+        }
+    }
+}
@@ -17,7 +17,35 @@ package org.owasp;
 import javax.servlet.http.HttpServletResponse;
 
 public class HttpResponseInvocationHandlerFactory {
+    private SegmentPool segmentPool = new SegmentPool();
+    private ContentTypeMatcher contentTypeMatcher = new ContentTypeMatcher();
+    private CaptureBudget captureBudget = new CaptureBudget();
+
     public HttpServletResponseInvocationHandler build(HttpServletResponse response) {
-        return new HttpServletResponseInvocationHandler(response);
+        return new HttpServletResponseInvocationHandler(response, segmentPool, contentTypeMatcher, captureBudget);
+    }
+
+    public SegmentPool getSegmentPool() {
+        return segmentPool;
+    }
+
+    public void setSegmentPool(SegmentPool segmentPool) {
+        this.segmentPool = segmentPool;
+    }
+
+    public ContentTypeMatcher getContentTypeMatcher() {
+        return contentTypeMatcher;
+    }
+
+    public void setContentTypeMatcher(ContentTypeMatcher contentTypeMatcher) {
+        this.contentTypeMatcher = contentTypeMatcher;
+    }
+
+    public CaptureBudget getCaptureBudget() {
+        return captureBudget;
+    }
+
+    public void setCaptureBudget(CaptureBudget captureBudget) {
+        this.captureBudget = captureBudget;
     }
 }
@@ -16,40 +16,434 @@ package org.owasp;
 
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletResponse;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 public class HttpServletResponseInvocationHandler implements InvocationHandler {
-    public final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    private static final int UNDECIDED = 0;
+    private static final int BUFFERING = 1;
+    private static final int PASS_THROUGH = 2;
+    private static final int STREAMING = 3;
+    private static final String DEFAULT_CHARACTER_ENCODING = "ISO-8859-1";
+    private static final String CONTENT_ENCODING = "Content-Encoding";
+    private static final String CONTENT_LENGTH = "Content-Length";
+    private static final String CONTENT_TYPE = "Content-Type";
+
+    public final ChunkedCaptureBuffer output;
     private final HttpServletResponse delegate;
+    private final ContentTypeMatcher contentTypeMatcher;
+    private final AtomicBoolean asyncEnded = new AtomicBoolean();
+    private int state = UNDECIDED;
+    private String contentType;
+    private long contentLength = -1;
+    private OutputStream passThroughOutput;
+    private CaptureOutputStream captureOutput;
+    private PrintWriter writer;
+    private StreamingSanitizer.Factory streamingSanitizerFactory;
+    private StreamingSanitizer streamingSanitizer;
+    private long passThroughSize;
+    private String contentEncoding;
+    private InflatingOutputStream inflatingOutput;
+    private ResponseCompressor responseCompressor;
+    private int status = HttpServletResponse.SC_OK;
+    private String ifNoneMatch;
+    private RequestTimings requestTimings;
+    private long captureNanos;
 
     public HttpServletResponseInvocationHandler(HttpServletResponse delegate) {
+        this(delegate, new SegmentPool(0, SegmentPool.DEFAULT_SEGMENT_SIZE, false), new ContentTypeMatcher());
+    }
+
+    public HttpServletResponseInvocationHandler(HttpServletResponse delegate, SegmentPool segmentPool, ContentTypeMatcher contentTypeMatcher) {
+        this(delegate, segmentPool, contentTypeMatcher, null);
+    }
+
+    public HttpServletResponseInvocationHandler(HttpServletResponse delegate, SegmentPool segmentPool, ContentTypeMatcher contentTypeMatcher, CaptureBudget captureBudget) {
         this.delegate = delegate;
+        this.output = new ChunkedCaptureBuffer(segmentPool, captureBudget);
+        this.contentTypeMatcher = contentTypeMatcher;
     }
 
     public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
         String name = method.getName();
         if (name.equals("getWriter")) {
-            return new EagerFlushingPrintWriter(output);
+            return getWriter();
         } else if (name.equals("getOutputStream")) {
-            return new ServletOutputStream() {
-                @Override
-                public void write(int b) throws IOException {
-                    output.write(b);
-                }
-            };
+            return getOutputStream();
+        } else if (name.equals("setContentLength")) {
+            setContentLength((Integer) args[0]);
+            return null;
+        } else if ((name.equals("setHeader") || name.equals("addHeader")) && CONTENT_ENCODING.equalsIgnoreCase((String) args[0])
+                && setContentEncoding((String) args[1])) {
+            return null;
+        } else if (name.equals("setContentType") && !setContentType((String) args[0])) {
+            return null;
+        } else if ((name.equals("setHeader") || name.equals("addHeader")) && CONTENT_TYPE.equalsIgnoreCase((String) args[0])
+                && !setContentType((String) args[1])) {
+            return null;
+        }
+        Object result = method.invoke(delegate, args);
+        if (name.equals("setStatus") || name.equals("sendError")) {
+            setStatus((Integer) args[0]);
+        } else if (name.equals("sendRedirect")) {
+            setStatus(HttpServletResponse.SC_FOUND);
+        }
+        return result;
+    }
+
+    /**
+     * The writer is created once per response and encodes with the response's character encoding.
+     * It is not flushed until {@link #flush()} is called, normally once the filter chain has finished.
+     */
+    public PrintWriter getWriter() throws UnsupportedEncodingException {
+        if (writer == null) {
+            writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), getCharacterEncoding()));
+        }
+        return writer;
+    }
+
+    public ServletOutputStream getOutputStream() {
+        if (captureOutput == null) {
+            captureOutput = new CaptureOutputStream();
+        }
+        return captureOutput;
+    }
+
+    public void flush() throws IOException {
+        if (state == UNDECIDED && contentType != null) {
+            decide();
+        }
+        if (writer != null) {
+            writer.flush();
+        }
+        if (passThroughOutput != null) {
+            passThroughOutput.flush();
+        }
+    }
+
+    public String getCharacterEncoding() {
+        String characterEncoding = delegate.getCharacterEncoding();
+        return characterEncoding == null ? DEFAULT_CHARACTER_ENCODING : characterEncoding;
+    }
+
+    /**
+     * Records the content type the response was given, the last one set before the body is first written or
+     * flushed counts. When that one is not sanitized, the body goes straight to the real response from then on.
+     *
+     * @return false when the body already goes straight to the real response, the content type must not change then
+     */
+    public boolean setContentType(String contentType) {
+        if (state == PASS_THROUGH) {
+            return false;
+        }
+        this.contentType = contentType;
+        return true;
+    }
+
+    /**
+     * The length is only passed on when the body is streamed through untouched, a buffered body
+     * gets its length once it has been written out.
+     */
+    public void setContentLength(int contentLength) {
+        setContentLengthLong(contentLength);
+    }
+
+    /**
+     * A buffered body declared longer than the capture may hold fails before anything of it is captured.
+     *
+     * @param contentLength the length, negative when it isn't known
+     */
+    public void setContentLengthLong(long contentLength) {
+        if (state == PASS_THROUGH) {
+            passContentLength(contentLength);
+        } else {
+            this.contentLength = contentLength;
+        }
+    }
+
+    /**
+     * Takes over a gzip or deflate encoding of a body that is going to be sanitized, the body is inflated as
+     * it is captured and the header is not passed on. Other encodings, and bodies streamed through untouched,
+     * keep their header. A null encoding forgets the one taken over.
+     *
+     * @return true when the header was taken over
+     */
+    public boolean setContentEncoding(String contentEncoding) {
+        if (state == PASS_THROUGH) {
+            return false;
+        }
+        if (contentEncoding == null) {
+            this.contentEncoding = null;
+            return true;
+        }
+        String encoding = contentEncoding.trim().toLowerCase();
+        if (!InflatingOutputStream.supports(encoding)) {
+            return false;
+        }
+        this.contentEncoding = encoding;
+        return true;
+    }
+
+    /**
+     * @return the encoding the captured body was inflated from, or null when it was written as is
+     */
+    public String getContentEncoding() {
+        return contentEncoding;
+    }
+
+    /**
+     * @param responseCompressor compresses the sanitized body, null to write it as is
+     */
+    public void setResponseCompressor(ResponseCompressor responseCompressor) {
+        this.responseCompressor = responseCompressor;
+    }
+
+    public ResponseCompressor getResponseCompressor() {
+        return responseCompressor;
+    }
+
+    /**
+     * Records the status the response was given, a servlet 2.5 response can't be asked for it.
+     */
+    public void setStatus(int status) {
+        this.status = status;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * @param ifNoneMatch the request's If-None-Match header, null when the response can't be answered with a 304
+     */
+    public void setIfNoneMatch(String ifNoneMatch) {
+        this.ifNoneMatch = ifNoneMatch;
+    }
+
+    public String getIfNoneMatch() {
+        return ifNoneMatch;
+    }
+
+    /**
+     * @param requestTimings times the phases of the request, null when nobody asked for the timings
+     */
+    public void setRequestTimings(RequestTimings requestTimings) {
+        this.requestTimings = requestTimings;
+    }
+
+    public RequestTimings getRequestTimings() {
+        return requestTimings;
+    }
+
+    /**
+     * @return the time spent copying the body into the capture buffer, only measured while there are request timings
+     */
+    public long getCaptureNanos() {
+        return captureNanos;
+    }
+
+    public boolean isPassThrough() {
+        return state == PASS_THROUGH;
+    }
+
+    /**
+     * @return the number of bytes written straight to the delegate after the content type was ruled out
+     */
+    public long getPassThroughSize() {
+        return passThroughSize;
+    }
+
+    /**
+     * @return true when the body is being sanitized while it is written, instead of being buffered
+     */
+    public boolean isStreaming() {
+        return state == STREAMING;
+    }
+
+    /**
+     * A body that is known to be sanitized before anything is written to it will be sanitized as it is
+     * written, by a sanitizer the factory builds at that point.
+     */
+    public void setStreamingSanitizerFactory(StreamingSanitizer.Factory streamingSanitizerFactory) {
+        this.streamingSanitizerFactory = streamingSanitizerFactory;
+    }
+
+    /**
+     * @return the sanitizer of a streaming body, null when the body isn't streamed
+     */
+    public StreamingSanitizer getStreamingSanitizer() {
+        return streamingSanitizer;
+    }
+
+    public void reset() {
+        if (writer != null) {
+            writer.flush();
         }
-        return method.invoke(delegate, args);
+        endInflating();
+        output.reset();
+    }
+
+    public HttpServletResponse getDelegate() {
+        return delegate;
     }
 
     public String getContents() {
-        return new String(output.toByteArray());
+        return output.toString(getCharacterEncoding());
     }
 
     public byte[] getBytes() {
         return output.toByteArray();
     }
+
+    public int getSize() {
+        return output.size();
+    }
+
+    public ChunkedCaptureBuffer getOutput() {
+        return output;
+    }
+
+    public ContentHash getContentHash() {
+        return output.contentHash();
+    }
+
+    public boolean isOverBudget() {
+        return output.isOverBudget();
+    }
+
+    public boolean isSpilled() {
+        return output.isSpilled();
+    }
+
+    /**
+     * @return true when the body came with a content encoding and ended before its last member did
+     */
+    public boolean isTruncated() {
+        return inflatingOutput != null && !inflatingOutput.isComplete();
+    }
+
+    public boolean isPlainText() {
+        return output.isPlainText();
+    }
+
+    /**
+     * Set once an async response timed out, failed or completed, the container may have recycled the
+     * response by then so nothing is written to it afterwards.
+     */
+    public AtomicBoolean getAsyncEnded() {
+        return asyncEnded;
+    }
+
+    public boolean isAsyncEnded() {
+        return asyncEnded.get();
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        output.writeTo(out);
+    }
+
+    /**
+     * Hands the captured segments back to the pool, the contents are gone afterwards.
+     */
+    public void release() {
+        endInflating();
+        output.release();
+    }
+
+    protected boolean isSanitized(String contentType) {
+        return contentTypeMatcher.matches(contentType);
+    }
+
+    private void decide() {
+        if (contentType != null && !isSanitized(contentType)) {
+            state = PASS_THROUGH;
+            passContentLength(contentLength);
+            if (contentEncoding != null) {
+                delegate.setHeader(CONTENT_ENCODING, contentEncoding);
+            }
+        } else if (contentType != null && streamingSanitizerFactory != null) {
+            streamingSanitizer = streamingSanitizerFactory.build();
+            state = STREAMING;
+        } else {
+            state = BUFFERING;
+            if (contentLength >= 0 && contentEncoding == null) {
+                output.expect(contentLength);
+            }
+        }
+    }
+
+    private void passContentLength(long contentLength) {
+        if (contentLength > Integer.MAX_VALUE) {
+            delegate.setHeader(CONTENT_LENGTH, Long.toString(contentLength));
+        } else if (contentLength >= 0) {
+            delegate.setContentLength((int) contentLength);
+        }
+    }
+
+    private OutputStream target() throws IOException {
+        if (state == UNDECIDED) {
+            decide();
+        }
+        if (state == PASS_THROUGH) {
+            if (passThroughOutput == null) {
+                passThroughOutput = delegate.getOutputStream();
+            }
+            return passThroughOutput;
+        }
+        OutputStream target = state == STREAMING ? streamingSanitizer : output;
+        if (contentEncoding != null) {
+            if (inflatingOutput == null) {
+                inflatingOutput = new InflatingOutputStream(target, contentEncoding);
+            }
+            return inflatingOutput;
+        }
+        return target;
+    }
+
+    private void endInflating() {
+        if (inflatingOutput != null) {
+            inflatingOutput.end();
+            inflatingOutput = null;
+        }
+    }
+
+    private class CaptureOutputStream extends ServletOutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            target().write(b);
+            if (state == PASS_THROUGH) {
+                passThroughSize++;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            long start = requestTimings == null ? 0 : System.nanoTime();
+            target().write(b, off, len);
+            if (state == PASS_THROUGH) {
+                passThroughSize += len;
+            } else if (requestTimings != null && state == BUFFERING) {
+                captureNanos += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (state == PASS_THROUGH) {
+                target().flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
 }
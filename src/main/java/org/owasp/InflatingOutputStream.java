@@ -0,0 +1,218 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+
+package org.owasp;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Inflates a gzip or deflate encoded body as it is written, handing the decoded bytes to the wrapped stream.
+ * Unlike {@link java.util.zip.GZIPInputStream} it is pushed to, so a body can be decoded while it is captured
+ * without holding the compressed copy. Concatenated gzip members are decoded one after the other.
+ */
+public class InflatingOutputStream extends FilterOutputStream {
+    public static final String GZIP = "gzip";
+    public static final String X_GZIP = "x-gzip";
+    public static final String DEFLATE = "deflate";
+
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+    private static final int HEADER = 0;
+    private static final int BODY = 1;
+    private static final int TRAILER = 2;
+    private static final int DONE = 3;
+
+    private final boolean gzip;
+    private final Inflater inflater;
+    private final CRC32 crc = new CRC32();
+    private final byte[] buffer = new byte[8192];
+    private final byte[] one = new byte[1];
+    private byte[] held = new byte[32];
+    private int heldCount;
+    private int state;
+    private int members;
+    private long inflated;
+
+    /**
+     * @param contentEncoding one of the encodings {@link #supports(String)} accepts
+     */
+    public InflatingOutputStream(OutputStream out, String contentEncoding) {
+        super(out);
+        this.gzip = !DEFLATE.equals(contentEncoding);
+        this.inflater = new Inflater(gzip);
+        this.state = gzip ? HEADER : BODY;
+    }
+
+    public static boolean supports(String contentEncoding) {
+        return GZIP.equals(contentEncoding) || X_GZIP.equals(contentEncoding) || DEFLATE.equals(contentEncoding);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        one[0] = (byte) b;
+        write(one, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int used;
+            if (state == HEADER) {
+                used = header(b, off, len);
+            } else if (state == BODY) {
+                used = body(b, off, len);
+            } else if (state == TRAILER) {
+                used = trailer(b, off, len);
+            } else {
+                used = len;
+            }
+            off += used;
+            len -= used;
+        }
+    }
+
+    /**
+     * @return the number of decoded bytes written so far
+     */
+    public long getInflated() {
+        return inflated;
+    }
+
+    /**
+     * @return true when the last member of the body ended cleanly, false when the body was cut short
+     */
+    public boolean isComplete() {
+        return state == DONE || (gzip && state == HEADER && heldCount == 0 && members > 0);
+    }
+
+    /**
+     * Frees the inflater, the stream can't be written to afterwards.
+     */
+    public void end() {
+        inflater.end();
+    }
+
+    private int header(byte[] b, int off, int len) throws IOException {
+        hold(b, off, len);
+        int headerLength = headerLength();
+        if (headerLength < 0) {
+            return len;
+        }
+        int used = len - (heldCount - headerLength);
+        heldCount = 0;
+        state = BODY;
+        return used;
+    }
+
+    private int body(byte[] b, int off, int len) throws IOException {
+        inflater.setInput(b, off, len);
+        try {
+            int n;
+            while ((n = inflater.inflate(buffer)) > 0) {
+                crc.update(buffer, 0, n);
+                out.write(buffer, 0, n);
+                inflated += n;
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException(e.getMessage());
+        }
+        if (inflater.needsDictionary()) {
+            throw new ZipException("A preset dictionary is not supported");
+        }
+        if (!inflater.finished()) {
+            return len;
+        }
+        state = gzip ? TRAILER : DONE;
+        return len - inflater.getRemaining();
+    }
+
+    private int trailer(byte[] b, int off, int len) throws IOException {
+        int used = Math.min(8 - heldCount, len);
+        hold(b, off, used);
+        if (heldCount == 8) {
+            if (readInt(0) != (int) crc.getValue() || readInt(4) != (int) inflater.getBytesWritten()) {
+                throw new ZipException("Corrupt gzip trailer");
+            }
+            heldCount = 0;
+            crc.reset();
+            inflater.reset();
+            members++;
+            state = HEADER;
+        }
+        return used;
+    }
+
+    /**
+     * @return the length of the gzip member header held so far, or -1 when it isn't complete yet
+     */
+    private int headerLength() throws ZipException {
+        if (heldCount < 10) {
+            return -1;
+        }
+        if ((held[0] & 0xff) != 0x1f || (held[1] & 0xff) != 0x8b || held[2] != 8) {
+            throw new ZipException("Not in gzip format");
+        }
+        int flags = held[3];
+        int position = 10;
+        if ((flags & FEXTRA) != 0) {
+            if (heldCount < position + 2) {
+                return -1;
+            }
+            position += 2 + ((held[position] & 0xff) | (held[position + 1] & 0xff) << 8);
+        }
+        if ((flags & FNAME) != 0) {
+            position = skipString(position);
+        }
+        if ((flags & FCOMMENT) != 0 && position >= 0) {
+            position = skipString(position);
+        }
+        if ((flags & FHCRC) != 0 && position >= 0) {
+            position += 2;
+        }
+        return position < 0 || position > heldCount ? -1 : position;
+    }
+
+    private int skipString(int position) {
+        for (int i = position; i >= 0 && i < heldCount; i++) {
+            if (held[i] == 0) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    private int readInt(int position) {
+        return (held[position] & 0xff) | (held[position + 1] & 0xff) << 8 | (held[position + 2] & 0xff) << 16 | (held[position + 3] & 0xff) << 24;
+    }
+
+    private void hold(byte[] b, int off, int len) {
+        if (heldCount + len > held.length) {
+            byte[] grown = new byte[Math.max(held.length * 2, heldCount + len)];
+            System.arraycopy(held, 0, grown, 0, heldCount);
+            held = grown;
+        }
+        System.arraycopy(b, off, held, heldCount, len);
+        heldCount += len;
+    }
+}
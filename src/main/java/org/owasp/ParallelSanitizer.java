@@ -0,0 +1,210 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+
+package org.owasp;
+
+import org.owasp.validator.html.CleanResults;
+import org.owasp.validator.html.Policy;
+import org.owasp.validator.html.PolicyException;
+import org.owasp.validator.html.ScanException;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Sanitizes a large page on several cores. The page is cut at top level boundaries (see {@link HtmlBoundaryFinder}),
+ * between the children of the body of a whole document, into chunks of about the chunk size, the chunks are scanned on a fork-join pool and their clean html is joined
+ * in page order, with the error messages of every chunk merged into one result. A page that doesn't split, or
+ * that is over the policy's maximum input size, is scanned in one piece so it fails the way it always did.
+ * <p/>
+ * AntiSamy treats whitespace at the end of a document specially, so every chunk is scanned with a plain text
+ * sentinel after it, and every chunk but the first with one in front, keeping its edges the way they would be
+ * inside the whole page. The sentinels are the first and last text of a chunk and are taken off the ends of its
+ * clean html again, a page with a chunk whose clean html doesn't start and end with them is scanned in one piece.
+ * The trailing newline AntiSamy drops from a whole document is dropped from the joined html.
+ */
+public class ParallelSanitizer {
+    public static final int DEFAULT_CHUNK_SIZE = 128 * 1024;
+    private static final char SENTINEL = '.';
+
+    private final AntiSamyPool antiSamyPool;
+    private final ForkJoinPool forkJoinPool;
+    private final int chunkSize;
+
+    public ParallelSanitizer(AntiSamyPool antiSamyPool, int parallelism, int chunkSize) {
+        this.antiSamyPool = antiSamyPool;
+        this.forkJoinPool = new ForkJoinPool(parallelism);
+        this.chunkSize = chunkSize;
+    }
+
+    public CleanResults scan(String html, Policy policy) throws ScanException, PolicyException {
+        if (html.length() > policy.getMaxInputSize()) {
+            return antiSamyPool.scan(html, policy);
+        }
+        List<String> chunks = split(html);
+        if (chunks.size() < 2) {
+            return antiSamyPool.scan(html, policy);
+        }
+        Date startOfScan = new Date();
+        CleanResults[] results = new CleanResults[chunks.size()];
+        try {
+            forkJoinPool.invoke(new ScanChunks(chunks, policy, results, 0, results.length));
+        } catch (RuntimeException e) {
+            for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+                if (cause instanceof ScanException) {
+                    throw (ScanException) cause;
+                } else if (cause instanceof PolicyException) {
+                    throw (PolicyException) cause;
+                }
+            }
+            throw e;
+        }
+        StringBuilder cleanHtml = new StringBuilder(html.length());
+        ArrayList<String> errorMessages = new ArrayList<String>();
+        for (int i = 0; i < results.length; i++) {
+            if (!unwrap(results[i].getCleanHTML(), i > 0, cleanHtml)) {
+                return antiSamyPool.scan(html, policy);
+            }
+            // CleanResults predates generics, its error messages are strings
+            @SuppressWarnings("unchecked")
+            List<String> messages = results[i].getErrorMessages();
+            errorMessages.addAll(messages);
+        }
+        if (!html.endsWith("\n") && cleanHtml.length() > 0 && cleanHtml.charAt(cleanHtml.length() - 1) == '\n') {
+            int newline = cleanHtml.length() > 1 && cleanHtml.charAt(cleanHtml.length() - 2) == '\r' ? 2 : 1;
+            cleanHtml.setLength(cleanHtml.length() - newline);
+        }
+        return new CleanResults(startOfScan, new Date(), cleanHtml.toString(), null, errorMessages);
+    }
+
+    /**
+     * @return the page cut into chunks at the first top level boundary past every chunk size
+     */
+    public List<String> split(String html) {
+        List<String> chunks = new ArrayList<String>();
+        HtmlBoundaryFinder boundaryFinder = new HtmlBoundaryFinder();
+        int start = 0;
+        int boundary;
+        while (start + chunkSize < html.length() && (boundary = boundaryFinder.findBoundary(html, start + chunkSize)) >= 0) {
+            chunks.add(html.substring(start, boundary));
+            start = boundary;
+        }
+        chunks.add(html.substring(start));
+        return chunks;
+    }
+
+    /**
+     * Appends a chunk's clean html without the sentinels it was scanned with.
+     *
+     * Only the end tags of elements the chunk left open may follow the last sentinel.
+     *
+     * @return false when a sentinel isn't exactly at its end of the clean html, the chunk can't be trusted to line
+     *         up with its neighbours
+     */
+    private static boolean unwrap(String chunk, boolean head, StringBuilder cleanHtml) {
+        int from = head ? 1 : 0;
+        int to = endTags(chunk) - 1;
+        if (to < from || chunk.charAt(to) != SENTINEL || (head && chunk.charAt(0) != SENTINEL)) {
+            return false;
+        }
+        cleanHtml.append(chunk, from, to).append(chunk, to + 1, chunk.length());
+        return true;
+    }
+
+    /**
+     * @return where the end tags at the end of the clean html start
+     */
+    private static int endTags(String chunk) {
+        int end = chunk.length();
+        while (end > 0 && chunk.charAt(end - 1) == '>') {
+            int start = chunk.lastIndexOf("</", end - 1);
+            if (start < 0 || start + 3 > end - 1) {
+                break;
+            }
+            for (int i = start + 2; i < end - 1; i++) {
+                if (!Character.isLetterOrDigit(chunk.charAt(i))) {
+                    return end;
+                }
+            }
+            end = start;
+        }
+        return end;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getParallelism() {
+        return forkJoinPool.getParallelism();
+    }
+
+    public void shutdown() {
+        forkJoinPool.shutdown();
+    }
+
+    private class ScanChunks extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<String> chunks;
+        private final Policy policy;
+        private final CleanResults[] results;
+        private final int from;
+        private final int to;
+
+        private ScanChunks(List<String> chunks, Policy policy, CleanResults[] results, int from, int to) {
+            this.chunks = chunks;
+            this.policy = policy;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new ScanChunks(chunks, policy, results, from, middle), new ScanChunks(chunks, policy, results, middle, to));
+                return;
+            }
+            try {
+                String chunk = chunks.get(from);
+                if (from > 0) {
+                    chunk = SENTINEL + chunk;
+                }
+                results[from] = antiSamyPool.scan(chunk + SENTINEL, policy);
+            } catch (ScanException e) {
+                throw new ChunkFailure(e);
+            } catch (PolicyException e) {
+                throw new ChunkFailure(e);
+            }
+        }
+    }
+
+    /**
+     * Carries a checked scan failure out of the fork-join pool.
+     */
+    private static class ChunkFailure extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private ChunkFailure(Exception cause) {
+            super(cause);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.owasp;
+
+import org.owasp.validator.html.Policy;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Proves a captured body has nothing for AntiSamy to change, so it can be written as is without a scan.
+ * <p/>
+ * A body qualifies when every byte is a tab, a line feed or printable ascii other than {@code " & < >}.
+ * Those are exactly the characters the AntiSamy serializer emits unchanged in text, independent of the
+ * tag and attribute rules. Policies that indent the output or that would reject the body for its size
+ * never qualify, and neither do charsets that don't encode ascii as single bytes.
+ */
+public class PlainTextDetector {
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+    private static final boolean[] PLAIN = new boolean[256];
+    private static final String ASCII_PROBE;
+
+    static {
+        StringBuilder probe = new StringBuilder("\t\n");
+        PLAIN['\t'] = true;
+        PLAIN['\n'] = true;
+        for (char c = 0x20; c < 0x7f; c++) {
+            if (c != '"' && c != '&' && c != '<' && c != '>') {
+                PLAIN[c] = true;
+                probe.append(c);
+            }
+        }
+        ASCII_PROBE = probe.toString();
+    }
+
+    private final ConcurrentHashMap<String, Boolean> asciiCompatible = new ConcurrentHashMap<String, Boolean>();
+
+    /**
+     * @return true when AntiSamy would return the given body unchanged under this policy and charset
+     */
+    public boolean isPlainText(HttpServletResponseInvocationHandler invocationHandler, Policy policy) {
+        return !"true".equals(policy.getDirective(Policy.FORMAT_OUTPUT))
+                && invocationHandler.getSize() <= policy.getMaxInputSize()
+                && isAsciiCompatible(invocationHandler.getCharacterEncoding())
+                && invocationHandler.isPlainText();
+    }
+
+    /**
+     * @return true when AntiSamy would return the given value, a request parameter for example, unchanged
+     */
+    public boolean isPlainText(String value, Policy policy) {
+        if (value.length() > policy.getMaxInputSize() || "true".equals(policy.getDirective(Policy.FORMAT_OUTPUT))) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c > 0xff || !PLAIN[c]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks eight bytes at a time, a word only falls back to the byte table when it might hold a control
+     * character, a non ascii byte or one of the escaped characters.
+     */
+    static boolean isPlainText(List<ByteBuffer> segments) {
+        for (ByteBuffer segment : segments) {
+            int limit = segment.position();
+            int words = limit & ~7;
+            int i = 0;
+            for (; i < words; i += 8) {
+                long word = segment.getLong(i);
+                if (mayHoldMarkup(word)) {
+                    for (int j = i; j < i + 8; j++) {
+                        if (!PLAIN[segment.get(j) & 0xff]) {
+                            return false;
+                        }
+                    }
+                }
+            }
+            for (; i < limit; i++) {
+                if (!PLAIN[segment.get(i) & 0xff]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean mayHoldMarkup(long word) {
+        return (word & HIGH_BITS) != 0
+                || hasLessThan(word, 0x20)
+                || hasByte(word, 0x7f)
+                || hasByte(word, '"')
+                || hasByte(word, '&')
+                || hasByte(word, '<')
+                || hasByte(word, '>');
+    }
+
+    private static boolean hasLessThan(long word, int n) {
+        return ((word - ONES * n) & ~word & HIGH_BITS) != 0;
+    }
+
+    private static boolean hasByte(long word, int b) {
+        long x = word ^ (ONES * b);
+        return ((x - ONES) & ~x & HIGH_BITS) != 0;
+    }
+
+    private boolean isAsciiCompatible(String characterEncoding) {
+        Boolean compatible = asciiCompatible.get(characterEncoding);
+        if (compatible == null) {
+            try {
+                byte[] encoded = ASCII_PROBE.getBytes(Charset.forName(characterEncoding).name());
+                compatible = encoded.length == ASCII_PROBE.length() && new String(encoded, "US-ASCII").equals(ASCII_PROBE);
+            } catch (Exception e) {
+                compatible = Boolean.FALSE;
+            }
+            asciiCompatible.put(characterEncoding, compatible);
+        }
+        return compatible;
+    }
+}
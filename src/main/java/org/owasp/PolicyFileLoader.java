@@ -14,18 +14,210 @@
 
 package org.owasp;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.owasp.validator.html.Policy;
 import org.owasp.validator.html.PolicyException;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.MessageFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
 
-
+/**
+ * Loads AntiSamy policies and keeps the parsed result around, so the policy xml is only
+ * parsed again when the file on disk actually changes.
+ */
 public class PolicyFileLoader {
+    private static final String RELOAD_FAILED = "Unable to reload the policy file ({0}), continuing to use the previous version";
+
+    private final ConcurrentHashMap<String, CachedPolicy> policies = new ConcurrentHashMap<String, CachedPolicy>();
+    private final AtomicLong loadCount = new AtomicLong();
+    private final AtomicLong reloadCount = new AtomicLong();
+    private Log log = LogFactory.getLog(PolicyFileLoader.class);
+    private ScheduledExecutorService reloader;
+
     public Policy load(String fileLocation) {
+        return loadVersioned(fileLocation).getPolicy();
+    }
+
+    /**
+     * @return the policy together with its version, read at once so a reload in between can't pair them up wrongly
+     */
+    public VersionedPolicy loadVersioned(String fileLocation) {
+        CachedPolicy cached = policies.get(fileLocation);
+        if (cached == null) {
+            synchronized (policies) {
+                cached = policies.get(fileLocation);
+                if (cached == null) {
+                    try {
+                        cached = read(new File(fileLocation), null);
+                    } catch (PolicyException e) {
+                        throw new RuntimeException(e);
+                    }
+                    policies.put(fileLocation, cached);
+                    loadCount.incrementAndGet();
+                }
+            }
+        }
+        return cached;
+    }
+
+    /**
+     * Re-reads every cached policy whose modification time or size has changed. The checksum of the raw
+     * file contents is compared first, and the policy is only parsed when it differs from the cached version.
+     */
+    public void checkForChanges() {
+        for (Map.Entry<String, CachedPolicy> entry : policies.entrySet()) {
+            CachedPolicy cached = entry.getValue();
+            File file = new File(entry.getKey());
+            if (file.lastModified() == cached.lastModified && file.length() == cached.length) {
+                continue;
+            }
+            try {
+                CachedPolicy current = read(file, cached);
+                if (current.getVersion() != cached.getVersion()) {
+                    reloadCount.incrementAndGet();
+                }
+                policies.replace(entry.getKey(), cached, current);
+            } catch (PolicyException e) {
+                log.error(MessageFormat.format(RELOAD_FAILED, entry.getKey()), e);
+            }
+        }
+    }
+
+    public synchronized void startReloading(long checkIntervalInMillis) {
+        stopReloading();
+        reloader = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "antisamy-policy-reloader");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        reloader.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                checkForChanges();
+            }
+        }, checkIntervalInMillis, checkIntervalInMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopReloading() {
+        if (reloader != null) {
+            reloader.shutdownNow();
+            reloader = null;
+        }
+    }
+
+    /**
+     * @return a number that changes every time the policy at the given location is reloaded, or -1 when it has not been loaded yet
+     */
+    public long getVersion(String fileLocation) {
+        CachedPolicy cached = policies.get(fileLocation);
+        return cached == null ? -1 : cached.getVersion();
+    }
+
+    public long getLoadCount() {
+        return loadCount.get();
+    }
+
+    public long getReloadCount() {
+        return reloadCount.get();
+    }
+
+    protected void setLog(Log log) {
+        this.log = log;
+    }
+
+    /**
+     * @param previous the cached version of the file, kept with only its timestamps updated when the contents
+     * have the same checksum, or null on the first load
+     */
+    private CachedPolicy read(File file, CachedPolicy previous) throws PolicyException {
+        long lastModified = file.lastModified();
+        long length = file.length();
+        byte[] contents;
         try {
-            return Policy.getInstance(new File(fileLocation));
-        } catch (PolicyException e) {
-            throw new RuntimeException(e);
+            contents = readFully(file);
+        } catch (IOException e) {
+            throw new PolicyException(e);
+        }
+        CRC32 checksum = new CRC32();
+        checksum.update(contents);
+        if (previous != null && previous.length == contents.length && previous.checksum == checksum.getValue()) {
+            return new CachedPolicy(previous.getPolicy(), lastModified, length, previous.checksum, previous.getVersion());
+        }
+        return new CachedPolicy(parse(contents), lastModified, length, checksum.getValue(), previous == null ? 1 : previous.getVersion() + 1);
+    }
+
+    protected Policy parse(byte[] contents) throws PolicyException {
+        return Policy.getInstance(new ByteArrayInputStream(contents));
+    }
+
+    private byte[] readFully(File file) throws IOException {
+        InputStream input = new FileInputStream(file);
+        try {
+            byte[] contents = new byte[(int) file.length()];
+            int offset = 0;
+            while (offset < contents.length) {
+                int read = input.read(contents, offset, contents.length - offset);
+                if (read < 0) {
+                    break;
+                }
+                offset += read;
+            }
+            if (offset == contents.length) {
+                return contents;
+            }
+            byte[] truncated = new byte[offset];
+            System.arraycopy(contents, 0, truncated, 0, offset);
+            return truncated;
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * A parsed policy and the version of the file it was parsed from, see {@link #getVersion(String)}.
+     */
+    public static class VersionedPolicy {
+        private final Policy policy;
+        private final long version;
+
+        public VersionedPolicy(Policy policy, long version) {
+            this.policy = policy;
+            this.version = version;
+        }
+
+        public Policy getPolicy() {
+            return policy;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+    }
+
+    private static class CachedPolicy extends VersionedPolicy {
+        private final long lastModified;
+        private final long length;
+        private final long checksum;
+
+        private CachedPolicy(Policy policy, long lastModified, long length, long checksum, long version) {
+            super(policy, version);
+            this.lastModified = lastModified;
+            this.length = length;
+            this.checksum = checksum;
         }
     }
 }
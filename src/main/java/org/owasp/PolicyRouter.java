@@ -0,0 +1,264 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.owasp;
+
+import javax.servlet.http.HttpServletRequest;
+import java.text.MessageFormat;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Picks the policy a request is sanitized with. Routes are compiled once into a character trie for the path
+ * patterns plus lookup tables for extensions and headers, so routing a request costs one walk over its path.
+ * <p/>
+ * Path patterns follow the servlet mapping rules: <code>/path</code> matches exactly,
+ * <code>/path/*</code> matches the path and everything below it (the longest prefix wins) and
+ * <code>*.ext</code> matches an extension. <code>header:Name:value</code> matches a request header value and
+ * takes precedence over the path patterns. The client controls its headers, so a header route can only pick
+ * another policy, never skip the response or sanitize only the input. Requests that match nothing use the
+ * default policy.
+ * <p/>
+ * A policy file prefixed with <code>input:</code> sanitizes the request parameters of the matched requests
+ * with that policy and leaves their responses alone.
+ */
+public class PolicyRouter {
+    public static final String SKIP = "skip";
+    /**
+     * Pattern of the route taken by requests that match no other route.
+     */
+    public static final String DEFAULT_PATTERN = "default";
+
+    private static final String HEADER_PREFIX = "header:";
+    private static final String INPUT_PREFIX = "input:";
+    private static final String INVALID_ROUTE = "Invalid policy route ({0}), expected <pattern> = <policy file or " + SKIP + ">";
+    private static final String UNSAFE_HEADER_ROUTE = "Invalid policy route ({0}), a header route can only pick a policy file, the client sets the header";
+
+    private final Route defaultRoute;
+    private final Node root = new Node();
+    private final Map<String, Route> extensions = new HashMap<String, Route>();
+    private final Map<String, Map<String, Route>> headers = new LinkedHashMap<String, Map<String, Route>>();
+    private final Set<String> policyFiles = new LinkedHashSet<String>();
+
+    /**
+     * @param routes comma separated <code>pattern = policy file</code> pairs, <code>skip</code> instead of a
+     *               policy file leaves the matched requests alone
+     */
+    public PolicyRouter(String routes, String defaultPolicyFile) {
+        this.defaultRoute = new Route(DEFAULT_PATTERN, defaultPolicyFile, false);
+        policyFiles.add(defaultPolicyFile);
+        for (String route : routes.split(",")) {
+            route = route.trim();
+            if (route.length() > 0) {
+                add(route);
+            }
+        }
+    }
+
+    /**
+     * @return the policy file for the request, or null when it is not sanitized
+     */
+    public String route(HttpServletRequest request) {
+        return match(request).getPolicyFile();
+    }
+
+    /**
+     * @return the policy file for the context relative path, or null when it is not sanitized
+     */
+    public String route(String path) {
+        return match(path).getPolicyFile();
+    }
+
+    public Route match(HttpServletRequest request) {
+        for (Map.Entry<String, Map<String, Route>> header : headers.entrySet()) {
+            String value = request.getHeader(header.getKey());
+            if (value != null) {
+                Route route = header.getValue().get(value.trim());
+                if (route != null) {
+                    return route;
+                }
+            }
+        }
+        String path = request.getServletPath();
+        if (request.getPathInfo() != null) {
+            path = path == null ? request.getPathInfo() : path + request.getPathInfo();
+        }
+        return match(path == null ? "" : path);
+    }
+
+    public Route match(String path) {
+        Node node = root;
+        Route prefix = root.prefix;
+        int length = path.length();
+        for (int i = 0; i < length && node != null; i++) {
+            node = node.child(path.charAt(i));
+            if (node != null && node.prefix != null && (i + 1 == length || path.charAt(i + 1) == '/')) {
+                prefix = node.prefix;
+            }
+        }
+        if (node != null && node.exact != null) {
+            return node.exact;
+        }
+        if (prefix != null) {
+            return prefix;
+        }
+        if (!extensions.isEmpty()) {
+            int dot = path.lastIndexOf('.');
+            if (dot > path.lastIndexOf('/')) {
+                Route route = extensions.get(path.substring(dot + 1));
+                if (route != null) {
+                    return route;
+                }
+            }
+        }
+        return defaultRoute;
+    }
+
+    /**
+     * @return every policy file a request can be routed to, including the default one
+     */
+    public Set<String> getPolicyFiles() {
+        return policyFiles;
+    }
+
+    private void add(String route) {
+        int separator = route.lastIndexOf('=');
+        if (separator < 0) {
+            throw new IllegalArgumentException(MessageFormat.format(INVALID_ROUTE, route));
+        }
+        String pattern = route.substring(0, separator).trim();
+        String value = route.substring(separator + 1).trim();
+        if (pattern.length() == 0 || value.length() == 0) {
+            throw new IllegalArgumentException(MessageFormat.format(INVALID_ROUTE, route));
+        }
+        Route target;
+        if (value.equalsIgnoreCase(SKIP)) {
+            target = new Route(pattern, null, false);
+        } else if (value.startsWith(INPUT_PREFIX) && value.length() > INPUT_PREFIX.length()) {
+            target = new Route(pattern, value.substring(INPUT_PREFIX.length()).trim(), true);
+        } else {
+            target = new Route(pattern, value, false);
+        }
+        if (target.getPolicyFile() != null) {
+            policyFiles.add(target.getPolicyFile());
+        }
+
+        if (pattern.startsWith(HEADER_PREFIX)) {
+            if (target.isSkipped() || target.isInputOnly()) {
+                throw new IllegalArgumentException(MessageFormat.format(UNSAFE_HEADER_ROUTE, route));
+            }
+            int colon = pattern.indexOf(':', HEADER_PREFIX.length());
+            if (colon <= HEADER_PREFIX.length()) {
+                throw new IllegalArgumentException(MessageFormat.format(INVALID_ROUTE, route));
+            }
+            String name = pattern.substring(HEADER_PREFIX.length(), colon).trim();
+            Map<String, Route> values = headers.get(name);
+            if (values == null) {
+                values = new HashMap<String, Route>();
+                headers.put(name, values);
+            }
+            values.put(pattern.substring(colon + 1).trim(), target);
+        } else if (pattern.startsWith("*.")) {
+            extensions.put(pattern.substring(2), target);
+        } else if (pattern.startsWith("/") && pattern.endsWith("/*")) {
+            insert(pattern.substring(0, pattern.length() - 2)).prefix = target;
+        } else if (pattern.startsWith("/") && pattern.indexOf('*') < 0) {
+            insert(pattern).exact = target;
+        } else {
+            throw new IllegalArgumentException(MessageFormat.format(INVALID_ROUTE, route));
+        }
+    }
+
+    private Node insert(String path) {
+        Node node = root;
+        for (int i = 0; i < path.length(); i++) {
+            node = node.add(path.charAt(i));
+        }
+        return node;
+    }
+
+    /**
+     * Where a request is routed: the pattern it matched, the policy file it is sanitized with, null when it
+     * is skipped, and whether only its input is sanitized.
+     */
+    public static class Route {
+        private final String pattern;
+        private final String policyFile;
+        private final boolean inputOnly;
+
+        public Route(String pattern, String policyFile, boolean inputOnly) {
+            this.pattern = pattern;
+            this.policyFile = policyFile;
+            this.inputOnly = inputOnly;
+        }
+
+        /**
+         * @return the configured pattern, or {@link #DEFAULT_PATTERN} for the default route
+         */
+        public String getPattern() {
+            return pattern;
+        }
+
+        public String getPolicyFile() {
+            return policyFile;
+        }
+
+        public boolean isSkipped() {
+            return policyFile == null;
+        }
+
+        public boolean isInputOnly() {
+            return inputOnly;
+        }
+    }
+
+    /**
+     * Trie node, the children are kept sorted by character for a binary search.
+     */
+    private static class Node {
+        private char[] keys = new char[0];
+        private Node[] children = new Node[0];
+        private Route exact;
+        private Route prefix;
+
+        private Node child(char c) {
+            int index = Arrays.binarySearch(keys, c);
+            return index < 0 ? null : children[index];
+        }
+
+        private Node add(char c) {
+            int index = Arrays.binarySearch(keys, c);
+            if (index >= 0) {
+                return children[index];
+            }
+            index = -index - 1;
+            char[] newKeys = new char[keys.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, index);
+            System.arraycopy(children, 0, newChildren, 0, index);
+            System.arraycopy(keys, index, newKeys, index + 1, keys.length - index);
+            System.arraycopy(children, index, newChildren, index + 1, children.length - index);
+            newKeys[index] = c;
+            newChildren[index] = new Node();
+            keys = newKeys;
+            children = newChildren;
+            return newChildren[index];
+        }
+    }
+}
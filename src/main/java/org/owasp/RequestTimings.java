@@ -0,0 +1,89 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+
+package org.owasp;
+
+import javax.servlet.ServletRequest;
+
+/**
+ * The time one request spent in each phase of the filter. The chain phase is the application itself, capture
+ * is copying what it writes into the capture buffer, then come loading the policy, scanning and writing the
+ * clean body. Every phase is handed to the listeners as it ends.
+ */
+public class RequestTimings {
+    public static final String CHAIN = "chain";
+    public static final String CAPTURE = "capture";
+    public static final String POLICY = "policy";
+    public static final String SCAN = "scan";
+    public static final String WRITE = "write";
+
+    private static final String[] PHASES = {CHAIN, CAPTURE, POLICY, SCAN, WRITE};
+
+    private final ServletRequest request;
+    private final PhaseListener[] listeners;
+    private final long[] nanos = new long[PHASES.length];
+
+    public RequestTimings(ServletRequest request, PhaseListener[] listeners) {
+        this.request = request;
+        this.listeners = listeners;
+    }
+
+    /**
+     * Adds to the time of a phase, a phase can run more than once for a request.
+     */
+    public void record(String phase, long phaseNanos) {
+        nanos[index(phase)] += phaseNanos;
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i].phaseTimed(request, phase, phaseNanos);
+        }
+    }
+
+    public long getNanos(String phase) {
+        return nanos[index(phase)];
+    }
+
+    /**
+     * @return a Server-Timing header value with the phases timed so far in milliseconds, or null when none were
+     */
+    public String toServerTiming() {
+        StringBuilder header = new StringBuilder(96);
+        for (int i = 0; i < PHASES.length; i++) {
+            if (nanos[i] == 0) {
+                continue;
+            }
+            if (header.length() > 0) {
+                header.append(", ");
+            }
+            long micros = nanos[i] / 1000;
+            header.append(PHASES[i]).append(";dur=").append(micros / 1000).append('.');
+            long fraction = micros % 1000;
+            if (fraction < 100) {
+                header.append(fraction < 10 ? "00" : "0");
+            }
+            header.append(fraction);
+        }
+        return header.length() == 0 ? null : header.toString();
+    }
+
+    private static int index(String phase) {
+        for (int i = 0; i < PHASES.length; i++) {
+            if (PHASES[i].equals(phase)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown phase (" + phase + "), expected one of: chain, capture, policy, scan, write");
+    }
+}
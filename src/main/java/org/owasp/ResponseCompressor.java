@@ -0,0 +1,186 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+
+package org.owasp;
+
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.MessageFormat;
+import java.util.Enumeration;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip compresses sanitized bodies on their way to the client. The body is compressed as it is written, so
+ * a compressed response has no content length and is sent chunked. Bodies under the minimum size are
+ * written as is, compressing them costs more than it saves.
+ */
+public class ResponseCompressor {
+    public static final int DEFAULT_MIN_SIZE = 1024;
+    public static final int DEFAULT_LEVEL = 6;
+    private static final String ACCEPT_ENCODING = "Accept-Encoding";
+    private static final String CONTENT_ENCODING = "Content-Encoding";
+    private static final String VARY = "Vary";
+    private static final String GZIP = "gzip";
+    private static final String INVALID_LEVEL = "Invalid compression level ({0}), expected 1 to 9";
+
+    private final int level;
+    private final int minSize;
+
+    public ResponseCompressor() {
+        this(DEFAULT_LEVEL, DEFAULT_MIN_SIZE);
+    }
+
+    /**
+     * @param level deflate level, 1 is fastest and 9 compresses best
+     * @param minSize bodies shorter than this many bytes are not compressed
+     */
+    public ResponseCompressor(int level, int minSize) {
+        if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException(MessageFormat.format(INVALID_LEVEL, String.valueOf(level)));
+        }
+        this.level = level;
+        this.minSize = minSize;
+    }
+
+    /**
+     * @return true when the request's Accept-Encoding allows gzip, an encoding with a q value of 0 is refused
+     */
+    public boolean accepts(HttpServletRequest request) {
+        Enumeration<?> headers = request.getHeaders(ACCEPT_ENCODING);
+        boolean accepted = false;
+        while (headers != null && headers.hasMoreElements()) {
+            for (String coding : ((String) headers.nextElement()).split(",")) {
+                String[] parts = coding.split(";");
+                String name = parts[0].trim().toLowerCase();
+                if (name.equals(GZIP) || name.equals("x-" + GZIP)) {
+                    return !isRefused(parts);
+                } else if (name.equals("*")) {
+                    accepted = !isRefused(parts);
+                }
+            }
+        }
+        return accepted;
+    }
+
+    /**
+     * Marks a response whose body may come compressed, so caches keep the two versions apart. Only bodies
+     * {@link #compresses(long)} would compress for some client need it. Accept-Encoding is added to the
+     * Vary the response already has, when it isn't there yet.
+     */
+    public void vary(HttpServletResponse response) {
+        StringBuilder vary = new StringBuilder();
+        for (String value : response.getHeaders(VARY)) {
+            for (String name : value.split(",")) {
+                if (name.trim().equalsIgnoreCase(ACCEPT_ENCODING) || name.trim().equals("*")) {
+                    return;
+                }
+            }
+            if (value.trim().length() > 0) {
+                vary.append(vary.length() > 0 ? ", " : "").append(value.trim());
+            }
+        }
+        response.setHeader(VARY, vary.append(vary.length() > 0 ? ", " : "").append(ACCEPT_ENCODING).toString());
+    }
+
+    /**
+     * Starts a body of the given length, setting the headers for it.
+     *
+     * @param length the uncompressed length, or -1 when it isn't known
+     * @return the stream to write the body to, it has to be handed to {@link #finish(OutputStream)} afterwards
+     */
+    public OutputStream open(ServletResponse response, long length) throws IOException {
+        if (length >= 0 && length < minSize) {
+            response.setContentLength((int) length);
+            return response.getOutputStream();
+        }
+        if (response instanceof HttpServletResponse) {
+            ((HttpServletResponse) response).setHeader(CONTENT_ENCODING, GZIP);
+        }
+        return new LeveledGZIPOutputStream(response.getOutputStream(), level);
+    }
+
+    /**
+     * Writes the end of a compressed body, the response's own stream is left open.
+     */
+    public void finish(OutputStream body) throws IOException {
+        if (body instanceof LeveledGZIPOutputStream) {
+            ((LeveledGZIPOutputStream) body).finish();
+        }
+    }
+
+    /**
+     * Frees the native zlib memory of a compressed body, for a body that failed before {@link #finish(OutputStream)}.
+     * Ending a finished body again does nothing.
+     */
+    public void end(OutputStream body) {
+        if (body instanceof LeveledGZIPOutputStream) {
+            ((LeveledGZIPOutputStream) body).end();
+        }
+    }
+
+    /**
+     * @return true when the body would be compressed
+     */
+    public boolean compresses(long length) {
+        return length < 0 || length >= minSize;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    private boolean isRefused(String[] parts) {
+        for (int i = 1; i < parts.length; i++) {
+            String parameter = parts[i].trim();
+            if (parameter.startsWith("q=")) {
+                try {
+                    return Double.parseDouble(parameter.substring(2).trim()) <= 0;
+                } catch (NumberFormatException e) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static class LeveledGZIPOutputStream extends GZIPOutputStream {
+        private LeveledGZIPOutputStream(OutputStream out, int level) throws IOException {
+            super(out, 8192);
+            def.setLevel(level);
+        }
+
+        @Override
+        public void finish() throws IOException {
+            try {
+                super.finish();
+            } finally {
+                end();
+            }
+        }
+
+        private void end() {
+            def.end();
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.owasp;
+
+import org.owasp.validator.html.CleanResults;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the results of scanning a body, keyed by the {@link ContentHash} of the captured bytes, the
+ * character encoding they were decoded with, which the clean html is encoded with again, and the policy it was
+ * scanned with. The cache holds at most the configured number of bytes of clean html and evicts
+ * the least recently used entries first. The entries of a policy are dropped as soon as a different version
+ * of it is used.
+ */
+public class SanitizedOutputCache {
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private final LinkedHashMap<Key, CleanResults> entries = new LinkedHashMap<Key, CleanResults>(16, 0.75f, true);
+    private final Map<String, Long> policyVersions = new HashMap<String, Long>();
+    private final long maxBytes;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private long bytes;
+
+    public SanitizedOutputCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public CleanResults get(ContentHash contentHash, long policyVersion) {
+        return get(contentHash, null, null, policyVersion);
+    }
+
+    public synchronized CleanResults get(ContentHash contentHash, String characterEncoding, String policyFile, long policyVersion) {
+        Long current = policyVersions.get(policyFile);
+        CleanResults results = current != null && current.longValue() == policyVersion ? entries.get(new Key(policyFile, characterEncoding, contentHash)) : null;
+        if (results == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return results;
+    }
+
+    public void put(ContentHash contentHash, long policyVersion, CleanResults results) {
+        put(contentHash, null, null, policyVersion, results);
+    }
+
+    public synchronized void put(ContentHash contentHash, String characterEncoding, String policyFile, long policyVersion, CleanResults results) {
+        Long current = policyVersions.get(policyFile);
+        if (current == null || current.longValue() != policyVersion) {
+            remove(policyFile);
+            policyVersions.put(policyFile, policyVersion);
+        }
+        CleanResults stripped = strip(results);
+        long size = sizeOf(stripped);
+        if (size > maxBytes) {
+            return;
+        }
+        CleanResults previous = entries.put(new Key(policyFile, characterEncoding, contentHash), stripped);
+        if (previous != null) {
+            bytes -= sizeOf(previous);
+        }
+        bytes += size;
+        Iterator<Map.Entry<Key, CleanResults>> eldest = entries.entrySet().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            bytes -= sizeOf(eldest.next().getValue());
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    private void remove(String policyFile) {
+        Iterator<Map.Entry<Key, CleanResults>> entry = entries.entrySet().iterator();
+        while (entry.hasNext()) {
+            Map.Entry<Key, CleanResults> next = entry.next();
+            if (policyFile == null ? next.getKey().policyFile == null : policyFile.equals(next.getKey().policyFile)) {
+                bytes -= sizeOf(next.getValue());
+                entry.remove();
+            }
+        }
+    }
+
+    private static CleanResults strip(CleanResults results) {
+        // CleanResults predates generics, its error messages are strings
+        @SuppressWarnings("unchecked")
+        List<String> messages = results.getErrorMessages();
+        return new CleanResults(results.getStartOfScan(), results.getEndOfScan(), results.getCleanHTML(), null,
+                messages == null ? new ArrayList<String>() : new ArrayList<String>(messages));
+    }
+
+    private long sizeOf(CleanResults results) {
+        String cleanHtml = results.getCleanHTML();
+        long size = ENTRY_OVERHEAD + (cleanHtml == null ? 0 : 2L * cleanHtml.length());
+        @SuppressWarnings("unchecked")
+        List<String> messages = results.getErrorMessages();
+        for (String message : messages) {
+            size += 2L * message.length();
+        }
+        return size;
+    }
+
+    private static class Key {
+        private final String policyFile;
+        private final String characterEncoding;
+        private final ContentHash contentHash;
+
+        private Key(String policyFile, String characterEncoding, ContentHash contentHash) {
+            this.policyFile = policyFile;
+            this.characterEncoding = characterEncoding;
+            this.contentHash = contentHash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return contentHash.equals(key.contentHash) && equal(policyFile, key.policyFile) && equal(characterEncoding, key.characterEncoding);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * contentHash.hashCode() + (policyFile == null ? 0 : policyFile.hashCode())) + (characterEncoding == null ? 0 : characterEncoding.hashCode());
+        }
+
+        private static boolean equal(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.owasp;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.owasp.validator.html.CleanResults;
+import org.owasp.validator.html.Policy;
+import org.owasp.validator.html.PolicyException;
+import org.owasp.validator.html.ScanException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Sanitizes the request parameters, and the configured headers, with a policy as the application reads them.
+ * A value is scanned the first time it is asked for and remembered for the rest of the request, values
+ * without any markup are not scanned at all. A value that can't be scanned reads as an empty string.
+ * <p/>
+ * By default a scanned value reads as clean html: markup the policy allows is kept and everything else is
+ * entity encoded, <code>a &lt; b</code> reads as <code>a &amp;lt; b</code>. That is right for an application
+ * that writes the value out as is, one that escapes it again would show the entities. With {@link #TEXT_VALUES}
+ * a scanned value reads as the text of the clean html instead, tags dropped and entities decoded, which such an
+ * application escapes once. A text value can hold <code>&lt;</code> again, so it must never be written out
+ * unescaped.
+ */
+public class SanitizingHttpServletRequest extends HttpServletRequestWrapper {
+    public static final String HTML_VALUES = "html";
+    public static final String TEXT_VALUES = "text";
+
+    private static final String GENERIC_ERROR = "A problem occured while sanitizing the HTTP Request";
+
+    private final AntiSamyPool antiSamyPool;
+    private final Policy policy;
+    private final PlainTextDetector plainTextDetector;
+    private final Set<String> sanitizedHeaders;
+    private final boolean textValues;
+    private final Map<String, String[]> parameters = new HashMap<String, String[]>();
+    private Map<String, List<String>> headers;
+    private Map<String, String[]> parameterMap;
+    private int scannedValues;
+    private Log log = LogFactory.getLog(SanitizingHttpServletRequest.class);
+
+    /**
+     * @param plainTextDetector null to scan every value
+     * @param sanitizedHeaders lower case names of the headers to sanitize
+     */
+    public SanitizingHttpServletRequest(HttpServletRequest request, AntiSamyPool antiSamyPool, Policy policy, PlainTextDetector plainTextDetector, Set<String> sanitizedHeaders) {
+        this(request, antiSamyPool, policy, plainTextDetector, sanitizedHeaders, HTML_VALUES);
+    }
+
+    /**
+     * @param values {@link #HTML_VALUES} to read scanned values as clean html, {@link #TEXT_VALUES} to read them as its text
+     */
+    public SanitizingHttpServletRequest(HttpServletRequest request, AntiSamyPool antiSamyPool, Policy policy, PlainTextDetector plainTextDetector, Set<String> sanitizedHeaders, String values) {
+        super(request);
+        this.antiSamyPool = antiSamyPool;
+        this.policy = policy;
+        this.plainTextDetector = plainTextDetector;
+        this.sanitizedHeaders = sanitizedHeaders;
+        this.textValues = TEXT_VALUES.equals(values);
+    }
+
+    @Override
+    public String getParameter(String name) {
+        String[] values = getParameterValues(name);
+        return values == null || values.length == 0 ? null : values[0];
+    }
+
+    @Override
+    public String[] getParameterValues(String name) {
+        String[] values = parameters.get(name);
+        if (values == null && !parameters.containsKey(name)) {
+            values = super.getParameterValues(name);
+            if (values != null) {
+                String[] clean = new String[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    clean[i] = sanitize(values[i]);
+                }
+                values = clean;
+            }
+            parameters.put(name, values);
+        }
+        return values;
+    }
+
+    @Override
+    public Map<String, String[]> getParameterMap() {
+        if (parameterMap == null) {
+            Map<String, String[]> map = new LinkedHashMap<String, String[]>();
+            for (Object name : super.getParameterMap().keySet()) {
+                map.put((String) name, getParameterValues((String) name));
+            }
+            parameterMap = Collections.unmodifiableMap(map);
+        }
+        return parameterMap;
+    }
+
+    @Override
+    public String getHeader(String name) {
+        if (name == null || !sanitizedHeaders.contains(name.toLowerCase())) {
+            return super.getHeader(name);
+        }
+        List<String> values = sanitizedHeader(name);
+        return values.isEmpty() ? null : values.get(0);
+    }
+
+    @Override
+    public Enumeration<String> getHeaders(String name) {
+        if (name == null || !sanitizedHeaders.contains(name.toLowerCase())) {
+            return super.getHeaders(name);
+        }
+        return Collections.enumeration(sanitizedHeader(name));
+    }
+
+    /**
+     * @return how many values were run through the scanner so far
+     */
+    public int getScannedValues() {
+        return scannedValues;
+    }
+
+    protected void setLog(Log log) {
+        this.log = log;
+    }
+
+    private List<String> sanitizedHeader(String name) {
+        if (headers == null) {
+            headers = new HashMap<String, List<String>>();
+        }
+        String key = name.toLowerCase();
+        List<String> values = headers.get(key);
+        if (values == null) {
+            values = new ArrayList<String>();
+            Enumeration<String> raw = super.getHeaders(name);
+            while (raw != null && raw.hasMoreElements()) {
+                values.add(sanitize(raw.nextElement()));
+            }
+            headers.put(key, values);
+        }
+        return values;
+    }
+
+    private String sanitize(String value) {
+        if (plainTextDetector != null && plainTextDetector.isPlainText(value, policy)) {
+            return value;
+        }
+        scannedValues++;
+        try {
+            CleanResults results = antiSamyPool.scan(value, policy);
+            if (textValues && results.getCleanXMLDocumentFragment() != null) {
+                return results.getCleanXMLDocumentFragment().getTextContent();
+            }
+            return results.getCleanHTML();
+        } catch (ScanException e) {
+            log.error(GENERIC_ERROR, e);
+        } catch (PolicyException e) {
+            log.error(GENERIC_ERROR, e);
+        }
+        return "";
+    }
+}
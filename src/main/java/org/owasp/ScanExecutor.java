@@ -0,0 +1,140 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.owasp;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded executor for scans taken off the container's request threads. Once every thread is busy and the
+ * queue is full a scan either runs inline on the calling thread, the caller waits for room in the queue or the
+ * scan is rejected.
+ * Threads are virtual when the JVM has them, found by reflection so older JVMs keep platform threads.
+ */
+public class ScanExecutor {
+    public static final String INLINE = "inline";
+    public static final String WAIT = "wait";
+    public static final String REJECT = "reject";
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong saturatedCount = new AtomicLong();
+    private final boolean virtualThreads;
+
+    public ScanExecutor(int threads, int queueSize, String saturationPolicy, boolean preferVirtualThreads) {
+        if (!INLINE.equals(saturationPolicy) && !WAIT.equals(saturationPolicy) && !REJECT.equals(saturationPolicy)) {
+            throw new IllegalArgumentException("Unknown saturation policy (" + saturationPolicy + "), expected one of: " + INLINE + ", " + WAIT + ", " + REJECT);
+        }
+        ThreadFactory threadFactory = preferVirtualThreads ? virtualThreadFactory() : null;
+        virtualThreads = threadFactory != null;
+        if (threadFactory == null) {
+            threadFactory = new PlatformThreadFactory();
+        }
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)), threadFactory,
+                INLINE.equals(saturationPolicy) ? new RunInline() : WAIT.equals(saturationPolicy) ? new WaitForRoom() : new Reject());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @throws RejectedExecutionException when the executor is saturated with the reject policy, or shut down
+     */
+    public void execute(Runnable scan) {
+        executor.execute(scan);
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    public boolean isShutdown() {
+        return executor.isShutdown();
+    }
+
+    public long getSaturatedCount() {
+        return saturatedCount.get();
+    }
+
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, "antisamy-scanner-", 0L);
+            Method factory = builderType.getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static class PlatformThreadFactory implements ThreadFactory {
+        private final ThreadFactory defaultFactory = Executors.defaultThreadFactory();
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = defaultFactory.newThread(runnable);
+            thread.setName("antisamy-scanner-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    private class RunInline implements RejectedExecutionHandler {
+        public void rejectedExecution(Runnable scan, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("The scan executor has been shut down");
+            }
+            saturatedCount.incrementAndGet();
+            scan.run();
+        }
+    }
+
+    private class WaitForRoom implements RejectedExecutionHandler {
+        public void rejectedExecution(Runnable scan, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("The scan executor has been shut down");
+            }
+            saturatedCount.incrementAndGet();
+            try {
+                executor.getQueue().put(scan);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException(e);
+            }
+        }
+    }
+
+    private class Reject implements RejectedExecutionHandler {
+        public void rejectedExecution(Runnable scan, ThreadPoolExecutor executor) {
+            saturatedCount.incrementAndGet();
+            throw new RejectedExecutionException("Every scanner thread is busy and the queue is full");
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.owasp;
+
+import org.owasp.validator.html.CleanResults;
+import org.owasp.validator.html.PolicyException;
+import org.owasp.validator.html.ScanException;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs scans on a {@link ScanExecutor} and stops waiting for them once the time limit has passed. AntiSamy
+ * can't be interrupted, so a scan that timed out keeps its thread until it finishes by itself. The executor
+ * should reject scans when it is saturated rather than run them inline, or a run of slow pages ends up
+ * blocking the request threads again.
+ */
+public class ScanTimeLimiter {
+    private final ScanExecutor scanExecutor;
+    private final long timeoutNanos;
+    private final AtomicLong timedOutCount = new AtomicLong();
+
+    public ScanTimeLimiter(ScanExecutor scanExecutor, long timeoutMillis) {
+        this.scanExecutor = scanExecutor;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    /**
+     * @throws ScanBudgetExceededException when the scan did not finish in time or could not be started
+     */
+    public CleanResults scan(Callable<CleanResults> scan) throws ScanException, PolicyException {
+        FutureTask<CleanResults> task = new FutureTask<CleanResults>(scan);
+        try {
+            scanExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            throw new ScanBudgetExceededException("No scanner thread available: " + e.getMessage());
+        }
+        try {
+            return task.get(timeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            timedOutCount.incrementAndGet();
+            task.cancel(true);
+            throw new ScanBudgetExceededException("The scan took longer than " + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + " ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            task.cancel(true);
+            throw new ScanBudgetExceededException("Interrupted while waiting for the scan");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ScanException) {
+                throw (ScanException) cause;
+            } else if (cause instanceof PolicyException) {
+                throw (PolicyException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new ScanException((Exception) cause);
+        }
+    }
+
+    public long getTimedOutCount() {
+        return timedOutCount.get();
+    }
+
+    public long getTimeoutMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(timeoutNanos);
+    }
+
+    public void shutdown() {
+        scanExecutor.shutdown();
+    }
+}
@@ -0,0 +1,159 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.owasp;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.owasp.validator.html.Policy;
+import org.owasp.validator.html.PolicyException;
+import org.owasp.validator.html.ScanException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Runs a corpus of pages through the scanners before the filter takes traffic, so the policy, AntiSamy and
+ * NekoHTML code paths are loaded and compiled by the JIT instead of on the first requests.
+ */
+public class ScannerWarmUp {
+    /**
+     * Used when no corpus is configured, touches the common elements, attributes, css and entity handling.
+     */
+    public static final String DEFAULT_PAGE = "<html><head><title>Warm up</title><style>p { color: #333; margin: 0 auto; }</style></head>"
+            + "<body><h1 class=\"title\">Warm &amp; up</h1><p style=\"font-weight: bold\">Some <b>bold</b>, <i>italic</i> and "
+            + "<a href=\"http://www.owasp.org/\" title=\"OWASP\">linked</a> text &copy; 2010.</p>"
+            + "<ul><li>one</li><li>two</li></ul><table><tr><td align=\"left\">cell</td></tr></table>"
+            + "<img src=\"logo.png\" alt=\"logo\" width=\"10\" height=\"10\"/><div onclick=\"alert(1)\">div</div>"
+            + "<script>alert(document.cookie)</script><form action=\"/post\"><input type=\"text\" name=\"q\"/></form></body></html>";
+
+    private static final String PAGE_FAILED = "Warm up scan of page {0} failed";
+    private static final String DIRECTORY_NOT_LISTED = "Warm up corpus directory {0} could not be listed, skipping it";
+
+    private final AntiSamyPool antiSamyPool;
+    private final int iterations;
+    private Log log = LogFactory.getLog(ScannerWarmUp.class);
+    private long scans;
+
+    public ScannerWarmUp(AntiSamyPool antiSamyPool, int iterations) {
+        this.antiSamyPool = antiSamyPool;
+        this.iterations = iterations;
+    }
+
+    /**
+     * @param locations comma separated files or directories whose files are read, null for {@link #DEFAULT_PAGE}
+     */
+    public static List<String> readCorpus(String locations, String encoding) throws IOException {
+        if (locations == null || locations.trim().length() == 0) {
+            return Collections.singletonList(DEFAULT_PAGE);
+        }
+        List<String> corpus = new ArrayList<String>();
+        for (String location : locations.split(",")) {
+            location = location.trim();
+            if (location.length() == 0) {
+                continue;
+            }
+            File file = new File(location);
+            if (file.isDirectory()) {
+                readDirectory(file, encoding, corpus);
+            } else {
+                corpus.add(read(file, encoding));
+            }
+        }
+        return corpus;
+    }
+
+    /**
+     * A directory that can't be listed, for lack of permissions or an I/O error, is logged and skipped.
+     */
+    static void readDirectory(File directory, String encoding, List<String> corpus) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            LogFactory.getLog(ScannerWarmUp.class).warn(MessageFormat.format(DIRECTORY_NOT_LISTED, directory));
+            return;
+        }
+        Arrays.sort(files);
+        for (File child : files) {
+            if (child.isFile()) {
+                corpus.add(read(child, encoding));
+            }
+        }
+    }
+
+    /**
+     * Scans every page of the corpus with every policy, the configured number of times. Pages the scanner
+     * rejects, for example because they exceed the policy's maximum input size, are logged and skipped.
+     *
+     * @return how long the warm up took in nanoseconds
+     * @throws PolicyException when a policy can't be used for scanning
+     */
+    public long run(List<String> corpus, Collection<Policy> policies) throws PolicyException {
+        long start = System.nanoTime();
+        scans = 0;
+        boolean[] failed = new boolean[corpus.size()];
+        for (int i = 0; i < iterations; i++) {
+            for (Policy policy : policies) {
+                for (int page = 0; page < corpus.size(); page++) {
+                    if (failed[page]) {
+                        continue;
+                    }
+                    try {
+                        antiSamyPool.scan(corpus.get(page), policy);
+                        scans++;
+                    } catch (ScanException e) {
+                        failed[page] = true;
+                        log.warn(MessageFormat.format(PAGE_FAILED, page), e);
+                    }
+                }
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * @return the number of scans the last {@link #run(List, Collection)} made
+     */
+    public long getScans() {
+        return scans;
+    }
+
+    protected void setLog(Log log) {
+        this.log = log;
+    }
+
+    private static String read(File file, String encoding) throws IOException {
+        Reader reader = new InputStreamReader(new FileInputStream(file), encoding);
+        try {
+            StringBuilder contents = new StringBuilder((int) file.length());
+            char[] buffer = new char[8192];
+            int read;
+            while ((read = reader.read(buffer)) >= 0) {
+                contents.append(buffer, 0, read);
+            }
+            return contents.toString();
+        } finally {
+            reader.close();
+        }
+    }
+}
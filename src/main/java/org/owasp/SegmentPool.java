@@ -0,0 +1,91 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.owasp;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed size byte segments that are recycled between requests by the capture buffers.
+ * Segments can either live on the heap or be allocated off-heap as direct buffers.
+ */
+public class SegmentPool {
+    public static final int DEFAULT_SEGMENT_SIZE = 8192;
+    public static final int DEFAULT_POOL_SIZE = 256;
+
+    private final BlockingQueue<ByteBuffer> segments;
+    private final int segmentSize;
+    private final boolean direct;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public SegmentPool() {
+        this(DEFAULT_POOL_SIZE, DEFAULT_SEGMENT_SIZE, false);
+    }
+
+    /**
+     * @param poolSize    the number of idle segments kept for reuse, 0 disables pooling
+     * @param segmentSize the size in bytes of every segment
+     * @param direct      whether the segments are allocated outside of the heap
+     */
+    public SegmentPool(int poolSize, int segmentSize, boolean direct) {
+        if (segmentSize < 1) {
+            throw new IllegalArgumentException("The segment size must be at least 1");
+        }
+        this.segments = poolSize > 0 ? new ArrayBlockingQueue<ByteBuffer>(poolSize) : null;
+        this.segmentSize = segmentSize;
+        this.direct = direct;
+    }
+
+    public ByteBuffer acquire() {
+        ByteBuffer segment = segments == null ? null : segments.poll();
+        if (segment == null) {
+            misses.incrementAndGet();
+            return direct ? ByteBuffer.allocateDirect(segmentSize) : ByteBuffer.allocate(segmentSize);
+        }
+        hits.incrementAndGet();
+        ((Buffer) segment).clear();
+        return segment;
+    }
+
+    public void release(ByteBuffer segment) {
+        if (segments != null && segment.capacity() == segmentSize) {
+            segments.offer(segment);
+        }
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    public int getIdleSegments() {
+        return segments == null ? 0 : segments.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+}
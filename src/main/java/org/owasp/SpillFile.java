@@ -0,0 +1,145 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.owasp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Temp file that hands out capture segments mapped into memory, so a spilled body is read and written with
+ * the same segment code as one held on the heap. The file is mapped a region of several segments at a time
+ * and deleted when the capture is released. The regions are unmapped on delete where the JVM allows it,
+ * rather than whenever the garbage collector gets to them.
+ */
+public class SpillFile {
+    private static final int REGION_SIZE = 1024 * 1024;
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+    private static final Method CLEANER;
+    private static final Method CLEAN;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        Method cleaner = null;
+        Method clean = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+        } catch (Exception e) {
+            invokeCleaner = null;
+            try {
+                cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+                clean = cleaner.getReturnType().getMethod("clean");
+            } catch (Exception notAvailable) {
+                cleaner = null;
+            }
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+        CLEANER = cleaner;
+        CLEAN = clean;
+    }
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private final int segmentSize;
+    private final int regionSize;
+    private final List<MappedByteBuffer> regions = new ArrayList<MappedByteBuffer>();
+    private MappedByteBuffer region;
+    private long mappedBytes;
+
+    public SpillFile(File directory, int segmentSize) throws IOException {
+        this.file = File.createTempFile("antisamy-capture-", ".tmp", directory);
+        this.randomAccessFile = new RandomAccessFile(file, "rw");
+        this.channel = randomAccessFile.getChannel();
+        this.segmentSize = segmentSize;
+        this.regionSize = Math.max(1, REGION_SIZE / segmentSize) * segmentSize;
+    }
+
+    public ByteBuffer nextSegment() throws IOException {
+        if (region == null || !region.hasRemaining()) {
+            region = channel.map(FileChannel.MapMode.READ_WRITE, mappedBytes, regionSize);
+            mappedBytes += regionSize;
+            regions.add(region);
+        }
+        ByteBuffer view = region.duplicate();
+        ((Buffer) view).limit(region.position() + segmentSize);
+        ((Buffer) region).position(region.position() + segmentSize);
+        return view.slice();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getMappedBytes() {
+        return mappedBytes;
+    }
+
+    /**
+     * Unmaps and deletes the file. Segments handed out before must not be touched afterwards.
+     */
+    public void delete() {
+        for (MappedByteBuffer mapped : regions) {
+            unmap(mapped);
+        }
+        regions.clear();
+        try {
+            channel.close();
+            randomAccessFile.close();
+        } catch (IOException e) {
+            // the file is deleted regardless
+        }
+        region = null;
+        file.delete();
+    }
+
+    /**
+     * @return true when mapped regions are unmapped on {@link #delete()}, otherwise they stay mapped until
+     *         garbage collected
+     */
+    public static boolean isUnmapSupported() {
+        return INVOKE_CLEANER != null || CLEANER != null;
+    }
+
+    private static void unmap(MappedByteBuffer mapped) {
+        try {
+            if (INVOKE_CLEANER != null) {
+                INVOKE_CLEANER.invoke(UNSAFE, mapped);
+            } else if (CLEANER != null) {
+                Object cleaner = CLEANER.invoke(mapped);
+                if (cleaner != null) {
+                    CLEAN.invoke(cleaner);
+                }
+            }
+        } catch (Exception e) {
+            // left to the garbage collector
+        }
+    }
+}
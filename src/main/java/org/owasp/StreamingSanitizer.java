@@ -0,0 +1,288 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.owasp;
+
+import org.owasp.validator.html.CleanResults;
+import org.owasp.validator.html.Policy;
+import org.owasp.validator.html.PolicyException;
+import org.owasp.validator.html.ScanException;
+
+import javax.servlet.ServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Sanitizes a body while it is being written. The decoded text is collected until it reaches the chunk
+ * size, then everything up to the next top level boundary (see {@link HtmlBoundaryFinder}) is scanned on
+ * its own and the clean html is written to the response right away. Memory use depends on the chunk size
+ * and the size of the largest top level element instead of the size of the whole body.
+ * <p/>
+ * A page that has no boundary within the maximum pending number of characters, one wrapped in an element that is
+ * never closed for instance, is buffered from then on and the rest of it is scanned at once when it is finished.
+ * <p/>
+ * The whole body is held to the policy's maximum input size and the pending characters to the {@link CaptureBudget},
+ * a body that goes over either fails like a failed scan, nothing more of it is written.
+ * <p/>
+ * The body is decoded and the clean html encoded with the character encoding of the response, which is
+ * looked up when the first bytes arrive. When a scan fails nothing more is written, the failure is available from {@link #getFailure()}.
+ */
+public class StreamingSanitizer extends OutputStream {
+    private static final String DEFAULT_CHARACTER_ENCODING = "ISO-8859-1";
+    private static final String OVER_BUDGET = "The pending part of the streamed response went over the capture budget";
+    /**
+     * The default maximum of pending characters, in chunks.
+     */
+    public static final int DEFAULT_MAX_PENDING_CHUNKS = 16;
+
+    private final AntiSamyPool antiSamyPool;
+    private final Policy policy;
+    private final ServletResponse response;
+    private final CleanHtmlEncoder cleanHtmlEncoder;
+    private final int chunkSize;
+    private final int maxPending;
+    private CaptureBudget captureBudget;
+    private String characterEncoding;
+    private CharsetDecoder decoder;
+    private final ByteBuffer input = ByteBuffer.allocate(8192);
+    private final CharBuffer decoded = CharBuffer.allocate(8192);
+    private final StringBuilder pending = new StringBuilder();
+    private final HtmlBoundaryFinder boundaryFinder = new HtmlBoundaryFinder();
+    private final ArrayList<String> errorMessages = new ArrayList<String>();
+    private final Date startOfScan = new Date();
+    private OutputStream output;
+    private Exception failure;
+    private boolean finished;
+    private boolean buffered;
+    private boolean overBudget;
+    private long heldBytes;
+    private long inputChars;
+    private long inputBytes;
+    private long scanNanos;
+    private long writeNanos;
+
+    public StreamingSanitizer(AntiSamyPool antiSamyPool, Policy policy, ServletResponse response, CleanHtmlEncoder cleanHtmlEncoder, int chunkSize) {
+        this(antiSamyPool, policy, response, cleanHtmlEncoder, chunkSize, chunkSize * DEFAULT_MAX_PENDING_CHUNKS);
+    }
+
+    /**
+     * @param maxPending number of characters collected without finding a boundary before the rest of the body is buffered
+     */
+    public StreamingSanitizer(AntiSamyPool antiSamyPool, Policy policy, ServletResponse response, CleanHtmlEncoder cleanHtmlEncoder, int chunkSize, int maxPending) {
+        this.antiSamyPool = antiSamyPool;
+        this.policy = policy;
+        this.response = response;
+        this.cleanHtmlEncoder = cleanHtmlEncoder;
+        this.chunkSize = chunkSize;
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * @param captureBudget accounts for the pending characters, two bytes each, null for no accounting
+     */
+    public void setCaptureBudget(CaptureBudget captureBudget) {
+        this.captureBudget = captureBudget;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (failure != null || finished) {
+            return;
+        }
+        inputBytes += len;
+        while (len > 0 && failure == null) {
+            int count = Math.min(len, input.remaining());
+            input.put(b, off, count);
+            off += count;
+            len -= count;
+            decode(false);
+        }
+        sanitizeAvailable();
+    }
+
+    /**
+     * Sanitizes whatever is still pending and flushes the response.
+     *
+     * @return the combined results of every chunk, the clean html has already been written and is not part of it
+     */
+    public CleanResults finish() throws IOException {
+        if (!finished) {
+            finished = true;
+            if (failure == null) {
+                decode(true);
+                sanitize(pending.length());
+            }
+            release();
+            if (output != null) {
+                output.flush();
+            }
+        }
+        return new CleanResults(startOfScan, new Date(), "", null, errorMessages);
+    }
+
+    /**
+     * Drops whatever is still pending without sanitizing it, nothing more is written.
+     */
+    public void abort() {
+        finished = true;
+        release();
+    }
+
+    public Exception getFailure() {
+        return failure;
+    }
+
+    /**
+     * @return true when no boundary was found within the maximum pending characters and the rest of the body was buffered
+     */
+    public boolean isBuffered() {
+        return buffered;
+    }
+
+    /**
+     * @return true when the pending characters went over the capture budget, {@link #getFailure()} is set as well
+     */
+    public boolean isOverBudget() {
+        return overBudget;
+    }
+
+    public long getInputBytes() {
+        return inputBytes;
+    }
+
+    public long getScanNanos() {
+        return scanNanos;
+    }
+
+    public long getWriteNanos() {
+        return writeNanos;
+    }
+
+    private void decode(boolean endOfInput) {
+        if (decoder == null) {
+            characterEncoding = response.getCharacterEncoding() == null ? DEFAULT_CHARACTER_ENCODING : response.getCharacterEncoding();
+            decoder = Charset.forName(characterEncoding).newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+        ((Buffer) input).flip();
+        CoderResult result;
+        do {
+            result = decoder.decode(input, decoded, endOfInput);
+            if (endOfInput && result.isUnderflow()) {
+                decoder.flush(decoded);
+            }
+            ((Buffer) decoded).flip();
+            inputChars += decoded.remaining();
+            pending.append(decoded);
+            ((Buffer) decoded).clear();
+            hold();
+        } while (result.isOverflow() && failure == null);
+        input.compact();
+    }
+
+    private void hold() {
+        if (failure != null) {
+            return;
+        }
+        if (inputChars > policy.getMaxInputSize()) {
+            failure = new ScanException("The streamed response is bigger than the maximum input size of the policy (" + policy.getMaxInputSize() + ")");
+            release();
+            return;
+        }
+        long bytes = 2L * pending.length();
+        if (captureBudget != null && bytes > heldBytes) {
+            if (!captureBudget.acquire(heldBytes, (int) (bytes - heldBytes))) {
+                overBudget = true;
+                failure = new CaptureBudgetExceededException(OVER_BUDGET);
+                release();
+                return;
+            }
+            heldBytes = bytes;
+        }
+    }
+
+    private void release() {
+        pending.setLength(0);
+        if (captureBudget != null) {
+            captureBudget.release(heldBytes);
+        }
+        heldBytes = 0;
+    }
+
+    private void sanitizeAvailable() throws IOException {
+        while (failure == null && !buffered && pending.length() >= chunkSize) {
+            int boundary = boundaryFinder.findBoundary(pending, chunkSize);
+            if (boundary < 0) {
+                buffered = pending.length() > maxPending;
+                return;
+            }
+            sanitize(boundary);
+            boundaryFinder.shift(boundary);
+        }
+    }
+
+    private void sanitize(int length) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        String chunk = pending.substring(0, length);
+        pending.delete(0, length);
+        if (captureBudget != null && heldBytes > 2L * pending.length()) {
+            captureBudget.release(heldBytes - 2L * pending.length());
+            heldBytes = 2L * pending.length();
+        }
+        try {
+            long start = System.nanoTime();
+            CleanResults results = antiSamyPool.scan(chunk, policy);
+            long scanned = System.nanoTime();
+            scanNanos += scanned - start;
+            // CleanResults predates generics, its error messages are strings
+            @SuppressWarnings("unchecked")
+            List<String> messages = results.getErrorMessages();
+            errorMessages.addAll(messages);
+            if (output == null) {
+                output = response.getOutputStream();
+            }
+            output.write(cleanHtmlEncoder.encode(results.getCleanHTML(), characterEncoding));
+            writeNanos += System.nanoTime() - scanned;
+        } catch (ScanException e) {
+            failure = e;
+        } catch (PolicyException e) {
+            failure = e;
+        }
+    }
+
+    /**
+     * Builds the sanitizer of a response once its content type is known to be sanitized.
+     */
+    public interface Factory {
+        StreamingSanitizer build();
+    }
+}
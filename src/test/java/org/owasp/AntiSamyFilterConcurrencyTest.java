@@ -0,0 +1,129 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.owasp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static junit.framework.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AntiSamyFilterConcurrencyTest {
+    private static final int THREADS = 8;
+    private static final int REQUESTS_PER_THREAD = 50;
+
+    private AntiSamyFilter filter;
+    private ExecutorService executor;
+
+    @Test
+    public void test_doFilter_concurrentRequests() throws Exception {
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for (int i = 0; i < THREADS; i++) {
+            results.add(executor.submit(new Requests(i)));
+        }
+        for (Future<Integer> result : results) {
+            assertEquals(REQUESTS_PER_THREAD, result.get().intValue());
+        }
+    }
+
+    private class Requests implements Callable<Integer> {
+        private final List<HttpServletResponse> responses = new ArrayList<HttpServletResponse>();
+        private final List<StubOutputStream> outputs = new ArrayList<StubOutputStream>();
+        private final int thread;
+
+        private Requests(int thread) throws IOException {
+            this.thread = thread;
+            for (int i = 0; i < REQUESTS_PER_THREAD; i++) {
+                StubOutputStream output = new StubOutputStream();
+                HttpServletResponse response = mock(HttpServletResponse.class);
+                when(response.getContentType()).thenReturn("text/html");
+                when(response.getOutputStream()).thenReturn(output);
+                responses.add(response);
+                outputs.add(output);
+            }
+        }
+
+        public Integer call() throws Exception {
+            HttpServletRequest request = mock(HttpServletRequest.class);
+            int correct = 0;
+            for (int i = 0; i < REQUESTS_PER_THREAD; i++) {
+                String id = thread + "-" + i;
+                filter.doFilter(request, responses.get(i), new WritingFilterChain("<p id=\"" + id + "\">request " + id + "</p><script>alert('" + id + "')</script>"));
+                if (("<p id=\"" + id + "\">request " + id + "</p>").equals(new String(outputs.get(i).output.toByteArray(), "UTF-8"))) {
+                    correct++;
+                }
+            }
+            return correct;
+        }
+    }
+
+    private static class WritingFilterChain implements FilterChain {
+        private final String html;
+
+        private WritingFilterChain(String html) {
+            this.html = html;
+        }
+
+        public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+            response.getWriter().write(html);
+        }
+    }
+
+    private static class StubOutputStream extends ServletOutputStream {
+        private ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        @Override
+        public void write(int b) throws IOException {
+            output.write(b);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        FilterConfig filterConfig = mock(FilterConfig.class);
+        when(filterConfig.getInitParameter("antisamy-policy-file")).thenReturn(new File(getClass().getResource("/antisamy-test-policy.xml").toURI()).getAbsolutePath());
+        when(filterConfig.getInitParameter("antisamy-scanner-pool-size")).thenReturn("2");
+
+        filter = new AntiSamyFilter();
+        filter.init(filterConfig);
+        executor = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        filter.destroy();
+    }
+}
@@ -17,17 +17,32 @@ package org.owasp;
 import org.apache.commons.logging.Log;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.owasp.validator.html.*;
 import org.owasp.validator.html.scan.AntiSamyDOMScanner;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.servlet.*;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
 import static junit.framework.Assert.fail;
 import static org.mockito.Mockito.*;
 
@@ -43,7 +58,8 @@ public class AntiSamyFilterTest {
     private HttpServletResponse proxyResponse;
     private HttpResponseInvocationHandlerFactory httpResponseInvocationHandlerFactory;
     private HttpServletResponseInvocationHandler invocationHandler;
-    private AntiSamy antiSamy;
+    private AntiSamyPoolFactory antiSamyPoolFactory;
+    private AntiSamyPool antiSamyPool;
     private CleanResults cleanResults;
     private StubOutputStream outputStream;
     private Log log;
@@ -86,108 +102,1184 @@ public class AntiSamyFilterTest {
         assertEquals("UTF-8", filter.getOutputEncoding());
         assertEquals("UTF-8", filter.getInputEncoding());
         assertEquals(POLICY_FILE, filter.getPolicyFile());
+        verify(antiSamyPoolFactory).build(Runtime.getRuntime().availableProcessors(), AntiSamyDOMScanner.DEFAULT_ENCODING_ALGORITHM, AntiSamyDOMScanner.DEFAULT_ENCODING_ALGORITHM);
+        verify(policyFileLoader).load(POLICY_FILE);
+        verify(policyFileLoader, never()).startReloading(anyLong());
+    }
+
+    @Test
+    public void test_init_policyCheckInterval() throws ServletException {
+        when(filterConfig.getInitParameter("antisamy-policy-file")).thenReturn(POLICY_FILE);
+        when(filterConfig.getInitParameter("antisamy-policy-check-interval")).thenReturn("5000");
+
+        filter.init(filterConfig);
+
+        assertEquals(5000L, filter.getPolicyCheckInterval());
+        verify(policyFileLoader).startReloading(5000L);
+    }
+
+    @Test
+    public void test_init_bufferPool() throws ServletException {
+        when(filterConfig.getInitParameter("antisamy-policy-file")).thenReturn(POLICY_FILE);
+        when(filterConfig.getInitParameter("antisamy-buffer-pool-size")).thenReturn("16");
+        when(filterConfig.getInitParameter("antisamy-buffer-segment-size")).thenReturn("1024");
+        when(filterConfig.getInitParameter("antisamy-buffer-direct")).thenReturn("true");
+
+        filter.init(filterConfig);
+
+        ArgumentCaptor<SegmentPool> segmentPool = ArgumentCaptor.forClass(SegmentPool.class);
+        verify(httpResponseInvocationHandlerFactory).setSegmentPool(segmentPool.capture());
+        assertEquals(1024, segmentPool.getValue().getSegmentSize());
+        assertEquals(true, segmentPool.getValue().isDirect());
+    }
+
+    @Test
+    public void test_init_streamingScanMode() throws ServletException {
+        when(filterConfig.getInitParameter("antisamy-policy-file")).thenReturn(POLICY_FILE);
+        when(filterConfig.getInitParameter("antisamy-scan-mode")).thenReturn("Streaming");
+        when(filterConfig.getInitParameter("antisamy-streaming-chunk-size")).thenReturn("1024");
+        when(filterConfig.getInitParameter("antisamy-streaming-max-pending")).thenReturn("4096");
+
+        filter.init(filterConfig);
+
+        assertEquals("streaming", filter.getScanMode());
+        assertEquals(1024, filter.getStreamingChunkSize());
+        assertEquals(4096, filter.getStreamingMaxPending());
+    }
+
+    @Test
+    public void test_init_unknownScanMode() throws ServletException {
+        when(filterConfig.getInitParameter("antisamy-policy-file")).thenReturn(POLICY_FILE);
+        when(filterConfig.getInitParameter("antisamy-scan-mode")).thenReturn("sax");
+
+        try {
+            filter.init(filterConfig);
+            fail();
+        } catch (IllegalStateException err) {
+            assertEquals("Unknown scan mode (sax), expected one of: dom, streaming, fragments", err.getMessage());
+        }
+    }
+
+    @Test
+    public void test_destroy() {
+        filter.destroy();
+
+        verify(policyFileLoader).stopReloading();
     }
 
     @Test
     public void test_init_specificOutputEncoding() throws ServletException {
         when(filterConfig.getInitParameter("antisamy-policy-file")).thenReturn(POLICY_FILE);
-        when(filterConfig.getInitParameter("antisamy-output-encoding")).thenReturn("output");
+        when(filterConfig.getInitParameter("antisamy-output-encoding")).thenReturn("output");
+
+        filter.init(filterConfig);
+
+        assertEquals("output", filter.getOutputEncoding());
+        verify(antiSamyPoolFactory).build(Runtime.getRuntime().availableProcessors(), AntiSamyDOMScanner.DEFAULT_ENCODING_ALGORITHM, "output");
+    }
+
+    @Test
+    public void test_init_specificInputEncoding() throws ServletException {
+        when(filterConfig.getInitParameter("antisamy-policy-file")).thenReturn(POLICY_FILE);
+        when(filterConfig.getInitParameter("antisamy-input-encoding")).thenReturn("input");
+
+        filter.init(filterConfig);
+
+        assertEquals("input", filter.getInputEncoding());
+        verify(antiSamyPoolFactory).build(Runtime.getRuntime().availableProcessors(), "input", AntiSamyDOMScanner.DEFAULT_ENCODING_ALGORITHM);
+    }
+
+    @Test
+    public void test_init_specificScannerPoolSize() throws ServletException {
+        when(filterConfig.getInitParameter("antisamy-policy-file")).thenReturn(POLICY_FILE);
+        when(filterConfig.getInitParameter("antisamy-scanner-pool-size")).thenReturn("3");
+
+        filter.init(filterConfig);
+
+        assertEquals(3, filter.getScannerPoolSize());
+        verify(antiSamyPoolFactory).build(3, AntiSamyDOMScanner.DEFAULT_ENCODING_ALGORITHM, AntiSamyDOMScanner.DEFAULT_ENCODING_ALGORITHM);
+    }
+
+    @Test
+    public void test_doFilter_NotHtml() throws Exception {
+        when(invocationHandler.getSize()).thenReturn(4);
+        doAnswer(new Answer() {
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                ((OutputStream) invocation.getArguments()[0]).write("test".getBytes());
+                return null;
+            }
+        }).when(invocationHandler).writeTo(outputStream);
+        when(proxyResponse.getContentType()).thenReturn("application/pdf");
+
+        filter.doFilter(request, response, filterChain);
+
+        verifyZeroInteractions(antiSamyPool);
+        verify(response).setContentLength(4);
+        verify(invocationHandler).release();
+        assertEquals("test", new String(outputStream.output.toByteArray()));
+    }
+
+    @Test
+    public void test_doFilter_PassThrough() throws Exception {
+        when(invocationHandler.isPassThrough()).thenReturn(true);
+
+        filter.doFilter(request, response, filterChain);
+
+        verify(filterChain).doFilter(request, proxyResponse);
+        verifyZeroInteractions(antiSamyPool, response);
+    }
+
+    @Test
+    public void test_doFilter_NonHttpRequest() throws Exception {
+        ServletResponse response = mock(ServletResponse.class);
+
+        filter.doFilter(request, response, filterChain);
+
+        verify(filterChain).doFilter(request, response);
+        verifyNoMoreInteractions(antiSamyPool, httpResponseInvocationHandlerFactory, httpResponseProxyFactory);
+    }
+
+    @Test
+    public void test_doFilter_antiSamy_ThrowsScanException() throws Exception {
+        ScanException error = new ScanException("");
+
+        when(antiSamyPool.scan(TAINTED_HTML, policy)).thenThrow(error);
+
+        filter.doFilter(request, response, filterChain);
+
+        verify(log).error("A problem occured while sanitizing the HTTP Response", error);
+    }
+
+    @Test
+    public void test_doFilter_antiSamy_ThrowsPolicyException() throws Exception {
+        PolicyException error = new PolicyException("");
+
+        when(antiSamyPool.scan(TAINTED_HTML, policy)).thenThrow(error);
+
+        filter.doFilter(request, response, filterChain);
+
+        verify(log).error("A problem occured while sanitizing the HTTP Response", error);
+    }
+
+    @Test
+    public void test_doFilter_streaming() throws Exception {
+        filter.setScanMode("streaming");
+        when(policy.getMaxInputSize()).thenReturn(1000);
+
+        filter.doFilter(request, response, filterChain);
+
+        verify(invocationHandler).setStreamingSanitizerFactory(any(StreamingSanitizer.Factory.class));
+        verify(antiSamyPool).scan(TAINTED_HTML, policy);
+        verify(response, never()).setContentLength(anyInt());
+        verify(invocationHandler).release();
+        assertEquals(CLEANED_HTML, new String(outputStream.output.toByteArray()));
+    }
+
+    @Test
+    public void test_doFilter_streaming_alreadySanitizedWhileWriting() throws Exception {
+        filter.setScanMode("streaming");
+        StreamingSanitizer streamingSanitizer = mock(StreamingSanitizer.class);
+        when(streamingSanitizer.finish()).thenReturn(cleanResults);
+        when(invocationHandler.isStreaming()).thenReturn(true);
+        when(invocationHandler.getStreamingSanitizer()).thenReturn(streamingSanitizer);
+
+        filter.doFilter(request, response, filterChain);
+
+        verify(invocationHandler, never()).writeTo(any(OutputStream.class));
+        verifyZeroInteractions(antiSamyPool);
+        verify(log, never()).error(anyString(), any(Throwable.class));
+    }
+
+    @Test
+    public void test_doFilter_streaming_overBudget() throws Exception {
+        filter.setScanMode("streaming");
+        StreamingSanitizer streamingSanitizer = mock(StreamingSanitizer.class);
+        when(streamingSanitizer.finish()).thenReturn(cleanResults);
+        when(streamingSanitizer.isOverBudget()).thenReturn(true);
+        when(invocationHandler.isStreaming()).thenReturn(true);
+        when(invocationHandler.getStreamingSanitizer()).thenReturn(streamingSanitizer);
+        when(invocationHandler.getDelegate()).thenReturn(response);
+
+        filter.doFilter(request, response, filterChain);
+
+        verify(response).sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        assertEquals(1, filter.getMetrics().getRejectedRequests());
+    }
+
+    @Test
+    public void test_doFilter_streaming_ThrowsScanException() throws Exception {
+        ScanException error = new ScanException("");
+        filter.setScanMode("streaming");
+        when(policy.getMaxInputSize()).thenReturn(1000);
+        when(antiSamyPool.scan(TAINTED_HTML, policy)).thenThrow(error);
+
+        filter.doFilter(request, response, filterChain);
+
+        verify(log).error("A problem occured while sanitizing the HTTP Response", error);
+        assertEquals(0, outputStream.output.size());
+    }
+
+    @Test
+    public void test_doFilter_cached() throws Exception {
+        ContentHash contentHash = new ContentHash(1, 2, 3);
+        SanitizedOutputCache cache = new SanitizedOutputCache(1024);
+        filter.setSanitizedOutputCache(cache);
+        when(invocationHandler.getContentHash()).thenReturn(contentHash);
+        when(policyFileLoader.loadVersioned(POLICY_FILE)).thenReturn(new PolicyFileLoader.VersionedPolicy(policy, 4L));
+
+        filter.doFilter(request, response, filterChain);
+        filter.doFilter(request, response, filterChain);
+
+        verify(antiSamyPool, times(1)).scan(TAINTED_HTML, policy);
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(CLEANED_HTML + CLEANED_HTML, new String(outputStream.output.toByteArray()));
+    }
+
+    @Test
+    public void test_doFilter_cachedPerCharacterEncoding() throws Exception {
+        SanitizedOutputCache cache = new SanitizedOutputCache(1024);
+        filter.setSanitizedOutputCache(cache);
+        when(invocationHandler.getContentHash()).thenReturn(new ContentHash(1, 2, 3));
+
+        filter.doFilter(request, response, filterChain);
+        when(invocationHandler.getCharacterEncoding()).thenReturn("ISO-8859-1");
+        filter.doFilter(request, response, filterChain);
+
+        verify(antiSamyPool, times(2)).scan(TAINTED_HTML, policy);
+        assertEquals(0, cache.getHits());
+        assertEquals(2, cache.getSize());
+    }
+
+    @Test
+    public void test_init_cacheSize() throws ServletException {
+        when(filterConfig.getInitParameter("antisamy-policy-file")).thenReturn(POLICY_FILE);
+        when(filterConfig.getInitParameter("antisamy-cache-size")).thenReturn("2048");
+
+        filter.init(filterConfig);
+
+        assertEquals(2048, filter.getSanitizedOutputCache().getMaxBytes());
+    }
+
+    @Test
+    public void test_doFilter_contentTypeWithCharset() throws Exception {
+        when(proxyResponse.getContentType()).thenReturn("text/html; charset=ISO-8859-1");
+        when(invocationHandler.getCharacterEncoding()).thenReturn("ISO-8859-1");
+        when(cleanResults.getCleanHTML()).thenReturn("caf\u00e9 \u20ac");
+
+        filter.doFilter(request, response, filterChain);
+
+        verify(antiSamyPool).scan(TAINTED_HTML, policy);
+        assertEquals("caf\u00e9 &#8364;", new String(outputStream.output.toByteArray(), "ISO-8859-1"));
+    }
+
+    @Test
+    public void test_init_contentTypes() throws ServletException {
+        when(filterConfig.getInitParameter("antisamy-policy-file")).thenReturn(POLICY_FILE);
+        when(filterConfig.getInitParameter("antisamy-content-types")).thenReturn("text/html,application/xhtml+xml");
+
+        filter.init(filterConfig);
+
+        ArgumentCaptor<ContentTypeMatcher> matcher = ArgumentCaptor.forClass(ContentTypeMatcher.class);
+        verify(httpResponseInvocationHandlerFactory).setContentTypeMatcher(matcher.capture());
+        assertTrue(matcher.getValue().matches("application/xhtml+xml"));
+    }
+
+    @Test
+    public void test_init_registersMetrics() throws Exception {
+        ObjectName name = new ObjectName("org.owasp:type=AntiSamyFilter,name=\"test-filter\"");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        when(filterConfig.getInitParameter("antisamy-policy-file")).thenReturn(POLICY_FILE);
+        when(filterConfig.getInitParameter("antisamy-jmx-enabled")).thenReturn(null);
+        when(filterConfig.getInitParameter("antisamy-log-sample-rate")).thenReturn("100");
+        when(filterConfig.getFilterName()).thenReturn("test-filter");
+
+        filter.init(filterConfig);
+
+        assertEquals(100, filter.getLogSampleRate());
+        assertTrue(server.isRegistered(name));
+        assertEquals(0L, server.getAttribute(name, "SanitizedRequests"));
+
+        filter.destroy();
+
+        assertFalse(server.isRegistered(name));
+    }
+
+    @Test
+    public void test_doFilter_metrics() throws Exception {
+        when(invocationHandler.getSize()).thenReturn(TAINTED_HTML.length());
+
+        filter.doFilter(request, response, filterChain);
+
+        AntiSamyFilterMetrics metrics = filter.getMetrics();
+        assertEquals(1, metrics.getSanitizedRequests());
+        assertEquals(TAINTED_HTML.length(), metrics.getScannedBytes());
+        assertEquals(1, metrics.getChainLatency().getCount());
+        assertEquals(1, metrics.getPolicyLoadLatency().getCount());
+        assertEquals(1, metrics.getScanLatency().getCount());
+        assertEquals(1, metrics.getWriteLatency().getCount());
+    }
+
+    @Test
+    public void test_doFilter_metrics_passThrough() throws Exception {
+        when(invocationHandler.isPassThrough()).thenReturn(true);
+        when(invocationHandler.getPassThroughSize()).thenReturn(42L);
+
+        filter.doFilter(request, response, filterChain);
+
+        assertEquals(1, filter.getMetrics().getPassedThroughRequests());
+        assertEquals(42, filter.getMetrics().getPassedThroughBytes());
+        assertEquals(0, filter.getMetrics().getScanLatency().getCount());
+    }
+
+    @Test
+    public void test_doFilter_metrics_failed() throws Exception {
+        when(antiSamyPool.scan(TAINTED_HTML, policy)).thenThrow(new ScanException(""));
+
+        filter.doFilter(request, response, filterChain);
+
+        assertEquals(1, filter.getMetrics().getFailedRequests());
+        assertEquals(0, filter.getMetrics().getSanitizedRequests());
+    }
+
+    @Test
+    public void test_doFilter_plainTextBypass() throws Exception {
+        when(invocationHandler.isPlainText()).thenReturn(true);
+        when(invocationHandler.getSize()).thenReturn(TAINTED_HTML.length());
+        when(policy.getMaxInputSize()).thenReturn(1000);
+
+        filter.doFilter(request, response, filterChain);
+
+        verifyZeroInteractions(antiSamyPool);
+        verify(response).setContentLength(TAINTED_HTML.length());
+        assertEquals(TAINTED_HTML, new String(outputStream.output.toByteArray()));
+        assertEquals(1, filter.getMetrics().getBypassedRequests());
+        assertEquals(0, filter.getMetrics().getSanitizedRequests());
+    }
+
+    @Test
+    public void test_doFilter_plainTextBypassDisabled() throws Exception {
+        when(filterConfig.getInitParameter("antisamy-policy-file")).thenReturn(POLICY_FILE);
+        when(filterConfig.getInitParameter("antisamy-plain-text-bypass")).thenReturn("false");
+        when(invocationHandler.isPlainText()).thenReturn(true);
+        when(policy.getMaxInputSize()).thenReturn(1000);
+        filter.init(filterConfig);
+
+        filter.doFilter(request, response, filterChain);
+
+        verify(antiSamyPool).scan(TAINTED_HTML, policy);
+    }
+
+    @Test
+    public void test_doFilter_fragments() throws Exception {
+        final ChunkedCaptureBuffer page = new ChunkedCaptureBuffer(new SegmentPool());
+        filter.setScanMode("fragments");
+        when(invocationHandler.getOutput()).thenReturn(page);
+        when(antiSamyPool.scan("user", policy)).thenReturn(cleanResults);
+        doAnswer(new Answer() {
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                String nonce = (String) invocation.getArguments()[1];
+                page.write(("<script>trusted()</script><!--antisamy:" + nonce + "-->user<!--/antisamy:" + nonce + "-->").getBytes("UTF-8"));
+                return null;
+            }
+        }).when(request).setAttribute(eq(AntiSamyFilter.FRAGMENT_NONCE_ATTRIBUTE), anyString());
+
+        filter.doFilter(request, response, filterChain);
+
+        verify(antiSamyPool).scan("user", policy);
+        assertEquals("<script>trusted()</script>" + CLEANED_HTML, new String(outputStream.output.toByteArray(), "UTF-8"));
+        verify(response).setContentLength(("<script>trusted()</script>" + CLEANED_HTML).length());
+        assertEquals(4, filter.getMetrics().getScannedBytes());
+    }
+
+    @Test
+    public void test_init_fragmentDelimiters() throws ServletException {
+        when(filterConfig.getInitParameter("antisamy-policy-file")).thenReturn(POLICY_FILE);
+        when(filterConfig.getInitParameter("antisamy-scan-mode")).thenReturn("fragments");
+        when(filterConfig.getInitParameter("antisamy-fragment-begin")).thenReturn("<!--untrusted {0}-->");
+        when(filterConfig.getInitParameter("antisamy-fragment-end")).thenReturn("<!--/untrusted {0}-->");
+
+        filter.init(filterConfig);
+
+        assertEquals("fragments", filter.getScanMode());
+        assertEquals("<!--untrusted {0}-->", filter.getFragmentBegin());
+        assertEquals("<!--/untrusted {0}-->", filter.getFragmentEnd());
+    }
+
+    @Test
+    public void test_doFilter_async() throws Exception {
+        AsyncScanner asyncScanner = mock(AsyncScanner.class);
+        filter.setAsyncScanner(asyncScanner);
+        AtomicBoolean ended = new AtomicBoolean();
+        when(invocationHandler.getAsyncEnded()).thenReturn(ended);
+        when(asyncScanner.dispatch(eq(request), eq(response), any(Runnable.class), eq(ended))).thenReturn(true);
+
+        filter.doFilter(request, response, filterChain);
+
+        verifyZeroInteractions(antiSamyPool);
+        verify(invocationHandler, never()).release();
+        ArgumentCaptor<Runnable> scan = ArgumentCaptor.forClass(Runnable.class);
+        verify(asyncScanner).dispatch(eq(request), eq(response), scan.capture(), eq(ended));
+
+        scan.getValue().run();
+
+        verify(antiSamyPool).scan(TAINTED_HTML, policy);
+        verify(invocationHandler).release();
+        assertEquals(CLEANED_HTML, new String(outputStream.output.toByteArray()));
+    }
+
+    @Test
+    public void test_doFilter_asyncEndedBeforeTheScan() throws Exception {
+        AsyncScanner asyncScanner = mock(AsyncScanner.class);
+        filter.setAsyncScanner(asyncScanner);
+        when(asyncScanner.dispatch(eq(request), eq(response), any(Runnable.class), any(AtomicBoolean.class))).thenReturn(true);
+
+        filter.doFilter(request, response, filterChain);
+        ArgumentCaptor<Runnable> scan = ArgumentCaptor.forClass(Runnable.class);
+        verify(asyncScanner).dispatch(eq(request), eq(response), scan.capture(), any(AtomicBoolean.class));
+        when(invocationHandler.isAsyncEnded()).thenReturn(true);
+
+        scan.getValue().run();
+
+        verifyZeroInteractions(antiSamyPool);
+        verify(response, never()).getOutputStream();
+        verify(invocationHandler).release();
+        assertEquals(1, filter.getMetrics().getFailedRequests());
+    }
+
+    @Test
+    public void test_doFilter_asyncEndedDuringTheScan() throws Exception {
+        AsyncScanner asyncScanner = mock(AsyncScanner.class);
+        filter.setAsyncScanner(asyncScanner);
+        when(asyncScanner.dispatch(eq(request), eq(response), any(Runnable.class), any(AtomicBoolean.class))).thenReturn(true);
+        when(antiSamyPool.scan(TAINTED_HTML, policy)).thenAnswer(new Answer<CleanResults>() {
+            public CleanResults answer(InvocationOnMock invocation) throws Throwable {
+                when(invocationHandler.isAsyncEnded()).thenReturn(true);
+                return cleanResults;
+            }
+        });
+
+        filter.doFilter(request, response, filterChain);
+        ArgumentCaptor<Runnable> scan = ArgumentCaptor.forClass(Runnable.class);
+        verify(asyncScanner).dispatch(eq(request), eq(response), scan.capture(), any(AtomicBoolean.class));
+        scan.getValue().run();
+
+        verify(antiSamyPool).scan(TAINTED_HTML, policy);
+        verify(response, never()).getOutputStream();
+        verify(response, never()).setContentLength(anyInt());
+        verify(invocationHandler).release();
+    }
+
+    @Test
+    public void test_doFilter_asyncNotPossible() throws Exception {
+        AsyncScanner asyncScanner = mock(AsyncScanner.class);
+        filter.setAsyncScanner(asyncScanner);
+
+        filter.doFilter(request, response, filterChain);
+
+        verify(antiSamyPool).scan(TAINTED_HTML, policy);
+        verify(invocationHandler).release();
+    }
+
+    @Test
+    public void test_init_async() throws ServletException {
+        when(filterConfig.getInitParameter("antisamy-policy-file")).thenReturn(POLICY_FILE);
+        when(filterConfig.getInitParameter("antisamy-async")).thenReturn("true");
+        when(filterConfig.getInitParameter("antisamy-async-threads")).thenReturn("2");
+        when(filterConfig.getInitParameter("antisamy-async-saturation")).thenReturn("wait");
+        when(filterConfig.getInitParameter("antisamy-async-virtual-threads")).thenReturn("false");
+
+        filter.init(filterConfig);
+
+        assertEquals(false, filter.getAsyncScanner().getScanExecutor().isVirtualThreads());
+        filter.destroy();
+    }
+
+    @Test
+    public void test_doFilter_overBudget() throws Exception {
+        when(invocationHandler.isOverBudget()).thenReturn(true);
+        doThrow(new CaptureBudgetExceededException("over")).when(filterChain).doFilter(request, proxyResponse);
+
+        filter.doFilter(request, response, filterChain);
+
+        verify(response).sendError(503);
+        verifyZeroInteractions(antiSamyPool);
+        verify(invocationHandler).release();
+        assertEquals(1, filter.getMetrics().getRejectedRequests());
+    }
+
+    @Test
+    public void test_doFilter_ioExceptionWithinBudget() throws Exception {
+        IOException error = new IOException("client went away");
+        doThrow(error).when(filterChain).doFilter(request, proxyResponse);
+
+        try {
+            filter.doFilter(request, response, filterChain);
+            fail();
+        } catch (IOException e) {
+            assertEquals(error, e);
+        }
+        verify(invocationHandler).release();
+    }
+
+    @Test
+    public void test_init_captureBudget() throws ServletException {
+        when(filterConfig.getInitParameter("antisamy-policy-file")).thenReturn(POLICY_FILE);
+        when(filterConfig.getInitParameter("antisamy-capture-budget")).thenReturn("1048576");
+        when(filterConfig.getInitParameter("antisamy-capture-overflow")).thenReturn("Spill");
+        when(filterConfig.getInitParameter("antisamy-capture-overflow-status")).thenReturn("429");
+
+        filter.init(filterConfig);
+
+        ArgumentCaptor<CaptureBudget> budget = ArgumentCaptor.forClass(CaptureBudget.class);
+        verify(httpResponseInvocationHandlerFactory).setCaptureBudget(budget.capture());
+        assertEquals(1048576, budget.getValue().getMaxBytes());
+        assertEquals(Long.MAX_VALUE, budget.getValue().getMaxResponseBytes());
+        assertEquals("spill", budget.getValue().getOverflowAction());
+    }
+
+    @Test
+    public void test_doFilter_loggingIsOffByDefault() throws Exception {
+        when(log.isInfoEnabled()).thenReturn(true);
+
+        filter.doFilter(request, response, filterChain);
+
+        verify(log, never()).info(anyString());
+    }
+
+    @Test
+    public void test_doFilter_logSampleRate() throws Exception {
+        when(log.isInfoEnabled()).thenReturn(true);
+        filter.setLogSampleRate(2);
+
+        for (int i = 0; i < 4; i++) {
+            filter.doFilter(request, response, filterChain);
+        }
+
+        verify(log, times(2)).info("Number of Errors: 0");
+    }
+
+    @Test
+    public void test_doFilter_spilledCapture() throws Exception {
+        when(invocationHandler.isSpilled()).thenReturn(true);
+        when(cleanResults.getCleanHTML()).thenReturn("<p>caf\u00e9</p>");
+
+        filter.doFilter(request, response, filterChain);
+
+        verify(response).setContentLength(12);
+        assertEquals("<p>caf\u00e9</p>", new String(outputStream.output.toByteArray(), "UTF-8"));
+        verify(invocationHandler).release();
+        assertEquals(1, filter.getMetrics().getSpilledRequests());
+    }
+
+    @Test
+    public void test_init_spillThreshold() throws ServletException {
+        CaptureBudget budget = new CaptureBudget();
+        when(httpResponseInvocationHandlerFactory.getCaptureBudget()).thenReturn(budget);
+        when(filterConfig.getInitParameter("antisamy-policy-file")).thenReturn(POLICY_FILE);
+        when(filterConfig.getInitParameter("antisamy-spill-threshold")).thenReturn("4194304");
+        when(filterConfig.getInitParameter("antisamy-spill-directory")).thenReturn("/var/tmp");
+
+        filter.init(filterConfig);
+
+        assertEquals(4194304, budget.getSpillThreshold());
+        assertEquals(new File("/var/tmp"), budget.getSpillDirectory());
+        verify(httpResponseInvocationHandlerFactory, never()).setCaptureBudget(any(CaptureBudget.class));
+    }
+
+    @Test
+    public void test_doFilter_routedPolicy() throws Exception {
+        Policy adminPolicy = mock(Policy.class);
+        when(policyFileLoader.loadVersioned("admin.xml")).thenReturn(new PolicyFileLoader.VersionedPolicy(adminPolicy, 1L));
+        when(antiSamyPool.scan(TAINTED_HTML, adminPolicy)).thenReturn(cleanResults);
+        when(request.getServletPath()).thenReturn("/admin/users");
+        filter.setPolicyRouter(new PolicyRouter("/admin/* = admin.xml", POLICY_FILE));
+
+        filter.doFilter(request, response, filterChain);
+
+        verify(antiSamyPool).scan(TAINTED_HTML, adminPolicy);
+        assertEquals(CLEANED_HTML, new String(outputStream.output.toByteArray()));
+    }
+
+    @Test
+    public void test_doFilter_skippedRoute() throws Exception {
+        when(request.getServletPath()).thenReturn("/static/app.css");
+        filter.setPolicyRouter(new PolicyRouter("/static/* = skip", POLICY_FILE));
+
+        filter.doFilter(request, response, filterChain);
+
+        verify(filterChain).doFilter(request, response);
+        verifyZeroInteractions(httpResponseInvocationHandlerFactory, antiSamyPool);
+        assertEquals(1, filter.getMetrics().getSkippedRequests());
+    }
+
+    @Test
+    public void test_doFilter_sanitizeRequest() throws Exception {
+        when(antiSamyPool.scan(TAINTED_HTML, policy)).thenReturn(cleanResults);
+        filter.setSanitizeRequests(true);
+
+        filter.doFilter(request, response, filterChain);
+
+        ArgumentCaptor<ServletRequest> wrapped = ArgumentCaptor.forClass(ServletRequest.class);
+        verify(filterChain).doFilter(wrapped.capture(), any(ServletResponse.class));
+        assertTrue(wrapped.getValue() instanceof SanitizingHttpServletRequest);
+        assertEquals(CLEANED_HTML, new String(outputStream.output.toByteArray()));
+    }
+
+    @Test
+    public void test_doFilter_inputOnlyRoute() throws Exception {
+        Policy apiPolicy = mock(Policy.class);
+        when(policyFileLoader.load("api.xml")).thenReturn(apiPolicy);
+        when(request.getServletPath()).thenReturn("/api/users");
+        when(request.getParameterValues("name")).thenReturn(new String[]{TAINTED_HTML});
+        when(antiSamyPool.scan(TAINTED_HTML, apiPolicy)).thenReturn(cleanResults);
+        filter.setPolicyRouter(new PolicyRouter("/api/* = input:api.xml", POLICY_FILE));
+
+        filter.doFilter(request, response, filterChain);
+
+        ArgumentCaptor<ServletRequest> wrapped = ArgumentCaptor.forClass(ServletRequest.class);
+        verify(filterChain).doFilter(wrapped.capture(), eq(response));
+        assertEquals(CLEANED_HTML, wrapped.getValue().getParameter("name"));
+        verifyZeroInteractions(httpResponseInvocationHandlerFactory);
+        assertEquals(1, filter.getMetrics().getInputOnlyRequests());
+    }
+
+    @Test
+    public void test_init_sanitizeRequest() throws ServletException {
+        when(filterConfig.getInitParameter("antisamy-policy-file")).thenReturn(POLICY_FILE);
+        when(filterConfig.getInitParameter("antisamy-sanitize-request")).thenReturn("true");
+        when(filterConfig.getInitParameter("antisamy-sanitized-headers")).thenReturn("Referer, X-Comment");
 
         filter.init(filterConfig);
 
-        assertEquals("output", filter.getOutputEncoding());
+        assertTrue(filter.isSanitizeRequests());
+        assertEquals(new HashSet<String>(Arrays.asList("referer", "x-comment")), filter.getSanitizedHeaders());
     }
 
     @Test
-    public void test_init_specificInputEncoding() throws ServletException {
+    public void test_init_sanitizedValues() throws ServletException {
         when(filterConfig.getInitParameter("antisamy-policy-file")).thenReturn(POLICY_FILE);
-        when(filterConfig.getInitParameter("antisamy-input-encoding")).thenReturn("input");
+        assertEquals("html", filter.getSanitizedValues());
+        when(filterConfig.getInitParameter("antisamy-sanitized-values")).thenReturn(" Text ");
 
         filter.init(filterConfig);
 
-        assertEquals("input", filter.getInputEncoding());
+        assertEquals("text", filter.getSanitizedValues());
     }
 
     @Test
-    public void test_doFilter_NotHtml() throws Exception {
-        when(invocationHandler.getBytes()).thenReturn(new String("test").getBytes());
-        when(proxyResponse.getContentType()).thenReturn("application/pdf");
+    public void test_init_unknownSanitizedValues() throws ServletException {
+        when(filterConfig.getInitParameter("antisamy-policy-file")).thenReturn(POLICY_FILE);
+        when(filterConfig.getInitParameter("antisamy-sanitized-values")).thenReturn("json");
+
+        try {
+            filter.init(filterConfig);
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("Unknown sanitized values (json), expected one of: html, text", e.getMessage());
+        }
+    }
+
+    @Test
+    public void test_doFilter_gzipOutput() throws Exception {
+        ResponseCompressor compressor = new ResponseCompressor(6, 1);
+        filter.setResponseCompressor(compressor);
+        when(request.getHeaders("Accept-Encoding")).thenReturn(Collections.enumeration(Arrays.asList("gzip, deflate")));
+        when(invocationHandler.getResponseCompressor()).thenReturn(compressor);
 
         filter.doFilter(request, response, filterChain);
 
-        verifyZeroInteractions(antiSamy);
-        assertEquals("test", new String(outputStream.output.toByteArray()));
+        verify(invocationHandler).setResponseCompressor(compressor);
+        verify(response).setHeader("Vary", "Accept-Encoding");
+        verify(response).setHeader("Content-Encoding", "gzip");
+        verify(response, never()).setContentLength(anyInt());
+        assertEquals(CLEANED_HTML, new String(InflatingOutputStreamTest.gunzip(outputStream.output.toByteArray())));
+        assertEquals(1, filter.getMetrics().getCompressedResponses());
     }
 
     @Test
-    public void test_doFilter_NonHttpRequest() throws Exception {
-        ServletResponse response = mock(ServletResponse.class);
+    public void test_doFilter_gzipNotAccepted() throws Exception {
+        filter.setResponseCompressor(new ResponseCompressor(6, 1));
+        when(request.getHeaders("Accept-Encoding")).thenReturn(Collections.enumeration(Arrays.asList("br")));
 
         filter.doFilter(request, response, filterChain);
 
-        verify(filterChain).doFilter(request, response);
-        verifyNoMoreInteractions(antiSamy, httpResponseInvocationHandlerFactory, httpResponseProxyFactory);
+        verify(invocationHandler, never()).setResponseCompressor(any(ResponseCompressor.class));
+        verify(response).setHeader("Vary", "Accept-Encoding");
+        assertEquals(CLEANED_HTML, new String(outputStream.output.toByteArray()));
     }
 
     @Test
-    public void test_doFilter_antiSamy_ThrowsScanException() throws Exception {
-        ScanException error = new ScanException("");
+    public void test_doFilter_gzipNoVaryUnderTheMinimumSize() throws Exception {
+        filter.setResponseCompressor(new ResponseCompressor(6, 1024));
+        when(request.getHeaders("Accept-Encoding")).thenReturn(Collections.enumeration(Arrays.asList("gzip")));
+
+        filter.doFilter(request, response, filterChain);
+
+        verify(response, never()).setHeader("Vary", "Accept-Encoding");
+        assertEquals(CLEANED_HTML, new String(outputStream.output.toByteArray()));
+    }
 
-        when(antiSamy.scan(TAINTED_HTML, policy)).thenThrow(error);
+    @Test
+    public void test_doFilter_gzipNoVaryWhenPassedThrough() throws Exception {
+        filter.setResponseCompressor(new ResponseCompressor(6, 1));
+        when(invocationHandler.isPassThrough()).thenReturn(true);
 
         filter.doFilter(request, response, filterChain);
 
-        verify(log).error("A problem occured while sanitizing the HTTP Response", error);
+        verify(response, never()).setHeader("Vary", "Accept-Encoding");
     }
 
     @Test
-    public void test_doFilter_antiSamy_ThrowsPolicyException() throws Exception {
-        PolicyException error = new PolicyException("");
+    public void test_doFilter_truncatedEncodedBody() throws Exception {
+        when(invocationHandler.isTruncated()).thenReturn(true);
+
+        filter.doFilter(request, response, filterChain);
+
+        verifyZeroInteractions(antiSamyPool);
+        verify(log).error("The encoded response body was cut short, dropping the rest of it");
+        assertEquals(0, outputStream.output.size());
+        assertEquals(1, filter.getMetrics().getFailedRequests());
+    }
+
+    @Test
+    public void test_doFilter_gzipEndedWhenTheWriteFails() throws Exception {
+        ResponseCompressor compressor = mock(ResponseCompressor.class);
+        OutputStream body = mock(OutputStream.class);
+        doThrow(new IOException("client gone")).when(body).write(any(byte[].class));
+        when(compressor.compresses(anyLong())).thenReturn(true);
+        when(compressor.open(eq(response), anyLong())).thenReturn(body);
+        when(invocationHandler.getResponseCompressor()).thenReturn(compressor);
+        filter.setResponseCompressor(compressor);
+
+        try {
+            filter.doFilter(request, response, filterChain);
+            fail();
+        } catch (IOException expected) {
+        }
+
+        verify(compressor, never()).finish(body);
+        verify(compressor).end(body);
+    }
+
+    @Test
+    public void test_init_gzip() throws ServletException {
+        when(filterConfig.getInitParameter("antisamy-policy-file")).thenReturn(POLICY_FILE);
+        when(filterConfig.getInitParameter("antisamy-gzip")).thenReturn("true");
+        when(filterConfig.getInitParameter("antisamy-gzip-level")).thenReturn("9");
+        when(filterConfig.getInitParameter("antisamy-gzip-min-size")).thenReturn("512");
+
+        filter.init(filterConfig);
+
+        assertEquals(9, filter.getResponseCompressor().getLevel());
+        assertEquals(512, filter.getResponseCompressor().getMinSize());
+    }
 
-        when(antiSamy.scan(TAINTED_HTML, policy)).thenThrow(error);
+    @Test
+    public void test_doFilter_etag() throws Exception {
+        filter.setETags(true);
 
         filter.doFilter(request, response, filterChain);
 
-        verify(log).error("A problem occured while sanitizing the HTTP Response", error);
+        ArgumentCaptor<String> etag = ArgumentCaptor.forClass(String.class);
+        verify(response).setHeader(eq("ETag"), etag.capture());
+        assertTrue(etag.getValue().matches("\"[0-9a-f]{32}-[0-9a-f]+\""));
+        assertEquals(CLEANED_HTML, new String(outputStream.output.toByteArray()));
     }
 
     @Test
-    public void test_doFilter() throws Exception {
-        InOrder inOrder = inOrder(filterChain, antiSamy);
+    public void test_doFilter_etagMatchesIfNoneMatch() throws Exception {
+        filter.setETags(true);
+        filter.doFilter(request, response, filterChain);
+        ArgumentCaptor<String> etag = ArgumentCaptor.forClass(String.class);
+        verify(response).setHeader(eq("ETag"), etag.capture());
+        outputStream.output.reset();
+        when(request.getMethod()).thenReturn("GET");
+        when(request.getHeader("If-None-Match")).thenReturn("\"other\", W/" + etag.getValue());
+        when(invocationHandler.getIfNoneMatch()).thenReturn("\"other\", W/" + etag.getValue());
+        when(invocationHandler.getStatus()).thenReturn(200);
+
+        filter.doFilter(request, response, filterChain);
+
+        verify(invocationHandler).setIfNoneMatch("\"other\", W/" + etag.getValue());
+        verify(response).setStatus(304);
+        assertEquals(0, outputStream.output.size());
+        assertEquals(1, filter.getMetrics().getNotModifiedResponses());
+    }
+
+    @Test
+    public void test_doFilter_etagNotModifiedOnlyForOk() throws Exception {
+        filter.setETags(true);
+        when(invocationHandler.getIfNoneMatch()).thenReturn("*");
+        when(invocationHandler.getStatus()).thenReturn(404);
+
+        filter.doFilter(request, response, filterChain);
+
+        verify(response, never()).setStatus(304);
+        assertEquals(CLEANED_HTML, new String(outputStream.output.toByteArray()));
+    }
+
+    @Test
+    public void test_doFilter_etagNotConditionalForPost() throws Exception {
+        filter.setETags(true);
+        when(request.getMethod()).thenReturn("POST");
+        when(request.getHeader("If-None-Match")).thenReturn("*");
+
+        filter.doFilter(request, response, filterChain);
+
+        verify(invocationHandler, never()).setIfNoneMatch(anyString());
+    }
+
+    @Test
+    public void test_init_etags() throws ServletException {
+        when(filterConfig.getInitParameter("antisamy-policy-file")).thenReturn(POLICY_FILE);
+        when(filterConfig.getInitParameter("antisamy-etags")).thenReturn("true");
+
+        filter.init(filterConfig);
+
+        assertTrue(filter.isETags());
+    }
+
+    @Test
+    public void test_doFilter_serverTiming() throws Exception {
+        filter.setServerTiming(true);
+        keepRequestTimings();
+
+        filter.doFilter(request, response, filterChain);
+
+        ArgumentCaptor<String> serverTiming = ArgumentCaptor.forClass(String.class);
+        verify(response).setHeader(eq("Server-Timing"), serverTiming.capture());
+        assertTrue(serverTiming.getValue(), serverTiming.getValue().matches("chain;dur=\\d+\\.\\d{3}(, \\w+;dur=\\d+\\.\\d{3})*"));
+        assertFalse(serverTiming.getValue().contains("write"));
+        assertEquals(CLEANED_HTML, new String(outputStream.output.toByteArray()));
+    }
+
+    @Test
+    public void test_doFilter_phaseListener() throws Exception {
+        PhaseListener phaseListener = mock(PhaseListener.class);
+        filter.addPhaseListener(phaseListener);
+        keepRequestTimings();
+
+        filter.doFilter(request, response, filterChain);
+
+        InOrder inOrder = inOrder(phaseListener);
+        inOrder.verify(phaseListener).phaseTimed(eq(request), eq(RequestTimings.CHAIN), anyLong());
+        inOrder.verify(phaseListener).phaseTimed(eq(request), eq(RequestTimings.CAPTURE), anyLong());
+        inOrder.verify(phaseListener).phaseTimed(eq(request), eq(RequestTimings.POLICY), anyLong());
+        inOrder.verify(phaseListener).phaseTimed(eq(request), eq(RequestTimings.SCAN), anyLong());
+        inOrder.verify(phaseListener).phaseTimed(eq(request), eq(RequestTimings.WRITE), anyLong());
+        verify(response, never()).setHeader(eq("Server-Timing"), anyString());
+
+        filter.removePhaseListener(phaseListener);
+        filter.doFilter(request, response, filterChain);
+
+        verify(invocationHandler, times(1)).setRequestTimings(any(RequestTimings.class));
+    }
+
+    @Test
+    public void test_doFilter_notTimedByDefault() throws Exception {
+        filter.doFilter(request, response, filterChain);
+
+        verify(invocationHandler, never()).setRequestTimings(any(RequestTimings.class));
+        verify(response, never()).setHeader(eq("Server-Timing"), anyString());
+    }
+
+    @Test
+    public void test_init_serverTimingAndPhaseListeners() throws ServletException {
+        when(filterConfig.getInitParameter("antisamy-policy-file")).thenReturn(POLICY_FILE);
+        when(filterConfig.getInitParameter("antisamy-server-timing")).thenReturn("true");
+        when(filterConfig.getInitParameter("antisamy-phase-listeners")).thenReturn(StubPhaseListener.class.getName());
+
+        filter.init(filterConfig);
+
+        assertTrue(filter.isServerTiming());
+    }
+
+    @Test
+    public void test_init_unknownPhaseListener() {
+        when(filterConfig.getInitParameter("antisamy-policy-file")).thenReturn(POLICY_FILE);
+        when(filterConfig.getInitParameter("antisamy-phase-listeners")).thenReturn("org.owasp.NoSuchListener");
+
+        try {
+            filter.init(filterConfig);
+            fail();
+        } catch (ServletException e) {
+            assertEquals("Unable to create the phase listener (org.owasp.NoSuchListener)", e.getMessage());
+        }
+    }
+
+    private void keepRequestTimings() {
+        doAnswer(new Answer() {
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                when(invocationHandler.getRequestTimings()).thenReturn((RequestTimings) invocation.getArguments()[0]);
+                return null;
+            }
+        }).when(invocationHandler).setRequestTimings(any(RequestTimings.class));
+    }
+
+    @Test
+    public void test_doFilter_parallelScan() throws Exception {
+        ParallelSanitizer parallelSanitizer = mock(ParallelSanitizer.class);
+        when(parallelSanitizer.scan(TAINTED_HTML, policy)).thenReturn(cleanResults);
+        filter.setParallelSanitizer(parallelSanitizer, TAINTED_HTML.length());
+
+        filter.doFilter(request, response, filterChain);
+
+        verify(parallelSanitizer).scan(TAINTED_HTML, policy);
+        verify(antiSamyPool, never()).scan(anyString(), any(Policy.class));
+        assertEquals(CLEANED_HTML, new String(outputStream.output.toByteArray()));
+        assertEquals(1, filter.getMetrics().getParallelScans());
+    }
+
+    @Test
+    public void test_doFilter_parallelScanUnderThreshold() throws Exception {
+        ParallelSanitizer parallelSanitizer = mock(ParallelSanitizer.class);
+        filter.setParallelSanitizer(parallelSanitizer, TAINTED_HTML.length() + 1);
+
+        filter.doFilter(request, response, filterChain);
+
+        verifyZeroInteractions(parallelSanitizer);
+        verify(antiSamyPool).scan(TAINTED_HTML, policy);
+    }
+
+    @Test
+    public void test_init_parallel() throws ServletException {
+        when(filterConfig.getInitParameter("antisamy-policy-file")).thenReturn(POLICY_FILE);
+        when(filterConfig.getInitParameter("antisamy-parallel-threshold")).thenReturn("1000000");
+        when(filterConfig.getInitParameter("antisamy-parallel-threads")).thenReturn("3");
+        when(filterConfig.getInitParameter("antisamy-parallel-chunk-size")).thenReturn("65536");
+
+        filter.init(filterConfig);
+
+        assertEquals(1000000, filter.getParallelThreshold());
+        assertEquals(3, filter.getParallelSanitizer().getParallelism());
+        assertEquals(65536, filter.getParallelSanitizer().getChunkSize());
+        filter.destroy();
+    }
+
+    @Test
+    public void test_init_policyRoutes() throws ServletException {
+        when(filterConfig.getInitParameter("antisamy-policy-file")).thenReturn(POLICY_FILE);
+        when(filterConfig.getInitParameter("antisamy-policy-routes")).thenReturn("/admin/* = admin.xml, /static/* = skip");
+
+        filter.init(filterConfig);
+
+        verify(policyFileLoader).load(POLICY_FILE);
+        verify(policyFileLoader).load("admin.xml");
+        assertEquals("admin.xml", filter.getPolicyRouter().route("/admin"));
+    }
+
+    @Test
+    public void test_init_badPolicy() {
+        RuntimeException error = new RuntimeException("bad policy");
+        when(filterConfig.getInitParameter("antisamy-policy-file")).thenReturn(POLICY_FILE);
+        when(policyFileLoader.load(POLICY_FILE)).thenThrow(error);
+
+        try {
+            filter.init(filterConfig);
+            fail();
+        } catch (ServletException e) {
+            assertEquals("Unable to load the policy file (policyFile)", e.getMessage());
+            assertEquals(error, e.getRootCause());
+        }
+        verify(policyFileLoader, never()).startReloading(anyLong());
+    }
+
+    @Test
+    public void test_init_badPolicyReleasesWhatWasStarted() throws Exception {
+        ObjectName name = new ObjectName("org.owasp:type=AntiSamyFilter,name=\"test-filter\"");
+        when(filterConfig.getInitParameter("antisamy-policy-file")).thenReturn(POLICY_FILE);
+        when(filterConfig.getInitParameter("antisamy-jmx-enabled")).thenReturn("true");
+        when(filterConfig.getInitParameter("antisamy-async")).thenReturn("true");
+        when(filterConfig.getFilterName()).thenReturn("test-filter");
+        when(policyFileLoader.load(POLICY_FILE)).thenThrow(new RuntimeException("bad policy"));
+
+        try {
+            filter.init(filterConfig);
+            fail();
+        } catch (ServletException expected) {
+        }
+
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+        assertTrue(filter.getAsyncScanner().getScanExecutor().isShutdown());
+        verify(policyFileLoader).stopReloading();
+    }
+
+    @Test
+    public void test_init_badParamReleasesWhatWasStarted() throws ServletException {
+        when(filterConfig.getInitParameter("antisamy-policy-file")).thenReturn(POLICY_FILE);
+        when(filterConfig.getInitParameter("antisamy-async")).thenReturn("true");
+        when(filterConfig.getInitParameter("antisamy-parallel-threshold")).thenReturn("many");
+
+        try {
+            filter.init(filterConfig);
+            fail();
+        } catch (NumberFormatException expected) {
+        }
+
+        assertTrue(filter.getAsyncScanner().getScanExecutor().isShutdown());
+    }
+
+    @Test
+    public void test_init_warmUp() throws Exception {
+        when(filterConfig.getInitParameter("antisamy-policy-file")).thenReturn(POLICY_FILE);
+        when(filterConfig.getInitParameter("antisamy-warm-up-iterations")).thenReturn("3");
+
+        filter.init(filterConfig);
+
+        verify(antiSamyPool, times(3)).scan(ScannerWarmUp.DEFAULT_PAGE, policy);
+        assertEquals(3, filter.getMetrics().getWarmUpScans());
+    }
+
+    @Test
+    public void test_doFilter_recordsTheFirstRequest() throws Exception {
+        assertEquals(-1, filter.getMetrics().getFirstRequestMillis());
+
+        filter.doFilter(request, response, filterChain);
+
+        assertTrue(filter.getMetrics().getFirstRequestMillis() >= 0);
+    }
+
+    @Test
+    public void test_doFilter_scanTimedOut() throws Exception {
+        ScanTimeLimiter scanTimeLimiter = mock(ScanTimeLimiter.class);
+        when(scanTimeLimiter.scan(any(Callable.class))).thenThrow(new ScanBudgetExceededException("The scan took longer than 10 ms"));
+        filter.setScanTimeLimiter(scanTimeLimiter);
+
+        filter.doFilter(request, response, filterChain);
+
+        verify(response).sendError(503);
+        verify(log).warn("Serving the error fallback: The scan took longer than 10 ms");
+        assertEquals(0, outputStream.output.size());
+        assertEquals(1, filter.getMetrics().getFallbackRequests());
+        verify(invocationHandler).release();
+    }
+
+    @Test
+    public void test_doFilter_escapeFallback() throws Exception {
+        ScanTimeLimiter scanTimeLimiter = mock(ScanTimeLimiter.class);
+        when(scanTimeLimiter.scan(any(Callable.class))).thenThrow(new ScanBudgetExceededException("slow"));
+        filter.setScanTimeLimiter(scanTimeLimiter);
+        filter.setScanFallback("escape", 503);
+        when(invocationHandler.getContents()).thenReturn("<a href=\"x\">it's & </a>");
+
+        filter.doFilter(request, response, filterChain);
+
+        String escaped = "&lt;a href=&quot;x&quot;&gt;it&#39;s &amp; &lt;/a&gt;";
+        assertEquals(escaped, new String(outputStream.output.toByteArray(), "UTF-8"));
+        verify(response).setContentLength(escaped.length());
+        verify(response, never()).sendError(anyInt());
+    }
+
+    @Test
+    public void test_doFilter_cachedFallback() throws Exception {
+        ContentHash contentHash = new ContentHash(1, 2, 3);
+        when(invocationHandler.getContentHash()).thenReturn(contentHash);
+        when(policyFileLoader.loadVersioned(POLICY_FILE)).thenReturn(new PolicyFileLoader.VersionedPolicy(policy, 1L));
+        SanitizedOutputCache cache = mock(SanitizedOutputCache.class);
+        when(cache.get(contentHash, "UTF-8", POLICY_FILE, 1L)).thenReturn(null, cleanResults);
+        filter.setSanitizedOutputCache(cache);
+        ScanTimeLimiter scanTimeLimiter = mock(ScanTimeLimiter.class);
+        when(scanTimeLimiter.scan(any(Callable.class))).thenThrow(new ScanBudgetExceededException("slow"));
+        filter.setScanTimeLimiter(scanTimeLimiter);
+        filter.setScanFallback("cached", 503);
 
         filter.doFilter(request, response, filterChain);
 
-        inOrder.verify(filterChain).doFilter(request, proxyResponse);
-        inOrder.verify(antiSamy).setInputEncoding(AntiSamyDOMScanner.DEFAULT_ENCODING_ALGORITHM);
-        inOrder.verify(antiSamy).setOutputEncoding(AntiSamyDOMScanner.DEFAULT_ENCODING_ALGORITHM);
-        inOrder.verify(antiSamy).scan(TAINTED_HTML, policy);
         assertEquals(CLEANED_HTML, new String(outputStream.output.toByteArray()));
+        verify(response, never()).sendError(anyInt());
     }
 
     @Test
-    public void test_doFilter_specificOutputEncoding() throws Exception {
-        InOrder inOrder = inOrder(antiSamy);
+    public void test_doFilter_openCircuit() throws Exception {
+        filter.setCircuitBreaker(1, 1, 60000);
+        when(antiSamyPool.scan(TAINTED_HTML, policy)).thenAnswer(new Answer<CleanResults>() {
+            public CleanResults answer(InvocationOnMock invocation) throws Throwable {
+                Thread.sleep(5);
+                return cleanResults;
+            }
+        });
+
+        filter.doFilter(request, response, filterChain);
+        filter.doFilter(request, response, filterChain);
+
+        verify(antiSamyPool, times(1)).scan(TAINTED_HTML, policy);
+        verify(response).sendError(503);
+        assertEquals(CircuitBreaker.OPEN, filter.getCircuitBreakers().get(PolicyRouter.DEFAULT_PATTERN).getState());
+    }
 
-        filter.setOutputEncoding("output");
+    @Test
+    public void test_doFilter_circuitPerRoute() throws Exception {
+        filter.setCircuitBreaker(1, 1, 60000);
+        filter.setPolicyRouter(new PolicyRouter("/admin/* = " + POLICY_FILE, POLICY_FILE));
+        when(antiSamyPool.scan(TAINTED_HTML, policy)).thenAnswer(new Answer<CleanResults>() {
+            public CleanResults answer(InvocationOnMock invocation) throws Throwable {
+                Thread.sleep(5);
+                return cleanResults;
+            }
+        });
+        when(request.getServletPath()).thenReturn("/admin/users");
+        filter.doFilter(request, response, filterChain);
 
+        when(request.getServletPath()).thenReturn("/users");
         filter.doFilter(request, response, filterChain);
 
-        inOrder.verify(antiSamy).setInputEncoding(AntiSamyDOMScanner.DEFAULT_ENCODING_ALGORITHM);
-        inOrder.verify(antiSamy).setOutputEncoding("output");
-        inOrder.verify(antiSamy).scan(TAINTED_HTML, policy);
+        verify(antiSamyPool, times(2)).scan(TAINTED_HTML, policy);
+        assertEquals(CircuitBreaker.OPEN, filter.getCircuitBreakers().get("/admin/*").getState());
+        assertEquals(CircuitBreaker.OPEN, filter.getCircuitBreakers().get(PolicyRouter.DEFAULT_PATTERN).getState());
+    }
+
+    @Test
+    public void test_init_scanFallback() throws ServletException {
+        when(filterConfig.getInitParameter("antisamy-policy-file")).thenReturn(POLICY_FILE);
+        when(filterConfig.getInitParameter("antisamy-scan-timeout")).thenReturn("250");
+        when(filterConfig.getInitParameter("antisamy-scan-fallback")).thenReturn("Escape");
+
+        filter.init(filterConfig);
+
+        assertEquals(250, filter.getScanTimeLimiter().getTimeoutMillis());
+        assertEquals("escape", filter.getScanFallback());
+        filter.destroy();
+    }
+
+    @Test
+    public void test_init_unknownScanFallback() throws ServletException {
+        when(filterConfig.getInitParameter("antisamy-policy-file")).thenReturn(POLICY_FILE);
+        when(filterConfig.getInitParameter("antisamy-scan-fallback")).thenReturn("stale");
+
+        try {
+            filter.init(filterConfig);
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("Unknown scan fallback (stale), expected one of: error, escape, cached", e.getMessage());
+        }
     }
 
     @Test
-    public void test_doFilter_specificInputEncoding() throws Exception {
-        InOrder inOrder = inOrder(antiSamy);
+    public void test_init_cachedFallbackWithoutACache() throws ServletException {
+        when(filterConfig.getInitParameter("antisamy-policy-file")).thenReturn(POLICY_FILE);
+        when(filterConfig.getInitParameter("antisamy-scan-fallback")).thenReturn("cached");
+
+        try {
+            filter.init(filterConfig);
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("The cached scan fallback needs a cache, please set the init parameter (antisamy-cache-size)", e.getMessage());
+        }
+    }
 
-        filter.setInputEncoding("input");
+    @Test
+    public void test_doFilter() throws Exception {
+        InOrder inOrder = inOrder(filterChain, antiSamyPool);
 
         filter.doFilter(request, response, filterChain);
 
-        inOrder.verify(antiSamy).setInputEncoding("input");
-        inOrder.verify(antiSamy).setOutputEncoding(AntiSamyDOMScanner.DEFAULT_ENCODING_ALGORITHM);
-        inOrder.verify(antiSamy).scan(TAINTED_HTML, policy);
+        inOrder.verify(filterChain).doFilter(request, proxyResponse);
+        verify(invocationHandler).flush();
+        inOrder.verify(antiSamyPool).scan(TAINTED_HTML, policy);
+        verify(response).setContentLength(CLEANED_HTML.length());
+        verify(invocationHandler).release();
+        assertEquals(CLEANED_HTML, new String(outputStream.output.toByteArray()));
     }
 
     @Before
@@ -199,16 +1291,19 @@ public class AntiSamyFilterTest {
         httpResponseProxyFactory = mock(HttpResponseProxyFactory.class);
         httpResponseInvocationHandlerFactory = mock(HttpResponseInvocationHandlerFactory.class);
         invocationHandler = mock(HttpServletResponseInvocationHandler.class);
-        antiSamy = mock(AntiSamy.class);
+        antiSamyPoolFactory = mock(AntiSamyPoolFactory.class);
+        antiSamyPool = mock(AntiSamyPool.class);
         cleanResults = mock(CleanResults.class);
         outputStream = new StubOutputStream();
         log = mock(Log.class);
         policyFileLoader = mock(PolicyFileLoader.class);
         policy = mock(Policy.class);
         filterConfig = mock(FilterConfig.class);
+        when(filterConfig.getInitParameter("antisamy-jmx-enabled")).thenReturn("false");
 
         filter = new AntiSamyFilter();
-        filter.setAntiSamy(antiSamy);
+        filter.setAntiSamyPoolFactory(antiSamyPoolFactory);
+        filter.setAntiSamyPool(antiSamyPool);
         filter.setHttpResponseInvocationHandlerFactory(httpResponseInvocationHandlerFactory);
         filter.setHttpResponseProxyFactory(httpResponseProxyFactory);
         filter.setLog(log);
@@ -218,11 +1313,20 @@ public class AntiSamyFilterTest {
         when(httpResponseInvocationHandlerFactory.build(response)).thenReturn(invocationHandler);
         when(httpResponseProxyFactory.build(invocationHandler)).thenReturn(proxyResponse);
         when(invocationHandler.getContents()).thenReturn(TAINTED_HTML);
+        when(invocationHandler.getCharacterEncoding()).thenReturn("UTF-8");
         when(response.getOutputStream()).thenReturn(outputStream);
         when(cleanResults.getCleanHTML()).thenReturn(CLEANED_HTML);
         when(policyFileLoader.load(POLICY_FILE)).thenReturn(policy);
-        when(antiSamy.scan(TAINTED_HTML, policy)).thenReturn(cleanResults);
+        when(policyFileLoader.loadVersioned(POLICY_FILE)).thenReturn(new PolicyFileLoader.VersionedPolicy(policy, 1L));
+        when(antiSamyPool.scan(TAINTED_HTML, policy)).thenReturn(cleanResults);
+        when(antiSamyPoolFactory.build(anyInt(), anyString(), anyString())).thenReturn(antiSamyPool);
         when(proxyResponse.getContentType()).thenReturn("text/html");
+        doAnswer(new Answer() {
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                ((OutputStream) invocation.getArguments()[0]).write(TAINTED_HTML.getBytes());
+                return null;
+            }
+        }).when(invocationHandler).writeTo(any(OutputStream.class));
     }
 
     private static class StubOutputStream extends ServletOutputStream {
@@ -233,4 +1337,9 @@ public class AntiSamyFilterTest {
             output.write(b);
         }
     }
+
+    public static class StubPhaseListener implements PhaseListener {
+        public void phaseTimed(ServletRequest request, String phase, long nanos) {
+        }
+    }
 }
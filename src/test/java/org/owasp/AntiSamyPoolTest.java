@@ -14,33 +14,28 @@
 
 package org.owasp;
 
-import org.junit.Before;
 import org.junit.Test;
-
-import java.io.ByteArrayOutputStream;
+import org.owasp.validator.html.AntiSamy;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.fail;
 
-
-public class EagerFlushingPrintWriterTest {
-    private ByteArrayOutputStream out;
-    private EagerFlushingPrintWriter writer;
-
+public class AntiSamyPoolTest {
     @Test
-    public void test_write_withString() {
-        writer.write("test");
-        assertEquals("test", new String(out.toByteArray()));
-    }
+    public void test_create_configuresEncodings() {
+        AntiSamy antiSamy = new AntiSamyPool(1, "input", "output").create();
 
-    @Test
-    public void test_write_withCharacters() {
-        writer.write(new char[]{'A'}, 0, 1);
-        assertEquals("A", new String(out.toByteArray()));
+        assertEquals("input", antiSamy.getInputEncoding());
+        assertEquals("output", antiSamy.getOutputEncoding());
     }
 
-    @Before
-    public void setUp() throws Exception {
-        out = new ByteArrayOutputStream();
-        writer = new EagerFlushingPrintWriter(out);
+    @Test
+    public void test_invalidSize() {
+        try {
+            new AntiSamyPool(0, "UTF-8", "UTF-8");
+            fail();
+        } catch (IllegalArgumentException err) {
+            assertEquals("The pool size must be at least 1", err.getMessage());
+        }
     }
 }
@@ -0,0 +1,146 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.owasp;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.Mockito.*;
+
+public class AsyncScannerTest {
+    private ScanExecutor scanExecutor;
+    private ServletRequest request;
+    private ServletResponse response;
+    private AsyncContext asyncContext;
+    private Runnable scan;
+    private AtomicBoolean ended;
+    private AsyncScanner asyncScanner;
+
+    @Test
+    public void test_isAvailable() {
+        assertTrue(AsyncScanner.isAvailable());
+    }
+
+    @Test
+    public void test_dispatch() {
+        assertTrue(asyncScanner.dispatch(request, response, scan, ended));
+
+        verify(asyncContext).setTimeout(5000);
+        ArgumentCaptor<Runnable> task = ArgumentCaptor.forClass(Runnable.class);
+        verify(scanExecutor).execute(task.capture());
+        verifyZeroInteractions(scan);
+
+        task.getValue().run();
+
+        InOrder inOrder = inOrder(scan, asyncContext);
+        inOrder.verify(scan).run();
+        inOrder.verify(asyncContext).complete();
+        assertTrue(ended.get());
+    }
+
+    @Test
+    public void test_dispatch_noTimeoutConfigured() {
+        new AsyncScanner(scanExecutor, 0).dispatch(request, response, scan, ended);
+
+        verify(asyncContext).setTimeout(0);
+    }
+
+    @Test
+    public void test_dispatch_timedOut() throws Exception {
+        asyncScanner.dispatch(request, response, scan, ended);
+        ArgumentCaptor<AsyncListener> listener = ArgumentCaptor.forClass(AsyncListener.class);
+        verify(asyncContext).addListener(listener.capture());
+        ArgumentCaptor<Runnable> task = ArgumentCaptor.forClass(Runnable.class);
+        verify(scanExecutor).execute(task.capture());
+
+        listener.getValue().onTimeout(new AsyncEvent(asyncContext));
+        assertTrue(ended.get());
+        task.getValue().run();
+
+        verify(scan).run();
+        verify(asyncContext, never()).complete();
+    }
+
+    @Test
+    public void test_dispatch_failed() throws Exception {
+        asyncScanner.dispatch(request, response, scan, ended);
+        ArgumentCaptor<AsyncListener> listener = ArgumentCaptor.forClass(AsyncListener.class);
+        verify(asyncContext).addListener(listener.capture());
+
+        listener.getValue().onError(new AsyncEvent(asyncContext));
+
+        assertTrue(ended.get());
+    }
+
+    @Test
+    public void test_dispatch_completesWhenTheScanFails() {
+        doThrow(new IllegalStateException()).when(scan).run();
+        asyncScanner.dispatch(request, response, scan, ended);
+        ArgumentCaptor<Runnable> task = ArgumentCaptor.forClass(Runnable.class);
+        verify(scanExecutor).execute(task.capture());
+
+        try {
+            task.getValue().run();
+        } catch (IllegalStateException expected) {
+        }
+
+        verify(asyncContext).complete();
+    }
+
+    @Test
+    public void test_dispatch_asyncNotSupported() {
+        when(request.isAsyncSupported()).thenReturn(false);
+
+        assertEquals(false, asyncScanner.dispatch(request, response, scan, ended));
+
+        verify(request, never()).startAsync(request, response);
+        verifyZeroInteractions(scanExecutor);
+    }
+
+    @Test
+    public void test_dispatch_alreadyAsync() {
+        when(request.isAsyncStarted()).thenReturn(true);
+
+        assertEquals(false, asyncScanner.dispatch(request, response, scan, ended));
+
+        verifyZeroInteractions(scanExecutor);
+    }
+
+    @Before
+    public void setUp() {
+        scanExecutor = mock(ScanExecutor.class);
+        request = mock(ServletRequest.class);
+        response = mock(ServletResponse.class);
+        asyncContext = mock(AsyncContext.class);
+        scan = mock(Runnable.class);
+        ended = new AtomicBoolean();
+        asyncScanner = new AsyncScanner(scanExecutor, 5000);
+
+        when(request.isAsyncSupported()).thenReturn(true);
+        when(request.startAsync(request, response)).thenReturn(asyncContext);
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.owasp;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+public class CaptureBudgetTest {
+    @Test
+    public void test_acquire_unlimited() {
+        CaptureBudget budget = new CaptureBudget();
+
+        assertTrue(budget.acquire(0, 1024));
+        assertEquals(1024, budget.getUsedBytes());
+
+        budget.release(1024);
+
+        assertEquals(0, budget.getUsedBytes());
+    }
+
+    @Test
+    public void test_acquire_overTheBudget() {
+        CaptureBudget budget = new CaptureBudget(2048, Long.MAX_VALUE, CaptureBudget.FAIL, 0, null);
+
+        assertTrue(budget.acquire(0, 1024));
+        assertTrue(budget.acquire(0, 1024));
+        assertFalse(budget.acquire(0, 1024));
+        assertEquals(2048, budget.getUsedBytes());
+    }
+
+    @Test
+    public void test_acquire_overTheResponseLimit() {
+        CaptureBudget budget = new CaptureBudget(Long.MAX_VALUE, 2048, CaptureBudget.WAIT, 1000, null);
+
+        assertTrue(budget.acquire(1024, 1024));
+        assertFalse(budget.acquire(2048, 1024));
+    }
+
+    @Test
+    public void test_acquire_waitsForARelease() throws Exception {
+        final CaptureBudget budget = new CaptureBudget(1024, Long.MAX_VALUE, CaptureBudget.WAIT, 5000, null);
+        budget.acquire(0, 1024);
+        final CountDownLatch acquired = new CountDownLatch(1);
+
+        new Thread(new Runnable() {
+            public void run() {
+                if (budget.acquire(0, 1024)) {
+                    acquired.countDown();
+                }
+            }
+        }).start();
+
+        assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+        budget.release(1024);
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        assertEquals(1024, budget.getUsedBytes());
+    }
+
+    @Test
+    public void test_acquire_waitTimesOut() {
+        CaptureBudget budget = new CaptureBudget(1024, Long.MAX_VALUE, CaptureBudget.WAIT, 50, null);
+        budget.acquire(0, 1024);
+
+        long start = System.nanoTime();
+        assertFalse(budget.acquire(0, 1024));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    public void test_unknownOverflowAction() {
+        try {
+            new CaptureBudget(1024, 1024, "drop", 0, null);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("Unknown overflow action (drop), expected one of: wait, spill, fail", e.getMessage());
+        }
+    }
+}
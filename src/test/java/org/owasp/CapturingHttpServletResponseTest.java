@@ -0,0 +1,184 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.owasp;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.Mockito.*;
+
+public class CapturingHttpServletResponseTest {
+    private HttpServletResponse response;
+    private HttpServletResponseInvocationHandler handler;
+    private CapturingHttpServletResponse capturingResponse;
+
+    @Test
+    public void test_callDelegate() {
+        capturingResponse.setHeader("name", "value");
+        when(response.getContentType()).thenReturn("text/html");
+
+        assertEquals("text/html", capturingResponse.getContentType());
+        verify(response).setHeader("name", "value");
+    }
+
+    @Test
+    public void test_getWriter() throws Exception {
+        capturingResponse.getWriter().write("test");
+        capturingResponse.flushBuffer();
+
+        assertEquals("test", handler.getContents());
+        verify(response, never()).getWriter();
+        verify(response, never()).flushBuffer();
+    }
+
+    @Test
+    public void test_getOutputStream() throws Exception {
+        capturingResponse.getOutputStream().write("test".getBytes());
+
+        assertEquals("test", handler.getContents());
+        verify(response, never()).getOutputStream();
+    }
+
+    @Test
+    public void test_setHeader_contentLengthHeldBackUntilPassThrough() throws Exception {
+        capturingResponse.setHeader("Content-Length", "5");
+        verify(response, never()).setContentLength(anyInt());
+
+        capturingResponse.setHeader("Content-Type", "application/pdf");
+        capturingResponse.flushBuffer();
+
+        verify(response).setHeader("Content-Type", "application/pdf");
+        verify(response).setContentLength(5);
+        verify(response, never()).setHeader(eq("Content-Length"), anyString());
+    }
+
+    @Test
+    public void test_setContentType_ignoredOncePassingThrough() throws Exception {
+        ServletOutputStream outputStream = mock(ServletOutputStream.class);
+        when(response.getOutputStream()).thenReturn(outputStream);
+        capturingResponse.setContentType("image/png");
+        capturingResponse.getOutputStream().write(1);
+
+        capturingResponse.setContentType("text/html");
+        capturingResponse.setHeader("Content-Type", "text/html");
+        capturingResponse.addHeader("Content-Type", "text/html");
+
+        assertTrue(handler.isPassThrough());
+        verify(response).setContentType("image/png");
+        verify(response, never()).setContentType("text/html");
+        verify(response, never()).setHeader("Content-Type", "text/html");
+        verify(response, never()).addHeader("Content-Type", "text/html");
+        verify(outputStream).write(1);
+    }
+
+    @Test
+    public void test_setHeader_unusableContentLengthDropped() throws Exception {
+        ServletOutputStream outputStream = mock(ServletOutputStream.class);
+        when(response.getOutputStream()).thenReturn(outputStream);
+
+        capturingResponse.setHeader("Content-Length", "12 bytes");
+        capturingResponse.addHeader("Content-Length", "");
+        capturingResponse.setContentType("application/pdf");
+        capturingResponse.getOutputStream().write(1);
+
+        assertTrue(handler.isPassThrough());
+        verify(response, never()).setContentLength(anyInt());
+        verify(response, never()).setHeader(eq("Content-Length"), anyString());
+    }
+
+    @Test
+    public void test_setHeader_contentLengthOverIntegerMaxValue() throws Exception {
+        ServletOutputStream outputStream = mock(ServletOutputStream.class);
+        when(response.getOutputStream()).thenReturn(outputStream);
+
+        capturingResponse.setHeader("Content-Length", "5000000000");
+        capturingResponse.setContentType("application/pdf");
+        capturingResponse.getOutputStream().write(1);
+
+        verify(response).setHeader("Content-Length", "5000000000");
+        verify(response, never()).setContentLength(anyInt());
+    }
+
+    @Test
+    public void test_setHeader_gzipBodyInflated() throws Exception {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+        gzip.write("<p>test</p>".getBytes("UTF-8"));
+        gzip.close();
+
+        capturingResponse.setHeader("Content-Encoding", "gzip");
+        capturingResponse.setContentType("text/html");
+        capturingResponse.getOutputStream().write(compressed.toByteArray());
+
+        assertEquals("<p>test</p>", handler.getContents());
+        verify(response, never()).setHeader(eq("Content-Encoding"), anyString());
+    }
+
+    @Test
+    public void test_addHeader_gzipPassedOnForPassThrough() throws Exception {
+        capturingResponse.addHeader("Content-Encoding", "gzip");
+        capturingResponse.setContentType("application/pdf");
+        capturingResponse.flushBuffer();
+
+        verify(response).setHeader("Content-Encoding", "gzip");
+    }
+
+    @Test
+    public void test_setHeader_unsupportedEncodingPassedOn() throws Exception {
+        capturingResponse.setHeader("Content-Encoding", "br");
+
+        verify(response).setHeader("Content-Encoding", "br");
+        assertEquals(null, handler.getContentEncoding());
+    }
+
+    @Test
+    public void test_status() throws Exception {
+        assertEquals(200, handler.getStatus());
+
+        capturingResponse.sendError(404);
+        assertEquals(404, handler.getStatus());
+
+        capturingResponse.reset();
+        assertEquals(200, handler.getStatus());
+
+        capturingResponse.sendRedirect("/elsewhere");
+        assertEquals(302, handler.getStatus());
+        verify(response).sendRedirect("/elsewhere");
+    }
+
+    @Test
+    public void test_resetBuffer() throws Exception {
+        capturingResponse.getWriter().write("test");
+
+        capturingResponse.resetBuffer();
+
+        assertEquals("", handler.getContents());
+        verify(response).resetBuffer();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        response = mock(HttpServletResponse.class);
+        handler = new HttpServletResponseInvocationHandler(response);
+        capturingResponse = new CapturingHttpServletResponse(handler);
+    }
+}
@@ -0,0 +1,244 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.owasp;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ChunkedCaptureBufferTest {
+    private SegmentPool pool;
+    private ChunkedCaptureBuffer buffer;
+
+    @Test
+    public void test_write_spansSegments() throws Exception {
+        buffer.write("abcdefghij".getBytes("UTF-8"));
+        buffer.write('k');
+
+        assertEquals(11, buffer.size());
+        assertEquals("abcdefghijk", new String(buffer.toByteArray(), "UTF-8"));
+    }
+
+    @Test
+    public void test_toString_multiByteCharacterSplitAcrossSegments() throws Exception {
+        buffer.write("abé€cd".getBytes("UTF-8"));
+
+        assertEquals("abé€cd", buffer.toString("UTF-8"));
+    }
+
+    @Test
+    public void test_toString_empty() {
+        assertEquals("", buffer.toString("UTF-8"));
+    }
+
+    @Test
+    public void test_getInputStream() throws Exception {
+        buffer.write("abcdefghij".getBytes("UTF-8"));
+
+        InputStream input = buffer.getInputStream();
+        byte[] read = new byte[3];
+        assertEquals(3, input.read(read, 0, 3));
+        assertEquals("abc", new String(read, "UTF-8"));
+        assertEquals('d', input.read());
+
+        ByteArrayOutputStream rest = new ByteArrayOutputStream();
+        int count;
+        while ((count = input.read(read, 0, read.length)) != -1) {
+            rest.write(read, 0, count);
+        }
+        assertEquals("efghij", new String(rest.toByteArray(), "UTF-8"));
+    }
+
+    @Test
+    public void test_writeTo_directSegments() throws Exception {
+        buffer = new ChunkedCaptureBuffer(new SegmentPool(2, 4, true));
+        buffer.write("abcdefghij".getBytes("UTF-8"));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        buffer.writeTo(out);
+
+        assertEquals("abcdefghij", new String(out.toByteArray(), "UTF-8"));
+    }
+
+    @Test
+    public void test_writeTo_range() throws Exception {
+        buffer.write("abcdefghij".getBytes("UTF-8"));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        buffer.writeTo(out, 3, 9);
+
+        assertEquals("defghi", new String(out.toByteArray(), "UTF-8"));
+    }
+
+    @Test
+    public void test_toString_range() throws Exception {
+        buffer.write("abé€cd".getBytes("UTF-8"));
+
+        assertEquals("é€", buffer.toString("UTF-8", 2, 7));
+    }
+
+    @Test
+    public void test_indexOf_acrossSegments() throws Exception {
+        buffer.write("abcdefgdefh".getBytes("UTF-8"));
+
+        assertEquals(3, buffer.indexOf("def".getBytes("UTF-8"), 0));
+        assertEquals(7, buffer.indexOf("def".getBytes("UTF-8"), 4));
+        assertEquals(8, buffer.indexOf("efh".getBytes("UTF-8"), 0));
+        assertEquals(-1, buffer.indexOf("defx".getBytes("UTF-8"), 0));
+        assertEquals(-1, buffer.indexOf("abcdefgdefhi".getBytes("UTF-8"), 0));
+    }
+
+    @Test
+    public void test_contentHash() throws Exception {
+        buffer.write("abcdefghijklmnopqrstuvwxyz".getBytes("UTF-8"));
+        ChunkedCaptureBuffer same = new ChunkedCaptureBuffer(pool);
+        same.write("abcdefghijklmnopqrstuvwxyz".getBytes("UTF-8"));
+        ChunkedCaptureBuffer different = new ChunkedCaptureBuffer(pool);
+        different.write("abcdefghijklmnopqrstuvwxyZ".getBytes("UTF-8"));
+
+        assertEquals(buffer.contentHash(), same.contentHash());
+        assertEquals(26, buffer.contentHash().getLength());
+        assertFalse(buffer.contentHash().equals(different.contentHash()));
+    }
+
+    @Test
+    public void test_release_recyclesSegments() throws Exception {
+        buffer.write("abcdefghij".getBytes("UTF-8"));
+        buffer.release();
+
+        assertEquals(0, buffer.size());
+        assertEquals(2, pool.getIdleSegments());
+        assertEquals(3, pool.getMisses());
+
+        buffer.write("abcdefgh".getBytes("UTF-8"));
+
+        assertEquals(2, pool.getHits());
+        assertEquals("abcdefgh", buffer.toString("UTF-8"));
+    }
+
+    @Test
+    public void test_write_overBudget() throws Exception {
+        CaptureBudget budget = new CaptureBudget(8, Long.MAX_VALUE, CaptureBudget.FAIL, 0, null);
+        buffer = new ChunkedCaptureBuffer(pool, budget);
+        buffer.write("abcdefgh".getBytes("UTF-8"));
+
+        try {
+            buffer.write('i');
+            fail();
+        } catch (CaptureBudgetExceededException e) {
+            assertTrue(buffer.isOverBudget());
+        }
+        try {
+            buffer.write('j');
+            fail();
+        } catch (CaptureBudgetExceededException expected) {
+        }
+
+        buffer.release();
+
+        assertEquals(0, budget.getUsedBytes());
+        assertFalse(buffer.isOverBudget());
+    }
+
+    @Test
+    public void test_write_rejectedBeforeTheSizeOverflows() throws Exception {
+        SegmentPool hugeSegments = mock(SegmentPool.class);
+        when(hugeSegments.getSegmentSize()).thenReturn(1 << 30);
+        when(hugeSegments.acquire()).thenReturn(ByteBuffer.allocate(4), ByteBuffer.allocate(4));
+        buffer = new ChunkedCaptureBuffer(hugeSegments);
+
+        buffer.write("abcd".getBytes("UTF-8"));
+        try {
+            buffer.write('e');
+            fail();
+        } catch (CaptureBudgetExceededException e) {
+            assertTrue(buffer.isOverBudget());
+        }
+        assertEquals(4, buffer.size());
+    }
+
+    @Test
+    public void test_write_spillsOverTheThreshold() throws Exception {
+        File directory = new File(System.getProperty("java.io.tmpdir"), "antisamy-spill-test-" + System.nanoTime());
+        directory.mkdirs();
+        CaptureBudget budget = new CaptureBudget();
+        budget.setSpillThreshold(8);
+        budget.setSpillDirectory(directory);
+        buffer = new ChunkedCaptureBuffer(pool, budget);
+
+        buffer.write("abcdefgh".getBytes("UTF-8"));
+        assertFalse(buffer.isSpilled());
+        buffer.write("ijkl".getBytes("UTF-8"));
+
+        assertTrue(buffer.isSpilled());
+        assertEquals(8, budget.getUsedBytes());
+        assertEquals("abcdefghijkl", buffer.toString("UTF-8"));
+
+        buffer.release();
+
+        assertEquals(0, directory.listFiles().length);
+        assertEquals(0, budget.getSpilledBytes());
+        directory.delete();
+    }
+
+    @Test
+    public void test_write_spillsToAMappedFile() throws Exception {
+        File directory = new File(System.getProperty("java.io.tmpdir"), "antisamy-spill-test-" + System.nanoTime());
+        directory.mkdirs();
+        CaptureBudget budget = new CaptureBudget(Long.MAX_VALUE, 8, CaptureBudget.SPILL, 0, directory);
+        buffer = new ChunkedCaptureBuffer(pool, budget);
+        ChunkedCaptureBuffer onHeap = new ChunkedCaptureBuffer(pool);
+        byte[] bytes = "abcdefghijklmnopqrstuvwxyzé€".getBytes("UTF-8");
+
+        buffer.write(bytes);
+        onHeap.write(bytes);
+
+        assertTrue(buffer.isSpilled());
+        assertEquals(8, budget.getUsedBytes());
+        assertTrue(budget.getSpilledBytes() > 0);
+        assertEquals(1, directory.listFiles().length);
+        assertEquals("abcdefghijklmnopqrstuvwxyzé€", buffer.toString("UTF-8"));
+        assertEquals(onHeap.contentHash(), buffer.contentHash());
+        assertEquals(14, buffer.indexOf("op".getBytes("UTF-8"), 0));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        buffer.writeTo(out);
+        assertEquals("abcdefghijklmnopqrstuvwxyzé€", new String(out.toByteArray(), "UTF-8"));
+
+        buffer.release();
+
+        assertEquals(0, directory.listFiles().length);
+        assertEquals(0, budget.getUsedBytes());
+        assertEquals(0, budget.getSpilledBytes());
+        assertEquals(2, pool.getIdleSegments());
+        directory.delete();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        pool = new SegmentPool(2, 4, false);
+        buffer = new ChunkedCaptureBuffer(pool);
+    }
+}
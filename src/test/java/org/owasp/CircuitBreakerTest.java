@@ -0,0 +1,119 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.owasp;
+
+import org.apache.commons.logging.Log;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+public class CircuitBreakerTest {
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(500);
+
+    private CircuitBreaker circuitBreaker;
+    private Log log;
+
+    @Test
+    public void test_staysClosedWhenFast() {
+        circuitBreaker = new CircuitBreaker("policy.xml", 100, 200, 50);
+        for (int i = 0; i < 400; i++) {
+            assertTrue(circuitBreaker.allowScan());
+            circuitBreaker.record(i % 200 == 0 ? SLOW : FAST);
+        }
+
+        assertEquals(CircuitBreaker.CLOSED, circuitBreaker.getState());
+    }
+
+    @Test
+    public void test_staysClosedJustUnderTheThreshold() {
+        circuitBreaker = new CircuitBreaker("/admin/*", 100, 100, 50);
+        for (int i = 0; i < 300; i++) {
+            circuitBreaker.record(TimeUnit.MILLISECONDS.toNanos(80) + i % 100 * TimeUnit.MICROSECONDS.toNanos(150));
+        }
+
+        assertEquals(CircuitBreaker.CLOSED, circuitBreaker.getState());
+    }
+
+    @Test
+    public void test_opensJustOverTheThreshold() {
+        circuitBreaker = new CircuitBreaker("/admin/*", 100, 100, 50);
+        for (int i = 0; i < 100; i++) {
+            circuitBreaker.record(TimeUnit.MILLISECONDS.toNanos(i < 98 ? 10 : 104));
+        }
+
+        assertEquals(CircuitBreaker.OPEN, circuitBreaker.getState());
+    }
+
+    @Test
+    public void test_opensWhenTheP99IsSlow() {
+        open();
+
+        assertEquals(CircuitBreaker.OPEN, circuitBreaker.getState());
+        assertFalse(circuitBreaker.allowScan());
+        assertEquals(1, circuitBreaker.getOpenings());
+        verify(log).warn("Opened the scan circuit of policy.xml, p99 scan latency of 500 ms is over 100 ms");
+    }
+
+    @Test
+    public void test_fastProbeCloses() throws Exception {
+        open();
+        Thread.sleep(60);
+
+        assertTrue(circuitBreaker.allowScan());
+        assertFalse(circuitBreaker.allowScan());
+        assertEquals(CircuitBreaker.HALF_OPEN, circuitBreaker.getState());
+
+        circuitBreaker.record(FAST);
+
+        assertEquals(CircuitBreaker.CLOSED, circuitBreaker.getState());
+        assertTrue(circuitBreaker.allowScan());
+        verify(log).info("Closed the scan circuit of policy.xml");
+    }
+
+    @Test
+    public void test_slowProbeOpensAgain() throws Exception {
+        open();
+        Thread.sleep(60);
+        assertTrue(circuitBreaker.allowScan());
+
+        circuitBreaker.record(SLOW);
+
+        assertEquals(CircuitBreaker.OPEN, circuitBreaker.getState());
+        assertFalse(circuitBreaker.allowScan());
+        assertEquals(2, circuitBreaker.getOpenings());
+    }
+
+    private void open() {
+        for (int i = 0; i < 10; i++) {
+            circuitBreaker.record(SLOW);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        log = mock(Log.class);
+        circuitBreaker = new CircuitBreaker("policy.xml", 100, 10, 50);
+        circuitBreaker.setLog(log);
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.owasp;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static junit.framework.Assert.assertEquals;
+
+public class CleanHtmlEncoderTest {
+    @Test
+    public void test_encode_sameEncodingAsAntiSamy() throws Exception {
+        byte[] encoded = new CleanHtmlEncoder("UTF-8").encode("<p>café €</p>", "utf-8");
+
+        assertEquals("<p>café €</p>", new String(encoded, "UTF-8"));
+    }
+
+    @Test
+    public void test_encode_unmappableCharacters() throws Exception {
+        byte[] encoded = new CleanHtmlEncoder("UTF-8").encode("<p>café € 😀</p>", "ISO-8859-1");
+
+        assertEquals("<p>café &#8364; &#128512;</p>", new String(encoded, "ISO-8859-1"));
+    }
+
+    @Test
+    public void test_encode_largerThanTheEncodeBuffer() throws Exception {
+        StringBuilder html = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            html.append("é€");
+        }
+
+        byte[] encoded = new CleanHtmlEncoder("UTF-8").encode(html.toString(), "US-ASCII");
+
+        assertEquals(html.toString().replace("é", "&#233;").replace("€", "&#8364;"), new String(encoded, "US-ASCII"));
+    }
+
+    @Test
+    public void test_encode_intoAStream() throws Exception {
+        CleanHtmlEncoder encoder = new CleanHtmlEncoder("UTF-8");
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        long written = encoder.encode("<p>café € 😀</p>", "ISO-8859-1", output);
+
+        assertEquals("<p>café &#8364; &#128512;</p>", new String(output.toByteArray(), "ISO-8859-1"));
+        assertEquals(output.size(), written);
+        assertEquals(written, encoder.encodedLength("<p>café € 😀</p>", "ISO-8859-1"));
+    }
+
+    @Test
+    public void test_encodedLength_sameEncodingAsAntiSamy() throws Exception {
+        assertEquals("<p>café €</p>".getBytes("UTF-8").length, new CleanHtmlEncoder("UTF-8").encodedLength("<p>café €</p>", "UTF-8"));
+    }
+}
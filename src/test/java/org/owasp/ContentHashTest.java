@@ -0,0 +1,85 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+
+package org.owasp;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+
+public class ContentHashTest {
+    @Test
+    public void test_toString_fixedWidthWithLength() {
+        assertEquals("0000000000000001000000000000000a-10", new ContentHash(1, 10, 16).toString());
+        assertFalse(new ContentHash(0x1, 0x23, 5).toString().equals(new ContentHash(0x12, 0x3, 5).toString()));
+        assertFalse(new ContentHash(1, 2, 5).toString().equals(new ContentHash(1, 2, 6).toString()));
+    }
+
+    @Test
+    public void test_hasher_independentOfWrites() {
+        byte[] body = body(20000);
+        ContentHash.Hasher whole = ContentHash.hasher();
+        whole.write(body, 0, body.length);
+        ContentHash.Hasher pieces = ContentHash.hasher();
+        pieces.write(body, 0, 3);
+        pieces.write(body[3]);
+        pieces.write(body, 4, 9000);
+        pieces.write(body, 9004, body.length - 9004);
+
+        assertEquals(whole.toContentHash(), pieces.toContentHash());
+        assertEquals(body.length, pieces.getLength());
+    }
+
+    @Test
+    public void test_hasher_differentBodies() {
+        byte[] body = body(100);
+        byte[] changed = Arrays.copyOf(body, body.length);
+        changed[57] ^= 1;
+
+        assertFalse(hash(body).equals(hash(changed)));
+        assertFalse(hash(body).equals(hash(Arrays.copyOf(body, 99))));
+        assertFalse(hash(new byte[8]).equals(hash(new byte[16])));
+    }
+
+    @Test
+    public void test_of_keyedAndIndependentOfSegments() throws Exception {
+        byte[] body = body(20000);
+        ChunkedCaptureBuffer small = new ChunkedCaptureBuffer(new SegmentPool(0, 1024, false));
+        ChunkedCaptureBuffer large = new ChunkedCaptureBuffer(new SegmentPool(0, 64 * 1024, false));
+        small.write(body, 0, body.length);
+        large.write(body, 0, body.length);
+
+        assertEquals(small.contentHash(), large.contentHash());
+        assertFalse(small.contentHash().equals(hash(body)));
+    }
+
+    private static ContentHash hash(byte[] body) {
+        ContentHash.Hasher hasher = ContentHash.hasher();
+        hasher.write(body, 0, body.length);
+        return hasher.toContentHash();
+    }
+
+    private static byte[] body(int length) {
+        byte[] body = new byte[length];
+        for (int i = 0; i < length; i++) {
+            body[i] = (byte) (i * 31 + (i >> 8));
+        }
+        return body;
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.owasp;
+
+import org.junit.Test;
+
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+public class ContentTypeMatcherTest {
+    @Test
+    public void test_matches_default() {
+        ContentTypeMatcher matcher = new ContentTypeMatcher();
+
+        assertTrue(matcher.matches("text/html"));
+        assertTrue(matcher.matches("text/html; charset=UTF-8"));
+        assertTrue(matcher.matches(" Text/HTML ;charset=ISO-8859-1"));
+        assertFalse(matcher.matches("text/htmlx"));
+        assertFalse(matcher.matches("application/json"));
+        assertFalse(matcher.matches(null));
+    }
+
+    @Test
+    public void test_matches_configuredLists() {
+        ContentTypeMatcher matcher = new ContentTypeMatcher("text/html, application/xhtml+xml text/*", "text/plain,text/css");
+
+        assertTrue(matcher.matches("application/xhtml+xml; charset=UTF-8"));
+        assertTrue(matcher.matches("text/xml"));
+        assertFalse(matcher.matches("text/plain"));
+        assertFalse(matcher.matches("text/css;charset=UTF-8"));
+        assertFalse(matcher.matches("text/"));
+    }
+
+    @Test
+    public void test_matches_everything() {
+        ContentTypeMatcher matcher = new ContentTypeMatcher("*/*", "image/*");
+
+        assertTrue(matcher.matches("application/pdf"));
+        assertFalse(matcher.matches("image/png"));
+    }
+}
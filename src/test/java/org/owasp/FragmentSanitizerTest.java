@@ -0,0 +1,142 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.owasp;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.owasp.validator.html.CleanResults;
+import org.owasp.validator.html.Policy;
+import org.owasp.validator.html.ScanException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.fail;
+import static org.mockito.Mockito.*;
+
+public class FragmentSanitizerTest {
+    private static final String BEGIN = "<!--antisamy:{0}-->";
+    private static final String END = "<!--/antisamy:{0}-->";
+    private static final String NONCE = "0123456789abcdef";
+
+    private AntiSamyPool antiSamyPool;
+    private Policy policy;
+    private ChunkedCaptureBuffer page;
+
+    @Test
+    public void test_sanitize_onlyTheMarkedRegions() throws Exception {
+        page.write(("<html><script>trusted()</script><p>" + begin() + "<b>user</b><script>evil()</script>" + end() + "</p>"
+                + "<div onclick=\"trusted()\">" + begin() + "<i onclick=\"evil()\">more</i>" + end() + "</div></html>").getBytes("UTF-8"));
+
+        FragmentSanitizer sanitizer = sanitizer();
+        CleanResults results = sanitizer.sanitize(page);
+
+        String expected = "<html><script>trusted()</script><p><b>user</b></p><div onclick=\"trusted()\"><i>more</i></div></html>";
+        assertEquals(expected, write(sanitizer));
+        assertEquals(expected.length(), sanitizer.getContentLength());
+        assertEquals(2, sanitizer.getRegionCount());
+        assertEquals(2, results.getNumberOfErrors());
+    }
+
+    @Test
+    public void test_sanitize_templateBytesAreUntouched() throws Exception {
+        page.write(("<p title=\"café\">" + begin() + "<p>naïve</p>" + end() + "€</p>").getBytes("UTF-8"));
+
+        FragmentSanitizer sanitizer = sanitizer();
+        sanitizer.sanitize(page);
+
+        assertEquals("<p title=\"café\"><p>na&iuml;ve</p>€</p>", write(sanitizer));
+    }
+
+    @Test
+    public void test_sanitize_endDelimiterWithoutNonceDoesNotCloseTheRegion() throws Exception {
+        page.write(("<p>" + begin() + "user<!--/antisamy:guess--><script>evil()</script>" + end() + "</p>").getBytes("UTF-8"));
+
+        FragmentSanitizer sanitizer = sanitizer();
+        sanitizer.sanitize(page);
+
+        assertEquals("<p>user</p>", write(sanitizer));
+    }
+
+    @Test
+    public void test_sanitize_unterminatedRegionRunsToTheEnd() throws Exception {
+        page.write(("<p>trusted</p>" + begin() + "<script>evil()</script><b>user</b>").getBytes("UTF-8"));
+
+        FragmentSanitizer sanitizer = sanitizer();
+        sanitizer.sanitize(page);
+
+        assertEquals("<p>trusted</p><b>user</b>", write(sanitizer));
+    }
+
+    @Test
+    public void test_sanitize_noRegions() throws Exception {
+        page.write("<script>trusted()</script>".getBytes("UTF-8"));
+
+        FragmentSanitizer sanitizer = sanitizer();
+        sanitizer.sanitize(page);
+
+        assertEquals("<script>trusted()</script>", write(sanitizer));
+        assertEquals(0, sanitizer.getScannedBytes());
+    }
+
+    @Test
+    public void test_sanitize_scanFailure() throws Exception {
+        AntiSamyPool failingPool = mock(AntiSamyPool.class);
+        when(failingPool.scan(anyString(), eq(policy))).thenThrow(new ScanException("failed"));
+        page.write(("<p>" + begin() + "user" + end() + "</p>").getBytes("UTF-8"));
+
+        try {
+            new FragmentSanitizer(failingPool, policy, new CleanHtmlEncoder("UTF-8"), BEGIN, END, NONCE, "UTF-8").sanitize(page);
+            fail();
+        } catch (ScanException e) {
+            assertEquals("failed", e.getMessage());
+        }
+    }
+
+    @Test
+    public void test_newNonce() {
+        String nonce = FragmentSanitizer.newNonce();
+
+        assertEquals(32, nonce.length());
+        assertEquals(false, nonce.equals(FragmentSanitizer.newNonce()));
+    }
+
+    private FragmentSanitizer sanitizer() throws Exception {
+        return new FragmentSanitizer(antiSamyPool, policy, new CleanHtmlEncoder("UTF-8"), BEGIN, END, NONCE, "UTF-8");
+    }
+
+    private String write(FragmentSanitizer sanitizer) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        sanitizer.writeTo(page, out);
+        return new String(out.toByteArray(), "UTF-8");
+    }
+
+    private String begin() {
+        return BEGIN.replace("{0}", NONCE);
+    }
+
+    private String end() {
+        return END.replace("{0}", NONCE);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        antiSamyPool = new AntiSamyPool(1, "UTF-8", "UTF-8");
+        policy = Policy.getInstance(new File(getClass().getResource("/antisamy-test-policy.xml").toURI()));
+        page = new ChunkedCaptureBuffer(new SegmentPool(0, 16, false));
+    }
+}
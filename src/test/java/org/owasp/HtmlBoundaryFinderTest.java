@@ -0,0 +1,141 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.owasp;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+public class HtmlBoundaryFinderTest {
+    private HtmlBoundaryFinder finder;
+
+    @Test
+    public void test_topLevelElements() {
+        assertEquals(list(0, 8, 31), boundaries("<p>a</p><div><b>b</b></div>text<br>"));
+    }
+
+    @Test
+    public void test_voidAndSelfClosingElements() {
+        assertEquals(list(0, 4, 10), boundaries("<br><img/><p>x</p>"));
+    }
+
+    @Test
+    public void test_commentsAndDeclarationsAreNotBoundaries() {
+        assertEquals(list(0, 23), boundaries("<!-- <p>x</p> -- > -->a<p>b</p>"));
+        assertEquals(list(0, 15), boundaries("<!DOCTYPE html><p>x</p>"));
+    }
+
+    @Test
+    public void test_rawTextElements() {
+        assertEquals(list(0, 35), boundaries("<script>if (a < b) '<p>';</script ><p>x</p>"));
+        assertEquals(list(0, 31), boundaries("<style>p { color: red }</STYLE><p>x</p>"));
+    }
+
+    @Test
+    public void test_quotedAttributeValues() {
+        assertEquals(list(0, 29), boundaries("<a title='>' href=\"<p>\">a</a><p>x</p>"));
+    }
+
+    @Test
+    public void test_impliedEndTags() {
+        assertEquals(list(0, 19), boundaries("<ul><li>a<li>b</ul><p>x"));
+        assertEquals(list(0, 16), boundaries("<p>a<div>b</div><p>c"));
+        assertEquals(list(0), boundaries("<p>a<table><tr><td>b</td></tr></table><ul><li>c</ul>"));
+    }
+
+    @Test
+    public void test_documentWrappersAreTransparent() {
+        assertEquals(list(0, 6, 12, 20, 28, 35), boundaries("<html><body><p>a</p><p>b</p></body></html>"));
+        assertEquals(list(0, 6, 12, 28, 35, 41, 49, 56), boundaries("<html><head><title>t</title></head><body><p>a</p></body></html>"));
+    }
+
+    @Test
+    public void test_textBeforeFirstTag() {
+        assertEquals(list(5), boundaries("a & b<p>x</p>"));
+    }
+
+    @Test
+    public void test_from() {
+        String html = "<p>a</p><p>b</p><p>c</p>";
+
+        assertEquals(8, finder.findBoundary(html, 1));
+        assertEquals(16, finder.findBoundary(html, 12));
+        assertEquals(-1, finder.findBoundary(html, 20));
+    }
+
+    @Test
+    public void test_incremental() {
+        StringBuilder html = new StringBuilder("<p>a</p><scr");
+        assertEquals(0, finder.findBoundary(html, 0));
+        assertEquals(8, finder.findBoundary(html, 0));
+        assertEquals(-1, finder.findBoundary(html, 0));
+
+        html.append("ipt>'<p>'</scr");
+        assertEquals(-1, finder.findBoundary(html, 0));
+
+        html.append("ipt><p>b</p>");
+        assertEquals(30, finder.findBoundary(html, 0));
+    }
+
+    @Test
+    public void test_shift() {
+        StringBuilder html = new StringBuilder("<p>a</p><p>b</p>");
+        assertEquals(8, finder.findBoundary(html, 1));
+
+        html.delete(0, 8);
+        finder.shift(8);
+        html.append("<p>c</p>");
+
+        assertEquals(8, finder.findBoundary(html, 1));
+    }
+
+    @Test
+    public void test_isTopLevel() {
+        finder.findBoundary("<div><p>", 100);
+        assertFalse(finder.isTopLevel());
+
+        finder.findBoundary("<div><p></p></div>", 100);
+        assertTrue(finder.isTopLevel());
+    }
+
+    private List<Integer> boundaries(String html) {
+        HtmlBoundaryFinder finder = new HtmlBoundaryFinder();
+        List<Integer> boundaries = new ArrayList<Integer>();
+        int boundary;
+        while ((boundary = finder.findBoundary(html, 0)) >= 0) {
+            boundaries.add(boundary);
+        }
+        return boundaries;
+    }
+
+    private List<Integer> list(Integer... values) {
+        List<Integer> list = new ArrayList<Integer>();
+        for (Integer value : values) {
+            list.add(value);
+        }
+        return list;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        finder = new HtmlBoundaryFinder();
+    }
+}
@@ -19,11 +19,18 @@ import org.junit.Test;
 
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
 import java.io.PrintWriter;
 import java.lang.reflect.Method;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
 import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
 import static org.mockito.Mockito.*;
 
 public class HttpServletResponseInvocationHandlerTest {
@@ -44,10 +51,66 @@ public class HttpServletResponseInvocationHandlerTest {
 
         assertTrue(result instanceof PrintWriter);
         PrintWriter writer = (PrintWriter) result;
-        writer.println("test");
+        writer.print("test");
+        handler.flush();
 
         assertEquals("test", handler.getContents());
-        verifyZeroInteractions(response);
+        verify(response, never()).getWriter();
+        verify(response, never()).getOutputStream();
+    }
+
+    @Test
+    public void test_getWriter_sameWriterForTheResponse() throws Throwable {
+        assertSame(handler.getWriter(), handler.invoke(null, method("getWriter"), new Object[0]));
+    }
+
+    @Test
+    public void test_getWriter_onlyFlushedOnRequest() throws Throwable {
+        handler.getWriter().write("test");
+
+        assertEquals(0, handler.getSize());
+
+        handler.flush();
+
+        assertEquals(4, handler.getSize());
+    }
+
+    @Test
+    public void test_captureTimedOnlyWithRequestTimings() throws Throwable {
+        handler.getOutputStream().write("test".getBytes());
+
+        assertEquals(0, handler.getCaptureNanos());
+
+        handler.setRequestTimings(new RequestTimings(null, new PhaseListener[0]));
+        handler.getOutputStream().write(new byte[64 * 1024]);
+
+        assertTrue(handler.getCaptureNanos() > 0);
+    }
+
+    @Test
+    public void test_getWriter_usesResponseCharacterEncoding() throws Throwable {
+        when(response.getCharacterEncoding()).thenReturn("UTF-8");
+
+        handler.getWriter().write("\u00e9");
+        handler.flush();
+
+        assertEquals(2, handler.getSize());
+        assertEquals("\u00e9", handler.getContents());
+    }
+
+    @Test
+    public void test_getWriter_defaultCharacterEncoding() throws Throwable {
+        handler.getWriter().write("\u00e9");
+        handler.flush();
+
+        assertEquals(1, handler.getSize());
+    }
+
+    @Test
+    public void test_getOutputStream_bulkWrite() throws Throwable {
+        handler.getOutputStream().write("test".getBytes(), 1, 2);
+
+        assertEquals("es", handler.getContents());
     }
 
     @Test
@@ -58,6 +121,195 @@ public class HttpServletResponseInvocationHandlerTest {
         assertTrue(result instanceof ServletOutputStream);
     }
 
+    @Test
+    public void test_write_contentTypeNotSanitized() throws Throwable {
+        ServletOutputStream outputStream = mock(ServletOutputStream.class);
+        when(response.getOutputStream()).thenReturn(outputStream);
+
+        handler.setContentLength(4);
+        handler.setContentType("image/png");
+        handler.getOutputStream().write(1);
+
+        assertTrue(handler.isPassThrough());
+        verify(response).setContentLength(4);
+        verify(outputStream).write(1);
+        assertEquals(0, handler.getBytes().length);
+    }
+
+    @Test
+    public void test_write_contentTypeSanitized() throws Throwable {
+        handler.setContentLength(4);
+        handler.setContentType("text/html");
+        handler.getOutputStream().write(1);
+
+        assertFalse(handler.isPassThrough());
+        verify(response, never()).setContentLength(anyInt());
+        verify(response, never()).getOutputStream();
+        assertEquals(1, handler.getBytes().length);
+    }
+
+    @Test
+    public void test_write_streamingSanitizerOnlyBuiltForSanitizedContent() throws Throwable {
+        StreamingSanitizer.Factory factory = mock(StreamingSanitizer.Factory.class);
+        ServletOutputStream outputStream = mock(ServletOutputStream.class);
+        when(response.getOutputStream()).thenReturn(outputStream);
+        handler.setStreamingSanitizerFactory(factory);
+        handler.setContentType("image/png");
+        handler.getOutputStream().write(1);
+
+        assertTrue(handler.isPassThrough());
+        assertNull(handler.getStreamingSanitizer());
+        verify(factory, never()).build();
+    }
+
+    @Test
+    public void test_write_streamingSanitizerBuiltOnFirstWrite() throws Throwable {
+        StreamingSanitizer sanitizer = mock(StreamingSanitizer.class);
+        StreamingSanitizer.Factory factory = mock(StreamingSanitizer.Factory.class);
+        when(factory.build()).thenReturn(sanitizer);
+        handler.setStreamingSanitizerFactory(factory);
+        handler.setContentType("text/html");
+        handler.getOutputStream().write(new byte[]{1, 2}, 0, 2);
+
+        assertTrue(handler.isStreaming());
+        assertSame(sanitizer, handler.getStreamingSanitizer());
+        verify(sanitizer).write(new byte[]{1, 2}, 0, 2);
+        assertEquals(0, handler.getSize());
+    }
+
+    @Test
+    public void test_setContentType_ignoredOncePassingThrough() throws Throwable {
+        ServletOutputStream outputStream = mock(ServletOutputStream.class);
+        when(response.getOutputStream()).thenReturn(outputStream);
+        handler.invoke(null, method("setContentType"), new Object[]{"image/png"});
+        handler.getOutputStream().write(1);
+
+        handler.invoke(null, method("setContentType"), new Object[]{"text/html"});
+        handler.invoke(null, method("setHeader"), new Object[]{"Content-Type", "text/html"});
+
+        assertTrue(handler.isPassThrough());
+        verify(response).setContentType("image/png");
+        verify(response, never()).setContentType("text/html");
+        verify(response, never()).setHeader("Content-Type", "text/html");
+    }
+
+    @Test
+    public void test_write_truncatedGzipBody() throws Throwable {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+        gzip.write("<p>test</p>".getBytes("UTF-8"));
+        gzip.close();
+        byte[] body = compressed.toByteArray();
+        handler.setContentType("text/html");
+        handler.setContentEncoding("gzip");
+
+        handler.getOutputStream().write(body, 0, body.length - 4);
+        assertTrue(handler.isTruncated());
+
+        handler.getOutputStream().write(body, body.length - 4, 4);
+        assertFalse(handler.isTruncated());
+    }
+
+    @Test
+    public void test_write_declaredOverTheResponseLimit() throws Throwable {
+        CaptureBudget budget = new CaptureBudget(Long.MAX_VALUE, 1024, CaptureBudget.FAIL, 0, null);
+        handler = new HttpServletResponseInvocationHandler(response, new SegmentPool(0, 64, false), new ContentTypeMatcher(), budget);
+        handler.setContentLengthLong(4096);
+        handler.setContentType("text/html");
+
+        try {
+            handler.getOutputStream().write(1);
+            fail();
+        } catch (CaptureBudgetExceededException e) {
+            assertTrue(handler.isOverBudget());
+        }
+        assertEquals(0, budget.getUsedBytes());
+    }
+
+    @Test
+    public void test_write_contentTypeUnknown() throws Throwable {
+        handler.getOutputStream().write(1);
+        handler.setContentType("image/png");
+
+        assertFalse(handler.isPassThrough());
+        assertEquals(1, handler.getBytes().length);
+    }
+
+    @Test
+    public void test_setHeader_deflateBodyInflated() throws Throwable {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        DeflaterOutputStream deflate = new DeflaterOutputStream(compressed);
+        deflate.write("<p>test</p>".getBytes("UTF-8"));
+        deflate.close();
+
+        handler.invoke(null, method("setHeader"), new Object[]{"content-encoding", "Deflate"});
+        handler.getOutputStream().write(compressed.toByteArray());
+
+        assertEquals("deflate", handler.getContentEncoding());
+        assertEquals("<p>test</p>", handler.getContents());
+        verify(response, never()).setHeader(anyString(), anyString());
+    }
+
+    @Test
+    public void test_write_lastContentTypeBeforeWriteWins() throws Throwable {
+        handler.setContentType("application/octet-stream");
+        handler.invoke(null, method("setHeader"), new Object[]{"Content-Type", "text/html;charset=UTF-8"});
+        handler.getOutputStream().write(1);
+
+        assertFalse(handler.isPassThrough());
+        verify(response, never()).getOutputStream();
+        assertEquals(1, handler.getBytes().length);
+    }
+
+    @Test
+    public void test_write_contentTypeChangedToNotSanitized() throws Throwable {
+        ServletOutputStream outputStream = mock(ServletOutputStream.class);
+        when(response.getOutputStream()).thenReturn(outputStream);
+
+        handler.setContentType("text/html");
+        handler.setContentType("image/png");
+        handler.getOutputStream().write(1);
+
+        assertTrue(handler.isPassThrough());
+        verify(outputStream).write(1);
+    }
+
+    @Test
+    public void test_setContentType_undecidedUntilFlushed() throws Throwable {
+        handler.setContentType("image/png");
+
+        assertFalse(handler.isPassThrough());
+
+        handler.flush();
+
+        assertTrue(handler.isPassThrough());
+    }
+
+    @Test
+    public void test_setContentEncoding_afterPassThrough() throws Throwable {
+        handler.setContentType("image/png");
+        handler.flush();
+
+        assertFalse(handler.setContentEncoding("gzip"));
+    }
+
+    @Test
+    public void test_setStatus() throws Throwable {
+        handler.invoke(null, HttpServletResponse.class.getMethod("setStatus", int.class), new Object[]{500});
+
+        verify(response).setStatus(500);
+        assertEquals(500, handler.getStatus());
+    }
+
+    @Test
+    public void test_setContentLength_afterPassThrough() throws Throwable {
+        handler.setContentType("application/json");
+        handler.flush();
+        handler.setContentLength(10);
+
+        verify(response).setContentLength(10);
+    }
+
     private Method method(String name) {
         for (Method method : HttpServletResponse.class.getMethods()) {
             if (method.getName().equals(name)) {
@@ -0,0 +1,188 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+
+package org.owasp;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+public class InflatingOutputStreamTest {
+    private static final String PAGE = "<html><body><p>a page that compresses well, a page that compresses well</p></body></html>";
+
+    @Test
+    public void test_write_gzip() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InflatingOutputStream inflating = new InflatingOutputStream(out, "gzip");
+
+        inflating.write(gzip(PAGE.getBytes("UTF-8")));
+
+        assertEquals(PAGE, out.toString("UTF-8"));
+        assertEquals(PAGE.length(), inflating.getInflated());
+        assertTrue(inflating.isComplete());
+    }
+
+    @Test
+    public void test_write_gzipOneByteAtATime() throws Exception {
+        byte[] page = randomPage();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InflatingOutputStream inflating = new InflatingOutputStream(out, "x-gzip");
+
+        for (byte b : gzip(page)) {
+            inflating.write(b);
+        }
+
+        assertEquals(new String(page, "ISO-8859-1"), out.toString("ISO-8859-1"));
+    }
+
+    @Test
+    public void test_write_headerFields() throws Exception {
+        byte[] member = gzip(PAGE.getBytes("UTF-8"));
+        ByteArrayOutputStream withFields = new ByteArrayOutputStream();
+        withFields.write(new byte[]{0x1f, (byte) 0x8b, 8, 4 | 8 | 16 | 2, 0, 0, 0, 0, 0, 0});
+        withFields.write(new byte[]{3, 0, 'a', 'b', 'c'});
+        withFields.write("page.html\0".getBytes("US-ASCII"));
+        withFields.write("a comment\0".getBytes("US-ASCII"));
+        withFields.write(new byte[]{0, 0});
+        withFields.write(member, 10, member.length - 10);
+        byte[] bytes = withFields.toByteArray();
+
+        for (int split = 1; split < 40; split++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            InflatingOutputStream inflating = new InflatingOutputStream(out, "gzip");
+            inflating.write(bytes, 0, split);
+            inflating.write(bytes, split, bytes.length - split);
+
+            assertEquals("split at " + split, PAGE, out.toString("UTF-8"));
+        }
+    }
+
+    @Test
+    public void test_write_concatenatedMembers() throws Exception {
+        ByteArrayOutputStream members = new ByteArrayOutputStream();
+        members.write(gzip("<p>one</p>".getBytes("UTF-8")));
+        members.write(gzip("<p>two</p>".getBytes("UTF-8")));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        new InflatingOutputStream(out, "gzip").write(members.toByteArray());
+
+        assertEquals("<p>one</p><p>two</p>", out.toString("UTF-8"));
+    }
+
+    @Test
+    public void test_write_deflate() throws Exception {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        DeflaterOutputStream deflate = new DeflaterOutputStream(compressed);
+        deflate.write(PAGE.getBytes("UTF-8"));
+        deflate.close();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InflatingOutputStream inflating = new InflatingOutputStream(out, "deflate");
+
+        inflating.write(compressed.toByteArray());
+
+        assertEquals(PAGE, out.toString("UTF-8"));
+        assertTrue(inflating.isComplete());
+    }
+
+    @Test
+    public void test_write_truncated() throws Exception {
+        byte[] member = gzip(PAGE.getBytes("UTF-8"));
+        InflatingOutputStream inflating = new InflatingOutputStream(new ByteArrayOutputStream(), "gzip");
+
+        inflating.write(member, 0, member.length - 4);
+
+        assertFalse(inflating.isComplete());
+    }
+
+    @Test
+    public void test_write_emptyMemberComplete() throws Exception {
+        byte[] member = gzip(new byte[0]);
+        InflatingOutputStream inflating = new InflatingOutputStream(new ByteArrayOutputStream(), "gzip");
+
+        inflating.write(member);
+
+        assertTrue(inflating.isComplete());
+        assertEquals(0, inflating.getInflated());
+    }
+
+    @Test
+    public void test_write_corruptTrailer() throws Exception {
+        byte[] member = gzip(PAGE.getBytes("UTF-8"));
+        member[member.length - 8] ^= 1;
+
+        assertZipException(member);
+    }
+
+    @Test
+    public void test_write_notGzip() throws Exception {
+        assertZipException(PAGE.getBytes("UTF-8"));
+    }
+
+    @Test
+    public void test_supports() {
+        assertTrue(InflatingOutputStream.supports("gzip"));
+        assertTrue(InflatingOutputStream.supports("x-gzip"));
+        assertTrue(InflatingOutputStream.supports("deflate"));
+        assertFalse(InflatingOutputStream.supports("br"));
+        assertFalse(InflatingOutputStream.supports("identity"));
+    }
+
+    private void assertZipException(byte[] body) throws IOException {
+        InflatingOutputStream inflating = new InflatingOutputStream(new ByteArrayOutputStream(), "gzip");
+        try {
+            inflating.write(body);
+            fail();
+        } catch (ZipException expected) {
+        } finally {
+            inflating.end();
+        }
+    }
+
+    private static byte[] randomPage() {
+        byte[] page = new byte[100000];
+        Random random = new Random(7);
+        for (int i = 0; i < page.length; i++) {
+            page[i] = (byte) ('a' + random.nextInt(8));
+        }
+        return page;
+    }
+
+    static byte[] gunzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InflatingOutputStream inflating = new InflatingOutputStream(out, "gzip");
+        inflating.write(bytes);
+        inflating.end();
+        return out.toByteArray();
+    }
+
+    static byte[] gzip(byte[] body) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+        gzip.write(body);
+        gzip.close();
+        return compressed.toByteArray();
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.owasp;
+
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+    private LatencyHistogram histogram = new LatencyHistogram();
+
+    @Test
+    public void test_snapshot() {
+        record(90, 1000);
+        record(9, 100000);
+        record(1, 10000000);
+
+        LatencySnapshot snapshot = histogram.snapshot();
+
+        assertEquals(100, snapshot.getCount());
+        assertEquals(109, snapshot.getMean());
+        assertEquals(1, snapshot.getP50());
+        assertEquals(1, snapshot.getP90());
+        assertEquals(103, snapshot.getP99());
+        assertEquals(10000, snapshot.getMax());
+    }
+
+    @Test
+    public void test_snapshot_percentileNeverExceedsMax() {
+        record(1, 100000);
+
+        LatencySnapshot snapshot = histogram.snapshot();
+
+        assertEquals(100, snapshot.getP99());
+        assertEquals(100, snapshot.getMax());
+    }
+
+    @Test
+    public void test_snapshot_interpolatesInsideTheBucket() {
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 100000L);
+        }
+
+        LatencySnapshot snapshot = histogram.snapshot();
+
+        assertWithin(50000, snapshot.getP50(), 0.07);
+        assertWithin(90000, snapshot.getP90(), 0.07);
+        assertWithin(99000, snapshot.getP99(), 0.07);
+    }
+
+    @Test
+    public void test_snapshot_empty() {
+        LatencySnapshot snapshot = histogram.snapshot();
+
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getMean());
+        assertEquals(0, snapshot.getP99());
+    }
+
+    @Test
+    public void test_reset() {
+        record(10, 1000);
+
+        histogram.reset();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.snapshot().getMax());
+    }
+
+    private void assertWithin(long expected, long actual, double error) {
+        assertTrue(actual + " is not within " + error + " of " + expected, Math.abs(actual - expected) <= expected * error);
+    }
+
+    private void record(int times, long nanos) {
+        for (int i = 0; i < times; i++) {
+            histogram.record(nanos);
+        }
+    }
+}
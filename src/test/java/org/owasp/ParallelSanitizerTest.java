@@ -0,0 +1,219 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+
+package org.owasp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.owasp.validator.html.CleanResults;
+import org.owasp.validator.html.Policy;
+import org.owasp.validator.html.ScanException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+import static org.mockito.Mockito.*;
+
+public class ParallelSanitizerTest {
+    private static final String[] CORPUS = {
+            "<p>hello <b>world</b></p>",
+            "<script>alert('</div><p>')</script>",
+            "<div id=\"x\">a &amp; b &lt; c</div>",
+            "<ul><li>one<li>two</ul>",
+            "<p>after <i>list</i></p>",
+            "<!-- <p>comment</p> -->",
+            "text between elements ",
+            "<p onclick=\"evil()\">para</p>",
+            "<div><div><div>nested <span>deep</span></div></div></div>",
+            "<p>café € 中文</p>",
+            "<style>p { color: red }</style>",
+            "<a href=\"/page?a=1&amp;b=2\">link</a><a href=\"javascript:x\">bad</a>",
+            "<table><tr><td>cell<td>cell</tr></table>",
+            "<img src=\"a.png\" alt=\"a > b\"><br/>",
+            "<iframe src=\"http://evil\"></iframe>",
+            "<p>unclosed paragraph",
+            "<h1>title</h1>\n\n",
+            "<form action=\"/x\"><input type=\"text\" value='v'></form>",
+            "<object data=\"x\"></object>",
+            "<textarea><p>raw</p></textarea>",
+    };
+
+    private AntiSamyPool antiSamyPool;
+    private Policy policy;
+    private ParallelSanitizer parallelSanitizer;
+
+    @Test
+    public void test_scan_sameResultsAsTheSerialScan() throws Exception {
+        Random random = new Random(11);
+        for (int page = 0; page < 20; page++) {
+            StringBuilder html = new StringBuilder();
+            while (html.length() < 20000) {
+                html.append(CORPUS[random.nextInt(CORPUS.length)]);
+            }
+            CleanResults expected = antiSamyPool.scan(html.toString(), policy);
+            for (int chunkSize : new int[]{1, 64, 1000, 8000}) {
+                ParallelSanitizer sanitizer = new ParallelSanitizer(antiSamyPool, 4, chunkSize);
+                try {
+                    CleanResults results = sanitizer.scan(html.toString(), policy);
+
+                    assertEquals("page " + page + " in chunks of " + chunkSize, expected.getCleanHTML(), results.getCleanHTML());
+                    assertEquals("page " + page + " in chunks of " + chunkSize, expected.getNumberOfErrors(), results.getNumberOfErrors());
+                } finally {
+                    sanitizer.shutdown();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void test_scan_wholeDocumentSplitInsideTheBody() throws Exception {
+        Random random = new Random(13);
+        for (int page = 0; page < 6; page++) {
+            StringBuilder html = new StringBuilder("<!DOCTYPE html>\n<html><head><title>T &amp; t</title><meta charset=\"utf-8\">"
+                    + "<style>p { color: red }</style></head>\n<body class=\"x\">\n");
+            while (html.length() < 20000) {
+                html.append(CORPUS[random.nextInt(CORPUS.length)]);
+            }
+            html.append(page % 2 == 0 ? "\n</body></html>\n" : "</body>\n</html>");
+            CleanResults expected = antiSamyPool.scan(html.toString(), policy);
+            for (int chunkSize : new int[]{1, 1000}) {
+                ParallelSanitizer sanitizer = new ParallelSanitizer(antiSamyPool, 4, chunkSize);
+                try {
+                    assertTrue(sanitizer.split(html.toString()).size() >= 20000 / Math.max(chunkSize, 1000));
+
+                    assertEquals("page " + page + " in chunks of " + chunkSize, expected.getCleanHTML(), sanitizer.scan(html.toString(), policy).getCleanHTML());
+                } finally {
+                    sanitizer.shutdown();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void test_split_wholeDocument() {
+        List<String> chunks = parallelSanitizer.split("<html><head><title>t</title></head><body><p>one</p><div><p>two</p></div></body></html>");
+
+        assertEquals(Arrays.asList("<html>", "<head>", "<title>t</title>", "</head>", "<body>", "<p>one</p>", "<div><p>two</p></div>", "</body>", "</html>"), chunks);
+    }
+
+    @Test
+    public void test_split() {
+        List<String> chunks = parallelSanitizer.split("<p>one</p><div><p>nested</p></div><p>three</p>tail");
+
+        assertEquals(3, chunks.size());
+        assertEquals("<p>one</p>", chunks.get(0));
+        assertEquals("<div><p>nested</p></div>", chunks.get(1));
+        assertEquals("<p>three</p>tail", chunks.get(2));
+    }
+
+    @Test
+    public void test_split_noBoundary() {
+        List<String> chunks = parallelSanitizer.split("<div><p>one</p><p>two</p></div>");
+
+        assertEquals(1, chunks.size());
+    }
+
+    @Test
+    public void test_scan_tooLargeForThePolicyScannedWhole() throws Exception {
+        AntiSamyPool mockPool = mock(AntiSamyPool.class);
+        ParallelSanitizer sanitizer = new ParallelSanitizer(mockPool, 2, 1);
+        StringBuilder html = new StringBuilder();
+        while (html.length() <= policy.getMaxInputSize()) {
+            html.append("<p>x</p>");
+        }
+        ScanException error = new ScanException("too large");
+        when(mockPool.scan(html.toString(), policy)).thenThrow(error);
+
+        try {
+            sanitizer.scan(html.toString(), policy);
+            fail();
+        } catch (ScanException e) {
+            assertSame(error, e);
+        } finally {
+            sanitizer.shutdown();
+        }
+    }
+
+    @Test
+    public void test_scan_sentinelsTakenOffTheEnds() throws Exception {
+        AntiSamyPool mockPool = mock(AntiSamyPool.class);
+        ParallelSanitizer sanitizer = new ParallelSanitizer(mockPool, 2, 1);
+        when(mockPool.scan("<p>a.b</p>.", policy)).thenReturn(results("<p>a.b</p>."));
+        when(mockPool.scan(".<p>c.</p>.", policy)).thenReturn(results(".<p>c.</p>."));
+        when(mockPool.scan(".<div><p>d..", policy)).thenReturn(results(".<div><p>d..</p></div>"));
+
+        try {
+            assertEquals("<p>a.b</p><p>c.</p><div><p>d.</p></div>", sanitizer.scan("<p>a.b</p><p>c.</p><div><p>d.", policy).getCleanHTML());
+        } finally {
+            sanitizer.shutdown();
+        }
+    }
+
+    @Test
+    public void test_scan_sentinelNotAtTheEndScannedWhole() throws Exception {
+        AntiSamyPool mockPool = mock(AntiSamyPool.class);
+        ParallelSanitizer sanitizer = new ParallelSanitizer(mockPool, 2, 1);
+        when(mockPool.scan("<p>a.b</p>.", policy)).thenReturn(results("<p>a.b</p>."));
+        when(mockPool.scan(".<!-- c.", policy)).thenReturn(results("c.<p>moved.</p>"));
+        when(mockPool.scan("<p>a.b</p><!-- c", policy)).thenReturn(results("<p>a.b</p>"));
+
+        try {
+            assertEquals("<p>a.b</p>", sanitizer.scan("<p>a.b</p><!-- c", policy).getCleanHTML());
+        } finally {
+            sanitizer.shutdown();
+        }
+    }
+
+    @Test
+    public void test_scan_chunkFailure() throws Exception {
+        AntiSamyPool mockPool = mock(AntiSamyPool.class);
+        ParallelSanitizer sanitizer = new ParallelSanitizer(mockPool, 2, 1);
+        when(mockPool.scan(anyString(), eq(policy))).thenThrow(new ScanException("bad chunk"));
+
+        try {
+            sanitizer.scan("<p>one</p><p>two</p><p>three</p>", policy);
+            fail();
+        } catch (ScanException e) {
+            assertTrue(e.getMessage().contains("bad chunk"));
+        } finally {
+            sanitizer.shutdown();
+        }
+    }
+
+    private CleanResults results(String cleanHtml) {
+        return new CleanResults(new Date(), new Date(), cleanHtml, null, new ArrayList());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        policy = Policy.getInstance(getClass().getResourceAsStream("/antisamy-test-policy.xml"));
+        antiSamyPool = new AntiSamyPool(4, "UTF-8", "UTF-8");
+        parallelSanitizer = new ParallelSanitizer(antiSamyPool, 2, 1);
+    }
+
+    @After
+    public void tearDown() {
+        parallelSanitizer.shutdown();
+    }
+}
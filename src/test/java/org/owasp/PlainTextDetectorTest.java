@@ -0,0 +1,129 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.owasp;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.owasp.validator.html.AntiSamy;
+import org.owasp.validator.html.Policy;
+
+import java.io.File;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class PlainTextDetectorTest {
+    private Policy policy;
+    private PlainTextDetector detector;
+    private HttpServletResponseInvocationHandler invocationHandler;
+
+    @Test
+    public void test_isPlainText_everyByteAtEveryOffset() throws Exception {
+        for (int b = 0; b < 256; b++) {
+            boolean plain = b == '\t' || b == '\n' || (b >= 0x20 && b < 0x7f && b != '"' && b != '&' && b != '<' && b != '>');
+            for (int offset = 0; offset < 24; offset++) {
+                ChunkedCaptureBuffer buffer = new ChunkedCaptureBuffer(new SegmentPool(0, 16, false));
+                byte[] body = "abcdefghijklmnopqrstuvwxyz".getBytes("US-ASCII");
+                body[offset] = (byte) b;
+                buffer.write(body);
+
+                assertEquals("byte " + b + " at " + offset, plain, buffer.isPlainText());
+            }
+        }
+    }
+
+    @Test
+    public void test_isPlainText_agreesWithAntiSamy() throws Exception {
+        AntiSamy antiSamy = new AntiSamy();
+        for (char c = 0; c < 0x80; c++) {
+            String body = "a long enough line of text " + c + " to fill a few words\n\twith a tab";
+            ChunkedCaptureBuffer buffer = new ChunkedCaptureBuffer(new SegmentPool(0, 16, false));
+            buffer.write(body.getBytes("US-ASCII"));
+
+            if (buffer.isPlainText()) {
+                assertEquals(body, antiSamy.scan(body, policy).getCleanHTML());
+            }
+        }
+    }
+
+    @Test
+    public void test_isPlainText() {
+        assertTrue(detector.isPlainText(invocationHandler, policy));
+    }
+
+    @Test
+    public void test_isPlainText_markup() {
+        when(invocationHandler.isPlainText()).thenReturn(false);
+
+        assertFalse(detector.isPlainText(invocationHandler, policy));
+    }
+
+    @Test
+    public void test_isPlainText_formattedOutput() {
+        policy.setDirective(Policy.FORMAT_OUTPUT, "true");
+
+        assertFalse(detector.isPlainText(invocationHandler, policy));
+    }
+
+    @Test
+    public void test_isPlainText_tooLargeForThePolicy() {
+        when(invocationHandler.getSize()).thenReturn(policy.getMaxInputSize() + 1);
+
+        assertFalse(detector.isPlainText(invocationHandler, policy));
+    }
+
+    @Test
+    public void test_isPlainText_charsetNotAsciiCompatible() {
+        when(invocationHandler.getCharacterEncoding()).thenReturn("UTF-16");
+
+        assertFalse(detector.isPlainText(invocationHandler, policy));
+    }
+
+    @Test
+    public void test_isPlainText_unknownCharset() {
+        when(invocationHandler.getCharacterEncoding()).thenReturn("no-such-charset");
+
+        assertFalse(detector.isPlainText(invocationHandler, policy));
+    }
+
+    @Test
+    public void test_isPlainText_string() {
+        assertTrue(detector.isPlainText("plain words, 100% text\n", policy));
+        assertFalse(detector.isPlainText("<b>bold</b>", policy));
+        assertFalse(detector.isPlainText("fish & chips", policy));
+        assertFalse(detector.isPlainText("caf\u00e9", policy));
+    }
+
+    @Test
+    public void test_isPlainText_stringFormattedOutput() {
+        policy.setDirective(Policy.FORMAT_OUTPUT, "true");
+
+        assertFalse(detector.isPlainText("plain words", policy));
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        policy = Policy.getInstance(new File(getClass().getResource("/antisamy-test-policy.xml").toURI()));
+        detector = new PlainTextDetector();
+        invocationHandler = mock(HttpServletResponseInvocationHandler.class);
+        when(invocationHandler.getSize()).thenReturn(100);
+        when(invocationHandler.getCharacterEncoding()).thenReturn("UTF-8");
+        when(invocationHandler.isPlainText()).thenReturn(true);
+    }
+}
@@ -0,0 +1,172 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.owasp;
+
+import org.apache.commons.logging.Log;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.owasp.validator.html.Policy;
+import org.owasp.validator.html.PolicyException;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import static junit.framework.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.*;
+
+public class PolicyFileLoaderTest {
+    private File policyFile;
+    private PolicyFileLoader loader;
+    private Log log;
+
+    @Test
+    public void test_load_parsesOnlyOnce() {
+        Policy policy = loader.load(policyFile.getAbsolutePath());
+
+        assertSame(policy, loader.load(policyFile.getAbsolutePath()));
+        assertEquals(1, loader.getLoadCount());
+        assertEquals(0, loader.getReloadCount());
+        assertEquals(1, loader.getVersion(policyFile.getAbsolutePath()));
+    }
+
+    @Test
+    public void test_load_missingFile() {
+        try {
+            loader.load(new File(policyFile.getParentFile(), "does-not-exist.xml").getAbsolutePath());
+            fail();
+        } catch (RuntimeException err) {
+            assertEquals(0, loader.getLoadCount());
+        }
+    }
+
+    @Test
+    public void test_getVersion_notLoaded() {
+        assertEquals(-1, loader.getVersion(policyFile.getAbsolutePath()));
+    }
+
+    @Test
+    public void test_checkForChanges_fileChanged() throws IOException {
+        Policy original = loader.load(policyFile.getAbsolutePath());
+
+        append("<!-- changed -->");
+        loader.checkForChanges();
+
+        assertNotSame(original, loader.load(policyFile.getAbsolutePath()));
+        assertEquals(1, loader.getReloadCount());
+        assertEquals(2, loader.getVersion(policyFile.getAbsolutePath()));
+    }
+
+    @Test
+    public void test_loadVersioned_pairsThePolicyWithItsVersion() throws IOException {
+        PolicyFileLoader.VersionedPolicy original = loader.loadVersioned(policyFile.getAbsolutePath());
+
+        append("<!-- changed -->");
+        loader.checkForChanges();
+        PolicyFileLoader.VersionedPolicy reloaded = loader.loadVersioned(policyFile.getAbsolutePath());
+
+        assertEquals(1, original.getVersion());
+        assertEquals(2, reloaded.getVersion());
+        assertSame(reloaded.getPolicy(), loader.load(policyFile.getAbsolutePath()));
+        assertNotSame(original.getPolicy(), reloaded.getPolicy());
+    }
+
+    @Test
+    public void test_checkForChanges_onlyTouched() {
+        Policy original = loader.load(policyFile.getAbsolutePath());
+
+        policyFile.setLastModified(policyFile.lastModified() + 60000);
+        loader.checkForChanges();
+
+        assertSame(original, loader.load(policyFile.getAbsolutePath()));
+        assertEquals(0, loader.getReloadCount());
+        assertEquals(1, loader.getVersion(policyFile.getAbsolutePath()));
+    }
+
+    @Test
+    public void test_checkForChanges_unchangedContentsAreNotParsed() throws Exception {
+        final int[] parses = new int[1];
+        loader = new PolicyFileLoader() {
+            @Override
+            protected Policy parse(byte[] contents) throws PolicyException {
+                parses[0]++;
+                return super.parse(contents);
+            }
+        };
+        loader.load(policyFile.getAbsolutePath());
+
+        policyFile.setLastModified(policyFile.lastModified() + 60000);
+        loader.checkForChanges();
+        assertEquals(1, parses[0]);
+
+        append("<!-- changed -->");
+        loader.checkForChanges();
+        assertEquals(2, parses[0]);
+        assertEquals(2, loader.getVersion(policyFile.getAbsolutePath()));
+    }
+
+    @Test
+    public void test_checkForChanges_invalidPolicyKeepsPrevious() throws IOException {
+        Policy original = loader.load(policyFile.getAbsolutePath());
+
+        append("not xml");
+        loader.checkForChanges();
+
+        assertSame(original, loader.load(policyFile.getAbsolutePath()));
+        assertEquals(0, loader.getReloadCount());
+        verify(log).error(anyString(), any(Throwable.class));
+    }
+
+    private void append(String text) throws IOException {
+        OutputStream output = new FileOutputStream(policyFile, true);
+        try {
+            output.write(text.getBytes("UTF-8"));
+        } finally {
+            output.close();
+        }
+        policyFile.setLastModified(policyFile.lastModified() + 60000);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        policyFile = File.createTempFile("antisamy-policy", ".xml");
+        InputStream input = getClass().getResourceAsStream("/antisamy-test-policy.xml");
+        OutputStream output = new FileOutputStream(policyFile);
+        try {
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+        } finally {
+            input.close();
+            output.close();
+        }
+        log = mock(Log.class);
+        loader = new PolicyFileLoader();
+        loader.setLog(log);
+    }
+
+    @After
+    public void tearDown() {
+        loader.stopReloading();
+        policyFile.delete();
+    }
+}
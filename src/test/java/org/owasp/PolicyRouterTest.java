@@ -0,0 +1,154 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.owasp;
+
+import org.junit.Test;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class PolicyRouterTest {
+    private static final String ROUTES = "/admin/* = admin.xml, /admin/reports/* = reports.xml, /admin/login = skip,"
+            + " *.json = SKIP, /* = site.xml, header:X-Tenant:acme = acme.xml";
+
+    @Test
+    public void test_route_default() {
+        PolicyRouter router = new PolicyRouter("/admin/* = admin.xml", "default.xml");
+
+        assertEquals("default.xml", router.route("/index.html"));
+        assertEquals("default.xml", router.route(""));
+    }
+
+    @Test
+    public void test_route_exact() {
+        PolicyRouter router = new PolicyRouter(ROUTES, "default.xml");
+
+        assertNull(router.route("/admin/login"));
+        assertEquals("admin.xml", router.route("/admin/login/other"));
+    }
+
+    @Test
+    public void test_route_longestPrefix() {
+        PolicyRouter router = new PolicyRouter(ROUTES, "default.xml");
+
+        assertEquals("reports.xml", router.route("/admin/reports/2024.html"));
+        assertEquals("reports.xml", router.route("/admin/reports"));
+        assertEquals("admin.xml", router.route("/admin/users"));
+        assertEquals("admin.xml", router.route("/admin"));
+        assertEquals("site.xml", router.route("/administrators"));
+    }
+
+    @Test
+    public void test_match_pattern() {
+        PolicyRouter router = new PolicyRouter(ROUTES, "default.xml");
+
+        assertEquals("/admin/reports/*", router.match("/admin/reports/2010").getPattern());
+        assertEquals("/admin/login", router.match("/admin/login").getPattern());
+        assertEquals(PolicyRouter.DEFAULT_PATTERN, new PolicyRouter("/admin/* = admin.xml", "default.xml").match("/").getPattern());
+    }
+
+    @Test
+    public void test_route_prefixBeforeExtension() {
+        PolicyRouter router = new PolicyRouter("/api/* = api.xml, *.json = skip", "default.xml");
+
+        assertEquals("api.xml", router.route("/api/users.json"));
+        assertNull(router.route("/data/users.json"));
+        assertEquals("default.xml", router.route("/data.json/users"));
+    }
+
+    @Test
+    public void test_route_header() {
+        PolicyRouter router = new PolicyRouter(ROUTES, "default.xml");
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getHeader("X-Tenant")).thenReturn("acme");
+        when(request.getServletPath()).thenReturn("/admin/login");
+
+        assertEquals("acme.xml", router.route(request));
+
+        when(request.getHeader("X-Tenant")).thenReturn("other");
+
+        assertNull(router.route(request));
+    }
+
+    @Test
+    public void test_route_servletPathAndPathInfo() {
+        PolicyRouter router = new PolicyRouter(ROUTES, "default.xml");
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getServletPath()).thenReturn("/admin");
+        when(request.getPathInfo()).thenReturn("/reports/today");
+
+        assertEquals("reports.xml", router.route(request));
+    }
+
+    @Test
+    public void test_getPolicyFiles() {
+        PolicyRouter router = new PolicyRouter(ROUTES, "default.xml");
+
+        assertEquals(new LinkedHashSet<String>(Arrays.asList("default.xml", "admin.xml", "reports.xml", "site.xml", "acme.xml")), router.getPolicyFiles());
+    }
+
+    @Test
+    public void test_invalidRoute() {
+        try {
+            new PolicyRouter("/admin/*/users = admin.xml", "default.xml");
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("Invalid policy route (/admin/*/users = admin.xml), expected <pattern> = <policy file or skip>", e.getMessage());
+        }
+        try {
+            new PolicyRouter("/admin/*", "default.xml");
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void test_headerRouteCannotSkip() {
+        try {
+            new PolicyRouter("header:X-Internal:true = skip", "default.xml");
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("Invalid policy route (header:X-Internal:true = skip), a header route can only pick a policy file, the client sets the header", e.getMessage());
+        }
+        try {
+            new PolicyRouter("header:X-Internal:true = input:api.xml", "default.xml");
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void test_match_inputOnly() {
+        PolicyRouter router = new PolicyRouter("/api/* = input:api.xml, /admin/* = admin.xml", "default.xml");
+
+        PolicyRouter.Route route = router.match("/api/users");
+        assertEquals("api.xml", route.getPolicyFile());
+        assertTrue(route.isInputOnly());
+        assertEquals("api.xml", router.route("/api/users"));
+        assertFalse(router.match("/admin/users").isInputOnly());
+        assertFalse(router.match("/index.html").isInputOnly());
+        assertTrue(router.getPolicyFiles().contains("api.xml"));
+    }
+}
@@ -0,0 +1,68 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+
+package org.owasp;
+
+import org.junit.Test;
+
+import javax.servlet.ServletRequest;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.fail;
+import static org.mockito.Mockito.*;
+
+public class RequestTimingsTest {
+    @Test
+    public void test_toServerTiming() {
+        RequestTimings timings = new RequestTimings(null, new PhaseListener[0]);
+        timings.record(RequestTimings.SCAN, 12345678);
+        timings.record(RequestTimings.CHAIN, 2000000000);
+        timings.record(RequestTimings.POLICY, 45000);
+
+        assertEquals("chain;dur=2000.000, policy;dur=0.045, scan;dur=12.345", timings.toServerTiming());
+    }
+
+    @Test
+    public void test_toServerTiming_nothingTimed() {
+        assertNull(new RequestTimings(null, new PhaseListener[0]).toServerTiming());
+    }
+
+    @Test
+    public void test_record_addsUpAndTellsListeners() {
+        ServletRequest request = mock(ServletRequest.class);
+        PhaseListener first = mock(PhaseListener.class);
+        PhaseListener second = mock(PhaseListener.class);
+        RequestTimings timings = new RequestTimings(request, new PhaseListener[]{first, second});
+
+        timings.record(RequestTimings.WRITE, 10);
+        timings.record(RequestTimings.WRITE, 5);
+
+        assertEquals(15, timings.getNanos(RequestTimings.WRITE));
+        verify(first).phaseTimed(request, RequestTimings.WRITE, 10);
+        verify(second).phaseTimed(request, RequestTimings.WRITE, 5);
+    }
+
+    @Test
+    public void test_record_unknownPhase() {
+        try {
+            new RequestTimings(null, new PhaseListener[0]).record("render", 1);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("Unknown phase (render), expected one of: chain, capture, policy, scan, write", e.getMessage());
+        }
+    }
+}
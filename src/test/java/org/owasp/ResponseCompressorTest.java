@@ -0,0 +1,193 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+
+package org.owasp;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.zip.GZIPInputStream;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+import static org.mockito.Mockito.*;
+
+public class ResponseCompressorTest {
+    private HttpServletRequest request;
+    private HttpServletResponse response;
+    private StubOutputStream outputStream;
+    private ResponseCompressor compressor;
+
+    @Test
+    public void test_accepts() {
+        assertTrue(accepts("gzip, deflate, br"));
+        assertTrue(accepts("deflate;q=1.0, GZIP;q=0.5"));
+        assertTrue(accepts("x-gzip"));
+        assertTrue(accepts("*"));
+        assertFalse(accepts("deflate, br"));
+        assertFalse(accepts("gzip;q=0, *"));
+        assertFalse(accepts("*;q=0"));
+        assertFalse(accepts("gzip;q=nonsense"));
+        assertFalse(accepts(null));
+    }
+
+    @Test
+    public void test_open_underMinSize() throws Exception {
+        OutputStream body = compressor.open(response, 10);
+        body.write("<p>small</p>".getBytes("UTF-8"));
+        compressor.finish(body);
+
+        assertSame(outputStream, body);
+        verify(response).setContentLength(10);
+        verify(response, never()).setHeader(eq("Content-Encoding"), anyString());
+    }
+
+    @Test
+    public void test_open_compressed() throws Exception {
+        byte[] page = new byte[10000];
+        Arrays.fill(page, (byte) 'a');
+
+        OutputStream body = compressor.open(response, page.length);
+        body.write(page);
+        compressor.finish(body);
+
+        verify(response).setHeader("Content-Encoding", "gzip");
+        verify(response, never()).setContentLength(anyInt());
+        assertTrue(outputStream.output.size() < page.length / 10);
+        assertEquals(new String(page, "US-ASCII"), gunzip(outputStream.output.toByteArray()));
+    }
+
+    @Test
+    public void test_open_unknownLength() throws Exception {
+        OutputStream body = compressor.open(response, -1);
+        body.write('a');
+        compressor.finish(body);
+
+        verify(response).setHeader("Content-Encoding", "gzip");
+        assertEquals("a", gunzip(outputStream.output.toByteArray()));
+    }
+
+    @Test
+    public void test_end_failedBody() throws Exception {
+        OutputStream body = compressor.open(response, -1);
+        body.write('a');
+
+        compressor.end(body);
+        compressor.end(body);
+
+        try {
+            compressor.finish(body);
+            fail();
+        } catch (NullPointerException expected) {
+        }
+    }
+
+    @Test
+    public void test_end_afterFinish() throws Exception {
+        OutputStream body = compressor.open(response, -1);
+        body.write('a');
+        compressor.finish(body);
+
+        compressor.end(body);
+
+        assertEquals("a", gunzip(outputStream.output.toByteArray()));
+    }
+
+    @Test
+    public void test_vary() {
+        compressor.vary(response);
+
+        verify(response).setHeader("Vary", "Accept-Encoding");
+    }
+
+    @Test
+    public void test_vary_mergedIntoTheExistingHeader() {
+        when(response.getHeaders("Vary")).thenReturn(Arrays.asList("Origin", "Cookie, User-Agent"));
+
+        compressor.vary(response);
+
+        verify(response).setHeader("Vary", "Origin, Cookie, User-Agent, Accept-Encoding");
+        verify(response, never()).addHeader(anyString(), anyString());
+    }
+
+    @Test
+    public void test_vary_alreadyThere() {
+        when(response.getHeaders("Vary")).thenReturn(Arrays.asList("origin, accept-encoding"));
+        compressor.vary(response);
+        when(response.getHeaders("Vary")).thenReturn(Arrays.asList("*"));
+        compressor.vary(response);
+
+        verify(response, never()).setHeader(anyString(), anyString());
+        verify(response, never()).addHeader(anyString(), anyString());
+    }
+
+    @Test
+    public void test_invalidLevel() {
+        try {
+            new ResponseCompressor(10, 0);
+            fail();
+        } catch (IllegalArgumentException err) {
+            assertEquals("Invalid compression level (10), expected 1 to 9", err.getMessage());
+        }
+    }
+
+    private boolean accepts(String acceptEncoding) {
+        when(request.getHeaders("Accept-Encoding")).thenReturn(Collections.enumeration(
+                acceptEncoding == null ? Collections.<String>emptyList() : Collections.singletonList(acceptEncoding)));
+        return compressor.accepts(request);
+    }
+
+    private static String gunzip(byte[] bytes) throws IOException {
+        GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(bytes));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = gzip.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toString("US-ASCII");
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        request = mock(HttpServletRequest.class);
+        response = mock(HttpServletResponse.class);
+        outputStream = new StubOutputStream();
+        when(response.getOutputStream()).thenReturn(outputStream);
+        compressor = new ResponseCompressor(6, 100);
+    }
+
+    private static class StubOutputStream extends ServletOutputStream {
+        private ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        @Override
+        public void write(int b) throws IOException {
+            output.write(b);
+        }
+    }
+}
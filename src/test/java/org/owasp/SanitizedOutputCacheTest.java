@@ -0,0 +1,137 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.owasp;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.owasp.validator.html.CleanResults;
+import org.w3c.dom.DocumentFragment;
+
+import java.util.ArrayList;
+import java.util.Date;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+
+public class SanitizedOutputCacheTest {
+    private SanitizedOutputCache cache;
+
+    @Test
+    public void test_get_miss() {
+        assertNull(cache.get(hash(1), 1));
+        assertEquals(1, cache.getMisses());
+        assertEquals(0, cache.getHits());
+    }
+
+    @Test
+    public void test_get_hit() {
+        CleanResults results = results(10);
+        cache.put(hash(1), 1, results);
+
+        assertEquals(results.getCleanHTML(), cache.get(hash(1), 1).getCleanHTML());
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void test_put_evictsLeastRecentlyUsed() {
+        cache.put(hash(1), 1, results(150));
+        cache.put(hash(2), 1, results(150));
+        cache.get(hash(1), 1);
+        cache.put(hash(3), 1, results(150));
+
+        assertNull(cache.get(hash(2), 1));
+        assertEquals(2, cache.getSize());
+        assertEquals(1, cache.getEvictions());
+        assertEquals(2 * (128 + 300), cache.getBytes());
+    }
+
+    @Test
+    public void test_put_largerThanTheCache() {
+        cache.put(hash(1), 1, results(1000));
+
+        assertEquals(0, cache.getSize());
+        assertEquals(0, cache.getBytes());
+    }
+
+    @Test
+    public void test_policyVersionChanged() {
+        cache.put(hash(1), 1, results(10));
+
+        assertNull(cache.get(hash(1), 2));
+
+        cache.put(hash(2), 2, results(10));
+
+        assertEquals(1, cache.getSize());
+        assertNull(cache.get(hash(1), 2));
+    }
+
+    @Test
+    public void test_policiesKeptApart() {
+        CleanResults admin = results(10);
+        CleanResults site = results(20);
+        cache.put(hash(1), "UTF-8", "admin.xml", 1, admin);
+        cache.put(hash(1), "UTF-8", "site.xml", 1, site);
+
+        assertEquals(admin.getCleanHTML(), cache.get(hash(1), "UTF-8", "admin.xml", 1).getCleanHTML());
+        assertEquals(site.getCleanHTML(), cache.get(hash(1), "UTF-8", "site.xml", 1).getCleanHTML());
+
+        cache.put(hash(2), "UTF-8", "site.xml", 2, results(10));
+
+        assertEquals(admin.getCleanHTML(), cache.get(hash(1), "UTF-8", "admin.xml", 1).getCleanHTML());
+        assertNull(cache.get(hash(1), "UTF-8", "site.xml", 2));
+        assertEquals(2, cache.getSize());
+        assertEquals(2 * (128 + 20), cache.getBytes());
+    }
+
+    @Test
+    public void test_characterEncodingsKeptApart() {
+        CleanResults latin = results(10);
+        cache.put(hash(1), "ISO-8859-1", "site.xml", 1, latin);
+
+        assertNull(cache.get(hash(1), "UTF-8", "site.xml", 1));
+        assertEquals(latin.getCleanHTML(), cache.get(hash(1), "ISO-8859-1", "site.xml", 1).getCleanHTML());
+    }
+
+    @Test
+    public void test_put_keepsOnlyTheCleanHtmlAndErrors() {
+        ArrayList<String> errors = new ArrayList<String>();
+        errors.add("tag removed");
+        cache.put(hash(1), 1, new CleanResults(new Date(), new Date(), "clean", mock(DocumentFragment.class), errors));
+
+        CleanResults cached = cache.get(hash(1), 1);
+        assertNull(cached.getCleanXMLDocumentFragment());
+        assertEquals("clean", cached.getCleanHTML());
+        assertEquals(errors, cached.getErrorMessages());
+        assertEquals(128 + 10 + 22, cache.getBytes());
+    }
+
+    private ContentHash hash(long value) {
+        return new ContentHash(value, value, 10);
+    }
+
+    private CleanResults results(int length) {
+        StringBuilder html = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            html.append('a');
+        }
+        return new CleanResults(new Date(), new Date(), html.toString(), null, new ArrayList());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        cache = new SanitizedOutputCache(1000);
+    }
+}
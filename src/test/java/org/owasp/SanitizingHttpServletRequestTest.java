@@ -0,0 +1,157 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+
+package org.owasp;
+
+import org.apache.commons.logging.Log;
+import org.junit.Before;
+import org.junit.Test;
+import org.owasp.validator.html.CleanResults;
+import org.owasp.validator.html.Policy;
+import org.owasp.validator.html.ScanException;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.fail;
+import static org.mockito.Mockito.*;
+
+public class SanitizingHttpServletRequestTest {
+    private static final String TAINTED_HTML = "<b onclick=\"evil()\">bold</b>";
+    private static final String CLEANED_HTML = "<b>bold</b>";
+
+    private HttpServletRequest request;
+    private AntiSamyPool antiSamyPool;
+    private Policy policy;
+    private CleanResults cleanResults;
+    private SanitizingHttpServletRequest sanitizing;
+
+    @Test
+    public void test_getParameter_scannedOnce() throws Exception {
+        assertEquals(CLEANED_HTML, sanitizing.getParameter("comment"));
+        assertEquals(CLEANED_HTML, sanitizing.getParameter("comment"));
+        assertEquals(CLEANED_HTML, sanitizing.getParameterValues("comment")[0]);
+
+        verify(antiSamyPool, times(1)).scan(TAINTED_HTML, policy);
+        assertEquals(1, sanitizing.getScannedValues());
+    }
+
+    @Test
+    public void test_getParameter_htmlValuesAreEncoded() throws Exception {
+        when(request.getParameterValues("comment")).thenReturn(new String[]{"Tom & Jerry <b onclick=\"evil()\">a < b</b>"});
+        sanitizing = new SanitizingHttpServletRequest(request, new AntiSamyPool(1, "UTF-8", "UTF-8"), policy, new PlainTextDetector(), Collections.<String>emptySet());
+
+        assertEquals("Tom &amp; Jerry <b>a &lt; b</b>", sanitizing.getParameter("comment"));
+    }
+
+    @Test
+    public void test_getParameter_textValuesAreDecoded() throws Exception {
+        when(request.getParameterValues("comment")).thenReturn(new String[]{"Tom & Jerry <b onclick=\"evil()\">a < b</b><script>evil()</script>"});
+        sanitizing = new SanitizingHttpServletRequest(request, new AntiSamyPool(1, "UTF-8", "UTF-8"), policy, new PlainTextDetector(),
+                Collections.<String>emptySet(), SanitizingHttpServletRequest.TEXT_VALUES);
+
+        assertEquals("Tom & Jerry a < b", sanitizing.getParameter("comment"));
+    }
+
+    @Test
+    public void test_getParameter_plainTextNotScanned() throws Exception {
+        when(request.getParameterValues("name")).thenReturn(new String[]{"Jane Doe"});
+
+        assertEquals("Jane Doe", sanitizing.getParameter("name"));
+
+        verifyZeroInteractions(antiSamyPool);
+        assertEquals(0, sanitizing.getScannedValues());
+    }
+
+    @Test
+    public void test_getParameter_missing() {
+        assertNull(sanitizing.getParameter("missing"));
+        assertNull(sanitizing.getParameterValues("missing"));
+
+        verify(request, times(1)).getParameterValues("missing");
+    }
+
+    @Test
+    public void test_getParameter_scanFails() throws Exception {
+        Log log = mock(Log.class);
+        ScanException error = new ScanException("bad input");
+        when(antiSamyPool.scan(TAINTED_HTML, policy)).thenThrow(error);
+        sanitizing.setLog(log);
+
+        assertEquals("", sanitizing.getParameter("comment"));
+
+        verify(log).error("A problem occured while sanitizing the HTTP Request", error);
+    }
+
+    @Test
+    public void test_getParameterMap() throws Exception {
+        Map<String, String[]> raw = new HashMap<String, String[]>();
+        raw.put("comment", new String[]{TAINTED_HTML});
+        raw.put("name", new String[]{"Jane", "Doe"});
+        when(request.getParameterMap()).thenReturn(raw);
+        when(request.getParameterValues("name")).thenReturn(new String[]{"Jane", "Doe"});
+
+        Map<String, String[]> map = sanitizing.getParameterMap();
+
+        assertEquals(Arrays.asList(CLEANED_HTML), Arrays.asList(map.get("comment")));
+        assertEquals(Arrays.asList("Jane", "Doe"), Arrays.asList(map.get("name")));
+        assertEquals(CLEANED_HTML, sanitizing.getParameter("comment"));
+        verify(antiSamyPool, times(1)).scan(TAINTED_HTML, policy);
+        try {
+            map.put("other", new String[0]);
+            fail();
+        } catch (UnsupportedOperationException expected) {
+        }
+    }
+
+    @Test
+    public void test_getHeader() throws Exception {
+        when(request.getHeaders("X-Comment")).thenReturn(Collections.enumeration(Arrays.asList(TAINTED_HTML)));
+        when(request.getHeader("User-Agent")).thenReturn(TAINTED_HTML);
+
+        assertEquals(CLEANED_HTML, sanitizing.getHeader("X-Comment"));
+        assertEquals(CLEANED_HTML, sanitizing.getHeaders("x-comment").nextElement());
+        assertEquals(TAINTED_HTML, sanitizing.getHeader("User-Agent"));
+
+        verify(antiSamyPool, times(1)).scan(TAINTED_HTML, policy);
+    }
+
+    @Test
+    public void test_getHeader_missing() {
+        when(request.getHeaders("X-Comment")).thenReturn(Collections.enumeration(Collections.<String>emptyList()));
+
+        assertNull(sanitizing.getHeader("X-Comment"));
+        assertEquals(false, sanitizing.getHeaders("X-Comment").hasMoreElements());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        request = mock(HttpServletRequest.class);
+        antiSamyPool = mock(AntiSamyPool.class);
+        policy = Policy.getInstance(new File(getClass().getResource("/antisamy-test-policy.xml").toURI()));
+        cleanResults = mock(CleanResults.class);
+        when(cleanResults.getCleanHTML()).thenReturn(CLEANED_HTML);
+        when(antiSamyPool.scan(TAINTED_HTML, policy)).thenReturn(cleanResults);
+        when(request.getParameterValues("comment")).thenReturn(new String[]{TAINTED_HTML});
+        sanitizing = new SanitizingHttpServletRequest(request, antiSamyPool, policy, new PlainTextDetector(), Collections.singleton("x-comment"));
+    }
+}
@@ -0,0 +1,154 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.owasp;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+public class ScanExecutorTest {
+    private final CountDownLatch release = new CountDownLatch(1);
+    private ScanExecutor scanExecutor;
+
+    @Test
+    public void test_execute_runsOnAScannerThread() throws Exception {
+        scanExecutor = new ScanExecutor(1, 1, ScanExecutor.INLINE, false);
+        final AtomicReference<Thread> ranOn = new AtomicReference<Thread>();
+        final CountDownLatch done = new CountDownLatch(1);
+
+        scanExecutor.execute(new Runnable() {
+            public void run() {
+                ranOn.set(Thread.currentThread());
+                done.countDown();
+            }
+        });
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(ranOn.get().getName().startsWith("antisamy-scanner-"));
+    }
+
+    @Test
+    public void test_execute_saturatedRunsInline() throws Exception {
+        scanExecutor = new ScanExecutor(1, 1, ScanExecutor.INLINE, false);
+        scanExecutor.execute(blocking());
+        scanExecutor.execute(blocking());
+        final AtomicReference<Thread> ranOn = new AtomicReference<Thread>();
+
+        scanExecutor.execute(new Runnable() {
+            public void run() {
+                ranOn.set(Thread.currentThread());
+            }
+        });
+
+        assertSame(Thread.currentThread(), ranOn.get());
+        assertEquals(1, scanExecutor.getSaturatedCount());
+    }
+
+    @Test
+    public void test_execute_saturatedWaitsForRoom() throws Exception {
+        scanExecutor = new ScanExecutor(1, 1, ScanExecutor.WAIT, false);
+        scanExecutor.execute(blocking());
+        scanExecutor.execute(blocking());
+        final CountDownLatch submitted = new CountDownLatch(1);
+        final CountDownLatch ran = new CountDownLatch(1);
+
+        Thread submitter = new Thread(new Runnable() {
+            public void run() {
+                scanExecutor.execute(new Runnable() {
+                    public void run() {
+                        ran.countDown();
+                    }
+                });
+                submitted.countDown();
+            }
+        });
+        submitter.start();
+
+        assertEquals(false, submitted.await(200, TimeUnit.MILLISECONDS));
+        release.countDown();
+        assertTrue(submitted.await(5, TimeUnit.SECONDS));
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertEquals(1, scanExecutor.getSaturatedCount());
+    }
+
+    @Test
+    public void test_execute_saturatedRejects() throws Exception {
+        scanExecutor = new ScanExecutor(1, 1, ScanExecutor.REJECT, false);
+        scanExecutor.execute(blocking());
+        scanExecutor.execute(blocking());
+
+        try {
+            scanExecutor.execute(blocking());
+            fail();
+        } catch (RejectedExecutionException expected) {
+        }
+        assertEquals(1, scanExecutor.getSaturatedCount());
+    }
+
+    @Test
+    public void test_virtualThreadsWhenTheJvmHasThem() {
+        boolean available;
+        try {
+            Thread.class.getMethod("ofVirtual");
+            available = true;
+        } catch (NoSuchMethodException e) {
+            available = false;
+        }
+
+        scanExecutor = new ScanExecutor(1, 1, ScanExecutor.INLINE, true);
+
+        assertEquals(available, scanExecutor.isVirtualThreads());
+    }
+
+    @Test
+    public void test_unknownSaturationPolicy() {
+        try {
+            new ScanExecutor(1, 1, "drop", false);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("Unknown saturation policy (drop), expected one of: inline, wait, reject", e.getMessage());
+        }
+    }
+
+    private Runnable blocking() {
+        return new Runnable() {
+            public void run() {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        if (scanExecutor != null) {
+            scanExecutor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.owasp;
+
+import org.junit.After;
+import org.junit.Test;
+import org.owasp.validator.html.CleanResults;
+import org.owasp.validator.html.ScanException;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+public class ScanTimeLimiterTest {
+    private final CountDownLatch release = new CountDownLatch(1);
+    private ScanTimeLimiter scanTimeLimiter;
+
+    @Test
+    public void test_scan() throws Exception {
+        scanTimeLimiter = new ScanTimeLimiter(new ScanExecutor(1, 1, ScanExecutor.REJECT, false), 5000);
+        final CleanResults results = new CleanResults(new Date(), new Date(), "clean", null, new ArrayList());
+
+        assertSame(results, scanTimeLimiter.scan(new Callable<CleanResults>() {
+            public CleanResults call() {
+                return results;
+            }
+        }));
+    }
+
+    @Test
+    public void test_scan_timesOut() throws Exception {
+        scanTimeLimiter = new ScanTimeLimiter(new ScanExecutor(1, 1, ScanExecutor.REJECT, false), 50);
+
+        try {
+            scanTimeLimiter.scan(blocking());
+            fail();
+        } catch (ScanBudgetExceededException e) {
+            assertEquals("The scan took longer than 50 ms", e.getMessage());
+        }
+        assertEquals(1, scanTimeLimiter.getTimedOutCount());
+    }
+
+    @Test
+    public void test_scan_noThreadAvailable() throws Exception {
+        scanTimeLimiter = new ScanTimeLimiter(new ScanExecutor(1, 1, ScanExecutor.REJECT, false), 10);
+        for (int i = 0; i < 2; i++) {
+            try {
+                scanTimeLimiter.scan(blocking());
+            } catch (ScanBudgetExceededException expected) {
+            }
+        }
+
+        long start = System.nanoTime();
+        try {
+            scanTimeLimiter.scan(blocking());
+            fail();
+        } catch (ScanBudgetExceededException e) {
+            assertTrue(e.getMessage().startsWith("No scanner thread available"));
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(1000));
+    }
+
+    @Test
+    public void test_scan_failure() throws Exception {
+        scanTimeLimiter = new ScanTimeLimiter(new ScanExecutor(1, 1, ScanExecutor.REJECT, false), 5000);
+        final ScanException error = new ScanException("bad input");
+
+        try {
+            scanTimeLimiter.scan(new Callable<CleanResults>() {
+                public CleanResults call() throws Exception {
+                    throw error;
+                }
+            });
+            fail();
+        } catch (ScanException e) {
+            assertSame(error, e);
+        }
+    }
+
+    private Callable<CleanResults> blocking() {
+        return new Callable<CleanResults>() {
+            public CleanResults call() {
+                while (true) {
+                    try {
+                        release.await(5, TimeUnit.SECONDS);
+                        return null;
+                    } catch (InterruptedException e) {
+                        // like AntiSamy, keep going when interrupted
+                    }
+                }
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        scanTimeLimiter.shutdown();
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.owasp;
+
+import org.apache.commons.logging.Log;
+import org.junit.Before;
+import org.junit.Test;
+import org.owasp.validator.html.Policy;
+import org.owasp.validator.html.ScanException;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ScannerWarmUpTest {
+    private Policy policy;
+
+    @Test
+    public void test_run() throws Exception {
+        ScannerWarmUp warmUp = new ScannerWarmUp(new AntiSamyPool(1, "UTF-8", "UTF-8"), 3);
+
+        long nanos = warmUp.run(Arrays.asList(ScannerWarmUp.DEFAULT_PAGE, "<p>second</p>"), Arrays.asList(policy, policy));
+
+        assertEquals(12, warmUp.getScans());
+        assertTrue(nanos > 0);
+    }
+
+    @Test
+    public void test_run_skipsFailingPages() throws Exception {
+        AntiSamyPool pool = mock(AntiSamyPool.class);
+        Log log = mock(Log.class);
+        ScanException error = new ScanException("too large");
+        when(pool.scan("large", policy)).thenThrow(error);
+        ScannerWarmUp warmUp = new ScannerWarmUp(pool, 5);
+        warmUp.setLog(log);
+
+        warmUp.run(Arrays.asList("large", "small"), Collections.singletonList(policy));
+
+        verify(pool).scan("large", policy);
+        verify(pool, times(5)).scan("small", policy);
+        verify(log).warn("Warm up scan of page 0 failed", error);
+        assertEquals(5, warmUp.getScans());
+    }
+
+    @Test
+    public void test_readCorpus_default() throws Exception {
+        assertEquals(Collections.singletonList(ScannerWarmUp.DEFAULT_PAGE), ScannerWarmUp.readCorpus(null, "UTF-8"));
+        assertEquals(Collections.singletonList(ScannerWarmUp.DEFAULT_PAGE), ScannerWarmUp.readCorpus(" ", "UTF-8"));
+    }
+
+    @Test
+    public void test_readCorpus_filesAndDirectories() throws Exception {
+        File directory = new File(System.getProperty("java.io.tmpdir"), "antisamy-corpus-" + System.nanoTime());
+        directory.mkdirs();
+        File b = write(new File(directory, "b.html"), "<p>b</p>");
+        File a = write(new File(directory, "a.html"), "<p>café</p>");
+        File single = write(File.createTempFile("antisamy-corpus", ".html"), "<p>single</p>");
+        try {
+            List<String> corpus = ScannerWarmUp.readCorpus(single.getAbsolutePath() + ", " + directory.getAbsolutePath(), "UTF-8");
+
+            assertEquals(Arrays.asList("<p>single</p>", "<p>café</p>", "<p>b</p>"), corpus);
+        } finally {
+            a.delete();
+            b.delete();
+            single.delete();
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void test_readDirectory_notListable() throws Exception {
+        File directory = new File("unlistable") {
+            @Override
+            public File[] listFiles() {
+                return null;
+            }
+        };
+        List<String> corpus = new ArrayList<String>();
+
+        ScannerWarmUp.readDirectory(directory, "UTF-8", corpus);
+
+        assertTrue(corpus.isEmpty());
+    }
+
+    private File write(File file, String contents) throws Exception {
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            output.write(contents.getBytes("UTF-8"));
+        } finally {
+            output.close();
+        }
+        return file;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        policy = Policy.getInstance(new File(getClass().getResource("/antisamy-test-policy.xml").toURI()));
+    }
+}
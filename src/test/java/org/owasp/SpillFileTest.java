@@ -0,0 +1,84 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.owasp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.ByteBuffer;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+public class SpillFileTest {
+    private File directory;
+    private SpillFile spillFile;
+
+    @Test
+    public void test_nextSegment_writesThroughToTheFile() throws Exception {
+        ByteBuffer first = spillFile.nextSegment();
+        ByteBuffer second = spillFile.nextSegment();
+        first.put("abcd".getBytes("UTF-8"));
+        second.put("efgh".getBytes("UTF-8"));
+
+        assertEquals(4, first.capacity());
+        assertEquals(1024 * 1024, spillFile.getMappedBytes());
+        byte[] contents = new byte[8];
+        FileInputStream in = new FileInputStream(spillFile.getFile());
+        try {
+            in.read(contents);
+        } finally {
+            in.close();
+        }
+        assertEquals("abcdefgh", new String(contents, "UTF-8"));
+    }
+
+    @Test
+    public void test_nextSegment_mapsAnotherRegion() throws Exception {
+        for (int i = 0; i <= 1024 * 1024 / 4; i++) {
+            spillFile.nextSegment();
+        }
+
+        assertEquals(2 * 1024 * 1024, spillFile.getMappedBytes());
+    }
+
+    @Test
+    public void test_delete() throws Exception {
+        spillFile.nextSegment().put((byte) 'a');
+
+        spillFile.delete();
+
+        assertFalse(spillFile.getFile().exists());
+        assertTrue(SpillFile.isUnmapSupported());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        directory = new File(System.getProperty("java.io.tmpdir"), "antisamy-spill-test-" + System.nanoTime());
+        directory.mkdirs();
+        spillFile = new SpillFile(directory, 4);
+    }
+
+    @After
+    public void tearDown() {
+        spillFile.delete();
+        directory.delete();
+    }
+}
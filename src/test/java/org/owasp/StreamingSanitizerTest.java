@@ -0,0 +1,201 @@
+/**
+ * Copyright to the original author or authors.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * The names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.owasp;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.owasp.validator.html.CleanResults;
+import org.owasp.validator.html.Policy;
+import org.owasp.validator.html.ScanException;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.assertSame;
+import static org.mockito.Mockito.*;
+
+public class StreamingSanitizerTest {
+    private static final String[] CORPUS = {
+            "<p>hello <b>world</b></p><script>alert(1)</script><div id=\"x\">a &amp; b</div>",
+            "<ul><li>one<li>two</ul><p>after <i>list</i></p><!-- <p>comment</p> --><p>end</p>",
+            "text before <p onclick=\"evil()\">para</p> text after",
+            "<div><div><div>nested <span>deep</span></div></div></div><p>café €</p>",
+            "<style>p { color: red }</style><p>styled</p><a href=\"/page?a=1&amp;b=2\">link</a><a href=\"javascript:x\">bad</a>",
+    };
+
+    private AntiSamyPool antiSamyPool;
+    private Policy policy;
+    private ServletResponse response;
+    private StubOutputStream output;
+
+    @Test
+    public void test_sameResultsAsScanningTheWholeBody() throws Exception {
+        for (String html : CORPUS) {
+            CleanResults expected = antiSamyPool.scan(html, policy);
+
+            output.output.reset();
+            StreamingSanitizer sanitizer = new StreamingSanitizer(antiSamyPool, policy, response, new CleanHtmlEncoder("UTF-8"), 8);
+            byte[] bytes = html.getBytes("UTF-8");
+            for (int i = 0; i < bytes.length; i += 5) {
+                sanitizer.write(bytes, i, Math.min(5, bytes.length - i));
+            }
+            CleanResults results = sanitizer.finish();
+
+            assertEquals(html, expected.getCleanHTML(), new String(output.output.toByteArray(), "UTF-8"));
+            assertEquals(html, expected.getNumberOfErrors(), results.getNumberOfErrors());
+        }
+    }
+
+    @Test
+    public void test_write_sanitizesOnceChunkSizeIsReached() throws Exception {
+        StreamingSanitizer sanitizer = new StreamingSanitizer(antiSamyPool, policy, response, new CleanHtmlEncoder("UTF-8"), 8);
+
+        sanitizer.write("<p>first</p><p>".getBytes("UTF-8"));
+
+        assertEquals("<p>first</p>", new String(output.output.toByteArray(), "UTF-8"));
+
+        sanitizer.write("second</p>".getBytes("UTF-8"));
+        sanitizer.finish();
+
+        assertEquals("<p>first</p><p>second</p>", new String(output.output.toByteArray(), "UTF-8"));
+    }
+
+    @Test
+    public void test_write_wholeDocumentSanitizedBeforeFinish() throws Exception {
+        StringBuilder html = new StringBuilder("<!DOCTYPE html>\n<html><head><title>t</title></head><body>\n");
+        for (int i = 0; i < 50; i++) {
+            html.append("<div><p onclick=\"x()\">para <b>").append(i).append("</b></p></div>\n");
+        }
+        html.append("</body></html>\n");
+        StreamingSanitizer sanitizer = new StreamingSanitizer(antiSamyPool, policy, response, new CleanHtmlEncoder("UTF-8"), 64);
+
+        sanitizer.write(html.toString().getBytes("UTF-8"));
+
+        assertTrue(output.output.size() > html.length() / 2);
+
+        sanitizer.finish();
+
+        assertEquals(antiSamyPool.scan(html.toString(), policy).getCleanHTML(), new String(output.output.toByteArray(), "UTF-8"));
+        assertFalse(sanitizer.isBuffered());
+    }
+
+    @Test
+    public void test_write_bufferedWithoutBoundaryWithinMaxPending() throws Exception {
+        StringBuilder html = new StringBuilder("<div id=\"page\">");
+        for (int i = 0; i < 20; i++) {
+            html.append("<p>para ").append(i).append("</p>");
+        }
+        StreamingSanitizer sanitizer = new StreamingSanitizer(antiSamyPool, policy, response, new CleanHtmlEncoder("UTF-8"), 16, 64);
+
+        sanitizer.write(html.toString().getBytes("UTF-8"));
+        sanitizer.write("<p>after</p>".getBytes("UTF-8"));
+
+        assertTrue(sanitizer.isBuffered());
+        assertEquals(0, output.output.size());
+
+        sanitizer.finish();
+
+        assertEquals(antiSamyPool.scan(html + "<p>after</p>", policy).getCleanHTML(), new String(output.output.toByteArray(), "UTF-8"));
+    }
+
+    @Test
+    public void test_scanFailure_stopsWriting() throws Exception {
+        AntiSamyPool failingPool = mock(AntiSamyPool.class);
+        ScanException error = new ScanException("");
+        when(failingPool.scan(anyString(), eq(policy))).thenThrow(error);
+        StreamingSanitizer sanitizer = new StreamingSanitizer(failingPool, policy, response, new CleanHtmlEncoder("UTF-8"), 8);
+
+        sanitizer.write("<p>first</p><p>second</p>".getBytes("UTF-8"));
+        sanitizer.finish();
+
+        assertSame(error, sanitizer.getFailure());
+        assertEquals(0, output.output.size());
+        verify(failingPool, times(1)).scan(anyString(), eq(policy));
+    }
+
+    @Test
+    public void test_write_totalBodyHeldToMaxInputSize() throws Exception {
+        Policy smallPolicy = mock(Policy.class);
+        when(smallPolicy.getMaxInputSize()).thenReturn(10);
+        AntiSamyPool pool = mock(AntiSamyPool.class);
+        StreamingSanitizer sanitizer = new StreamingSanitizer(pool, smallPolicy, response, new CleanHtmlEncoder("UTF-8"), 64);
+
+        sanitizer.write("<p>one</p>".getBytes("UTF-8"));
+        sanitizer.write("<p>two</p>".getBytes("UTF-8"));
+        sanitizer.finish();
+
+        assertTrue(sanitizer.getFailure() instanceof ScanException);
+        assertFalse(sanitizer.isOverBudget());
+        assertEquals(0, output.output.size());
+        verifyZeroInteractions(pool);
+    }
+
+    @Test
+    public void test_write_bufferedBodyHeldToCaptureBudget() throws Exception {
+        CaptureBudget budget = new CaptureBudget(Long.MAX_VALUE, 100, CaptureBudget.FAIL, 0, null);
+        StreamingSanitizer sanitizer = new StreamingSanitizer(antiSamyPool, policy, response, new CleanHtmlEncoder("UTF-8"), 16, 16);
+        sanitizer.setCaptureBudget(budget);
+
+        sanitizer.write("<div id=\"page\"><p>one</p>".getBytes("UTF-8"));
+
+        assertTrue(sanitizer.isBuffered());
+        assertEquals(50, budget.getUsedBytes());
+
+        sanitizer.write("<p>two</p><p>three</p><p>four</p>".getBytes("UTF-8"));
+        sanitizer.finish();
+
+        assertTrue(sanitizer.isOverBudget());
+        assertTrue(sanitizer.getFailure() instanceof CaptureBudgetExceededException);
+        assertEquals(0, output.output.size());
+        assertEquals(0, budget.getUsedBytes());
+    }
+
+    @Test
+    public void test_finish_releasesTheCaptureBudget() throws Exception {
+        CaptureBudget budget = new CaptureBudget();
+        StreamingSanitizer sanitizer = new StreamingSanitizer(antiSamyPool, policy, response, new CleanHtmlEncoder("UTF-8"), 16);
+        sanitizer.setCaptureBudget(budget);
+
+        sanitizer.write(CORPUS[0].getBytes("UTF-8"));
+        sanitizer.finish();
+
+        assertEquals(0, budget.getUsedBytes());
+        assertEquals(antiSamyPool.scan(CORPUS[0], policy).getCleanHTML(), new String(output.output.toByteArray(), "UTF-8"));
+    }
+
+    private static class StubOutputStream extends ServletOutputStream {
+        private ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        @Override
+        public void write(int b) throws IOException {
+            output.write(b);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        policy = Policy.getInstance(getClass().getResourceAsStream("/antisamy-test-policy.xml"));
+        antiSamyPool = new AntiSamyPool(1, "UTF-8", "UTF-8");
+        output = new StubOutputStream();
+        response = mock(ServletResponse.class);
+        when(response.getCharacterEncoding()).thenReturn("UTF-8");
+        when(response.getOutputStream()).thenReturn(output);
+    }
+}